@@ -0,0 +1,148 @@
+package dk.statsbiblioteket.metadatarepository.fieldsearch;
+
+import org.fcrepo.server.errors.ServerException;
+import org.fcrepo.server.search.FieldSearchQuery;
+import org.fcrepo.server.search.FieldSearchResult;
+import org.fcrepo.server.storage.ConnectionPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput and latency of {@link SBFieldSearchSQLImpl} on an embedded Derby database: {@code update} of objects
+ * with a number of DC identifiers, {@code delete}, and the doIdentifiers fast path of {@code findObjects}.
+ * <p>
+ * The trial setup loads {@code objects} objects, so the tables have {@code objects} rows in doFields and
+ * {@code objects * identifiers} rows in doIdentifiers. Updates rewrite existing objects and keep the table sizes.
+ * Each thread only updates and deletes its own share of the objects, as two concurrent updates of one object
+ * would deadlock in Derby rather than measure anything. The generic findObjects path needs a repository, and is
+ * left to the load test.
+ * </p>
+ * <p>
+ * Use {@link FieldSearchBenchmarkRunner} to run at 1 to 32 threads with the GC profiler.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+public class FieldSearchBenchmark {
+
+    @Param({"1", "5", "20"})
+    int identifiers;
+
+    @Param({"1000", "100000"})
+    int objects;
+
+    @Param({"false"})
+    boolean indexDCFields;
+
+    @Param({"32"})
+    int maxActive;
+
+    private ConnectionPool pool;
+
+    private SBFieldSearchSQLImpl fieldSearch;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        pool = FieldSearchDatabase.create(maxActive);
+        fieldSearch = new SBFieldSearchSQLImpl(pool, null, 100, 600, indexDCFields);
+        for (int n = 0; n < objects; n++) {
+            fieldSearch.update(SyntheticObjects.reader(n, identifiers));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Benchmark
+    public void update(Cursor cursor) throws ServerException {
+        fieldSearch.update(SyntheticObjects.reader(cursor.nextOwn(objects), identifiers));
+    }
+
+    @Benchmark
+    public FieldSearchResult findByIdentifier(Cursor cursor) throws ServerException {
+        FieldSearchQuery query = SyntheticObjects.identifierQuery(cursor.nextAny(objects),
+                cursor.random.nextInt(identifiers));
+        return fieldSearch.findObjects(SyntheticObjects.PID_ONLY, 1, query);
+    }
+
+    /**
+     * Delete an object added just before the invocation. The setup runs outside the measurement, which JMH can
+     * only do precisely for operations much slower than the timer, which database writes are
+     */
+    @Benchmark
+    public boolean delete(Doomed doomed) throws ServerException {
+        return fieldSearch.delete(SyntheticObjects.pid(doomed.n));
+    }
+
+    /**
+     * The objects of one benchmark thread are those whose number modulo the thread count is the thread index
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        private final Random random = new Random();
+
+        private int index;
+
+        private int threads;
+
+        @Setup(Level.Trial)
+        public void setUp(ThreadParams threadParams) {
+            index = threadParams.getThreadIndex();
+            threads = threadParams.getThreadCount();
+        }
+
+        int nextOwn(int objects) {
+            int own = Math.max(1, (objects - index + threads - 1) / threads);
+            return index + random.nextInt(own) * threads;
+        }
+
+        int nextAny(int objects) {
+            return random.nextInt(objects);
+        }
+    }
+
+    /**
+     * An object outside the preloaded ones, added before each delete invocation
+     */
+    @State(Scope.Thread)
+    public static class Doomed {
+
+        private int n;
+
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setUp(FieldSearchBenchmark benchmark, ThreadParams threadParams) {
+            next = benchmark.objects + threadParams.getThreadIndex();
+        }
+
+        @Setup(Level.Invocation)
+        public void add(FieldSearchBenchmark benchmark, ThreadParams threadParams) throws ServerException {
+            n = next;
+            next += threadParams.getThreadCount();
+            benchmark.fieldSearch.update(SyntheticObjects.reader(n, benchmark.identifiers));
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package dk.statsbiblioteket.metadatarepository.fieldsearch;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs {@link FieldSearchBenchmark} at 1, 2, 4, ... 32 threads with the GC profiler, which reports the allocation
+ * rate per operation, and writes the results of each thread count to {@code fieldsearch-<threads>.json}. The sample
+ * time mode reports the p99 latency. Other JMH command line options, e.g. {@code -p objects=1000}, are passed on.
+ * Run it with
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar dk.statsbiblioteket.metadatarepository.fieldsearch.FieldSearchBenchmarkRunner
+ * </pre>
+ */
+public class FieldSearchBenchmarkRunner {
+
+    private static final int MAX_THREADS = 32;
+
+    public static void main(String[] args) throws Exception {
+        Options commandLine = new CommandLineOptions(args);
+        for (int threads = 1; threads <= MAX_THREADS; threads *= 2) {
+            Options options = new OptionsBuilder()
+                    .parent(commandLine)
+                    .include(FieldSearchBenchmark.class.getName() + "\\.")
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result("fieldsearch-" + threads + ".json")
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
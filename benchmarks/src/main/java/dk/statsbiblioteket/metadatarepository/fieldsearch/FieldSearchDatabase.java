@@ -0,0 +1,80 @@
+package dk.statsbiblioteket.metadatarepository.fieldsearch;
+
+import org.fcrepo.server.storage.ConnectionPool;
+import org.fcrepo.server.utilities.DerbyDDLConverter;
+import org.fcrepo.server.utilities.SQLUtility;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Embedded, in-memory Derby databases behind a {@link ConnectionPool}, with the tables the field search writes to:
+ * doFields and dcDates from Fedora's own table spec, and doIdentifiers from {@code SBFieldSearch.dbspec}.
+ * <p>
+ * Closing the pool shuts Derby down, see {@link ConnectionPool#close()}, so every benchmark trial starts from an
+ * empty database.
+ * </p>
+ */
+public class FieldSearchDatabase {
+
+    public static final String DRIVER = "org.apache.derby.jdbc.EmbeddedDriver";
+
+    public static final String VALIDATION_QUERY = "VALUES 1";
+
+    /*
+     * Fedora's tables first, as SBFieldSearchSQLImpl.update writes doFields before doIdentifiers
+     */
+    private static final String[] DB_SPECS = {
+            "org/fcrepo/server/storage/resources/DefaultDOManager.dbspec",
+            "dk/statsbiblioteket/metadatarepository/SBFieldSearch.dbspec"};
+
+    private static final AtomicInteger databases = new AtomicInteger();
+
+    private FieldSearchDatabase() {
+    }
+
+    /**
+     * @param maxActive the maximum number of connections
+     * @param testOnBorrow whether connections are validated when borrowed
+     * @param whenExhaustedAction 0 to fail, 1 to block and 2 to grow when all connections are in use
+     * @return a pool on a new, empty in-memory database without tables
+     * @throws SQLException if the pool could not be created
+     */
+    public static ConnectionPool createPool(int maxActive, boolean testOnBorrow, byte whenExhaustedAction)
+            throws SQLException {
+        String url = "jdbc:derby:memory:fieldsearch" + databases.incrementAndGet() + ";create=true";
+        return new ConnectionPool(DRIVER, url, "fedoraAdmin", "fedoraAdmin", new DerbyDDLConverter(),
+                maxActive, maxActive, 10000, Math.min(maxActive, 8), 300000, 0, -1, VALIDATION_QUERY,
+                testOnBorrow, false, false, whenExhaustedAction);
+    }
+
+    /**
+     * @param maxActive the maximum number of connections, borrowers block when all are in use
+     * @return a pool on a new in-memory database with the field search tables
+     * @throws Exception if the database or the tables could not be created
+     */
+    public static ConnectionPool create(int maxActive) throws Exception {
+        ConnectionPool pool = createPool(maxActive, false, (byte) 1);
+        try {
+            for (String dbSpec : DB_SPECS) {
+                InputStream specIn = FieldSearchDatabase.class.getClassLoader().getResourceAsStream(dbSpec);
+                if (specIn == null) {
+                    throw new IOException("Cannot find required resource: " + dbSpec);
+                }
+                try {
+                    SQLUtility.createNonExistingTables(pool, specIn);
+                } finally {
+                    specIn.close();
+                }
+            }
+            pool.warmUp(SBFieldSearchSQLImpl.SELECT_PIDS_BY_IDENTIFIER, SBFieldSearchSQLImpl.DELETE_IDENTIFIERS,
+                    SBFieldSearchSQLImpl.INSERT_IDENTIFIER);
+        } catch (Exception e) {
+            pool.close();
+            throw e;
+        }
+        return pool;
+    }
+}
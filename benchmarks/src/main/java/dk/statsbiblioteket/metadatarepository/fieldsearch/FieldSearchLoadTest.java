@@ -0,0 +1,416 @@
+package dk.statsbiblioteket.metadatarepository.fieldsearch;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+import org.HdrHistogram.Recorder;
+import org.fcrepo.server.search.Condition;
+import org.fcrepo.server.search.FieldSearchQuery;
+import org.fcrepo.server.search.Operator;
+import org.fcrepo.server.storage.ConnectionPool;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A load test of {@link SBFieldSearchModule} on embedded Derby, replaying a mix of updates, deletes, identifier
+ * lookups and generic findObjects queries at a fixed rate.
+ * <p>
+ * The schedule is open loop: operation {@code i} is due at {@code start + i / rate}, whether or not the earlier
+ * operations have finished, and its latency is measured from when it was due. When the module cannot keep up,
+ * operations queue for the worker threads and the waiting shows in the latencies, instead of the load test quietly
+ * slowing down to the speed of the module (coordinated omission). Updates and deletes of one object are serialised,
+ * as Fedora does for writes to an object.
+ * </p>
+ * <p>
+ * Every report interval the throughput, p50, p99 and max latency of each operation and the backlog are printed, and
+ * the interval histograms are appended to {@code <out>-<operation>.hlog}, which the HdrHistogram tools can plot.
+ * The throughput over time goes to {@code <out>-throughput.csv}. At the end the latency distribution of each
+ * operation after warm-up is written to {@code <out>-<operation>.hgrm}. Run it with
+ * <pre>
+ * mvn -f benchmarks/pom.xml compile exec:java -Dexec.args="rate=500 duration=120 mix=update:10,delete:1,lookup:80,find:9"
+ * </pre>
+ * Settings are given as {@code name=value}, see {@link #DEFAULTS}.
+ * </p>
+ */
+public class FieldSearchLoadTest {
+
+    /**
+     * The settings and their defaults. Durations are in seconds, latencies are reported in milliseconds
+     */
+    public static final Map<String, String> DEFAULTS;
+
+    static {
+        Map<String, String> defaults = new LinkedHashMap<String, String>();
+        defaults.put("rate", "200");
+        defaults.put("duration", "60");
+        defaults.put("warmup", "10");
+        defaults.put("mix", "update:10,delete:1,lookup:80,find:9");
+        defaults.put("objects", "10000");
+        defaults.put("identifiers", "5");
+        defaults.put("threads", "32");
+        defaults.put("maxActive", "32");
+        defaults.put("indexDCFields", "true");
+        defaults.put("reportInterval", "1");
+        defaults.put("out", "loadtest");
+        DEFAULTS = Collections.unmodifiableMap(defaults);
+    }
+
+    private static final String[] FIND_FIELDS = {"pid", "label", "title"};
+
+    private static final int LOCK_STRIPES = 1024;
+
+    /**
+     * The operations of the mix
+     */
+    enum Operation {
+        UPDATE, DELETE, LOOKUP, FIND
+    }
+
+    private final SBFieldSearchModule fieldSearch;
+
+    private final int objects;
+
+    private final int identifiers;
+
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    private final Map<Operation, Recorder> recorders = new HashMap<Operation, Recorder>();
+
+    private final Map<Operation, AtomicLong> errors = new HashMap<Operation, AtomicLong>();
+
+    FieldSearchLoadTest(SBFieldSearchModule fieldSearch, int objects, int identifiers) {
+        this.fieldSearch = fieldSearch;
+        this.objects = objects;
+        this.identifiers = identifiers;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+        for (Operation operation : Operation.values()) {
+            recorders.put(operation, new Recorder(3));
+            errors.put(operation, new AtomicLong());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> settings = new LinkedHashMap<String, String>(DEFAULTS);
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split < 0 || !DEFAULTS.containsKey(arg.substring(0, split))) {
+                System.err.println("Unknown setting " + arg + ", the settings and defaults are " + DEFAULTS);
+                System.exit(1);
+            }
+            settings.put(arg.substring(0, split), arg.substring(split + 1));
+        }
+        System.out.println("Settings: " + settings);
+
+        int objects = Integer.parseInt(settings.get("objects"));
+        int identifiers = Integer.parseInt(settings.get("identifiers"));
+        int threads = Integer.parseInt(settings.get("threads"));
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("maxResults", "100");
+        params.put("maxSecondsPerSession", "60");
+        params.put("indexDCFields", settings.get("indexDCFields"));
+
+        ConnectionPool pool = FieldSearchDatabase.create(Integer.parseInt(settings.get("maxActive")));
+        try {
+            SBFieldSearchModule fieldSearch = StubServer.startFieldSearch(pool, identifiers, params);
+            FieldSearchLoadTest loadTest = new FieldSearchLoadTest(fieldSearch, objects, identifiers);
+            loadTest.load(threads);
+            loadTest.run(Double.parseDouble(settings.get("rate")), parseMix(settings.get("mix")), threads,
+                    Long.parseLong(settings.get("warmup")), Long.parseLong(settings.get("duration")),
+                    Long.parseLong(settings.get("reportInterval")), settings.get("out"));
+        } finally {
+            pool.close();
+        }
+    }
+
+    /**
+     * @param mix e.g. {@code update:10,lookup:90}
+     * @return the weight of each operation, in the order of {@link Operation}
+     */
+    static int[] parseMix(String mix) {
+        int[] weights = new int[Operation.values().length];
+        for (String part : mix.split(",")) {
+            String[] nameAndWeight = part.trim().split(":");
+            Operation operation = Operation.valueOf(nameAndWeight[0].trim().toUpperCase(Locale.ROOT));
+            weights[operation.ordinal()] = Integer.parseInt(nameAndWeight[1].trim());
+        }
+        return weights;
+    }
+
+    /**
+     * Add all objects before the measurement starts
+     */
+    void load(int threads) throws InterruptedException {
+        System.out.println("Loading " + objects + " objects with " + identifiers + " identifiers each");
+        long start = System.nanoTime();
+        ExecutorService loaders = Executors.newFixedThreadPool(threads);
+        for (int n = 0; n < objects; n++) {
+            final int object = n;
+            loaders.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        fieldSearch.update(SyntheticObjects.reader(object, identifiers));
+                    } catch (Exception e) {
+                        throw new IllegalStateException("Failed to load " + SyntheticObjects.pid(object), e);
+                    }
+                }
+            });
+        }
+        loaders.shutdown();
+        loaders.awaitTermination(1, TimeUnit.HOURS);
+        System.out.println("Loaded in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
+
+    void run(double rate, int[] weights, int threads, long warmupSeconds, long durationSeconds,
+             long reportIntervalSeconds, String out) throws Exception {
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        Reporter reporter = new Reporter(out, workers, TimeUnit.SECONDS.toNanos(warmupSeconds));
+        Thread reporting = new Thread(reporter, "LoadTestReporter");
+        reporting.setDaemon(true);
+
+        int totalWeight = 0;
+        for (int weight : weights) {
+            totalWeight += weight;
+        }
+        Operation[] operations = Operation.values();
+        Random random = new Random();
+        long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(warmupSeconds + durationSeconds);
+        reporter.start(start, TimeUnit.SECONDS.toNanos(reportIntervalSeconds));
+        reporting.start();
+        for (long i = 0; ; i++) {
+            long due = start + i * intervalNanos;
+            if (due >= end) {
+                break;
+            }
+            for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+                LockSupport.parkNanos(wait);
+            }
+            int pick = random.nextInt(totalWeight);
+            int o = 0;
+            while (pick >= weights[o]) {
+                pick -= weights[o++];
+            }
+            workers.execute(new Task(operations[o], random.nextInt(objects), random.nextInt(identifiers), due));
+        }
+        workers.shutdown();
+        workers.awaitTermination(1, TimeUnit.HOURS);
+        reporter.stop();
+        reporting.join();
+        // The last, partial interval holds the requests that completed after the last periodic report
+        reporter.report(System.nanoTime());
+        reporter.summarize();
+    }
+
+    private class Task implements Runnable {
+
+        private final Operation operation;
+
+        private final int object;
+
+        private final int identifier;
+
+        private final long due;
+
+        Task(Operation operation, int object, int identifier, long due) {
+            this.operation = operation;
+            this.object = object;
+            this.identifier = identifier;
+            this.due = due;
+        }
+
+        @Override
+        public void run() {
+            try {
+                switch (operation) {
+                    case UPDATE:
+                        synchronized (locks[object % LOCK_STRIPES]) {
+                            fieldSearch.update(SyntheticObjects.reader(object, identifiers));
+                        }
+                        break;
+                    case DELETE:
+                        synchronized (locks[object % LOCK_STRIPES]) {
+                            fieldSearch.delete(SyntheticObjects.pid(object));
+                        }
+                        break;
+                    case LOOKUP:
+                        fieldSearch.findObjects(SyntheticObjects.PID_ONLY, 1,
+                                SyntheticObjects.identifierQuery(object, identifier));
+                        break;
+                    case FIND:
+                        fieldSearch.findObjects(FIND_FIELDS, 10, new FieldSearchQuery(Collections.singletonList(
+                                new Condition("pid", Operator.EQUALS, SyntheticObjects.pid(object)))));
+                        break;
+                    default:
+                        throw new IllegalStateException("Unknown operation " + operation);
+                }
+            } catch (Exception e) {
+                if (errors.get(operation).incrementAndGet() <= 10) {
+                    System.err.println(operation + " of " + SyntheticObjects.pid(object) + " failed: " + e);
+                }
+            } finally {
+                recorders.get(operation).recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - due));
+            }
+        }
+    }
+
+    /**
+     * Collects the interval histograms, prints and logs them, and adds them to the totals once the warm-up is over
+     */
+    private class Reporter implements Runnable {
+
+        private final String out;
+
+        private final ThreadPoolExecutor workers;
+
+        private final long warmupNanos;
+
+        private final Map<Operation, Histogram> totals = new HashMap<Operation, Histogram>();
+
+        private final Map<Operation, HistogramLogWriter> logs = new HashMap<Operation, HistogramLogWriter>();
+
+        private final PrintStream throughput;
+
+        private volatile boolean running = true;
+
+        private long start;
+
+        private long intervalNanos;
+
+        private long last;
+
+        Reporter(String out, ThreadPoolExecutor workers, long warmupNanos) throws FileNotFoundException {
+            this.out = out;
+            this.workers = workers;
+            this.warmupNanos = warmupNanos;
+            List<String> columns = new ArrayList<String>();
+            columns.add("seconds");
+            for (Operation operation : Operation.values()) {
+                totals.put(operation, new Histogram(3));
+                HistogramLogWriter log = new HistogramLogWriter(file(operation, "hlog"));
+                log.outputLogFormatVersion();
+                log.outputStartTime(System.currentTimeMillis());
+                log.outputLegend();
+                logs.put(operation, log);
+                String name = operation.name().toLowerCase(Locale.ROOT);
+                columns.add(name + "_ops");
+                columns.add(name + "_p99_ms");
+            }
+            columns.add("backlog");
+            throughput = new PrintStream(new File(out + "-throughput.csv"));
+            throughput.println(join(columns));
+        }
+
+        void start(long start, long intervalNanos) {
+            this.start = start;
+            this.intervalNanos = intervalNanos;
+            this.last = start;
+        }
+
+        void stop() {
+            running = false;
+        }
+
+        @Override
+        public void run() {
+            long next = start + intervalNanos;
+            while (running) {
+                for (long wait = next - System.nanoTime(); wait > 0 && running; wait = next - System.nanoTime()) {
+                    LockSupport.parkNanos(Math.min(wait, TimeUnit.MILLISECONDS.toNanos(100)));
+                }
+                if (!running) {
+                    break;
+                }
+                report(next);
+                next += intervalNanos;
+            }
+        }
+
+        private void report(long now) {
+            double seconds = (now - start) / 1e9;
+            double elapsed = Math.max(now - last, 1) / 1e9;
+            last = now;
+            boolean warmup = now - start <= warmupNanos;
+            List<String> row = new ArrayList<String>();
+            row.add(String.format(Locale.ROOT, "%.0f", seconds));
+            StringBuilder line = new StringBuilder(String.format(Locale.ROOT, "%6.0fs%s", seconds,
+                    warmup ? " (warm-up)" : ""));
+            for (Operation operation : Operation.values()) {
+                Histogram interval = recorders.get(operation).getIntervalHistogram();
+                logs.get(operation).outputIntervalHistogram(interval);
+                if (!warmup) {
+                    totals.get(operation).add(interval);
+                }
+                double ops = interval.getTotalCount() / elapsed;
+                double p99 = interval.getValueAtPercentile(99) / 1000.0;
+                row.add(String.format(Locale.ROOT, "%.1f", ops));
+                row.add(String.format(Locale.ROOT, "%.3f", p99));
+                line.append(String.format(Locale.ROOT, "  %s %.0f/s p50=%.2fms p99=%.2fms max=%.2fms",
+                        operation.name().toLowerCase(Locale.ROOT), ops,
+                        interval.getValueAtPercentile(50) / 1000.0, p99, interval.getMaxValue() / 1000.0));
+            }
+            row.add(String.valueOf(workers.getQueue().size()));
+            line.append("  backlog=").append(workers.getQueue().size());
+            throughput.println(join(row));
+            System.out.println(line);
+        }
+
+        void summarize() throws FileNotFoundException {
+            throughput.close();
+            System.out.println();
+            System.out.println("Latency after warm-up (ms):");
+            for (Operation operation : Operation.values()) {
+                logs.get(operation).close();
+                Histogram total = totals.get(operation);
+                System.out.println(String.format(Locale.ROOT,
+                        "%-7s count=%d errors=%d mean=%.3f p50=%.3f p90=%.3f p99=%.3f p99.9=%.3f max=%.3f",
+                        operation.name().toLowerCase(Locale.ROOT), total.getTotalCount(),
+                        errors.get(operation).get(), total.getMean() / 1000.0,
+                        total.getValueAtPercentile(50) / 1000.0, total.getValueAtPercentile(90) / 1000.0,
+                        total.getValueAtPercentile(99) / 1000.0, total.getValueAtPercentile(99.9) / 1000.0,
+                        total.getMaxValue() / 1000.0));
+                PrintStream distribution = new PrintStream(file(operation, "hgrm"));
+                try {
+                    total.outputPercentileDistribution(distribution, 1000.0);
+                } finally {
+                    distribution.close();
+                }
+            }
+        }
+
+        private File file(Operation operation, String extension) {
+            return new File(out + "-" + operation.name().toLowerCase(Locale.ROOT) + "." + extension);
+        }
+    }
+
+    private static String join(List<String> values) {
+        StringBuilder joined = new StringBuilder();
+        for (String value : values) {
+            if (joined.length() > 0) {
+                joined.append(',');
+            }
+            joined.append(value);
+        }
+        return joined.toString();
+    }
+}
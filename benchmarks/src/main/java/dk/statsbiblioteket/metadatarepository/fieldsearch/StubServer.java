@@ -0,0 +1,73 @@
+package dk.statsbiblioteket.metadatarepository.fieldsearch;
+
+import org.fcrepo.server.Context;
+import org.fcrepo.server.Module;
+import org.fcrepo.server.Server;
+import org.fcrepo.server.errors.ModuleInitializationException;
+import org.fcrepo.server.errors.ServerException;
+import org.fcrepo.server.storage.ConnectionPool;
+import org.fcrepo.server.storage.ConnectionPoolManager;
+import org.fcrepo.server.storage.DOManager;
+import org.fcrepo.server.storage.DOReader;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.Map;
+
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyBoolean;
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Starts {@link SBFieldSearchModule} outside a Fedora server. The server is a stub that only knows a
+ * ConnectionPoolManager, handing out the given pool, and a DOManager, reading {@link SyntheticObjects}. The stubs
+ * do not record their invocations, so they can serve a long load test.
+ */
+public class StubServer {
+
+    public static final String FIELD_SEARCH_ROLE = "org.fcrepo.server.search.FieldSearch";
+
+    private static final String CONNECTION_POOL_MANAGER_ROLE = "org.fcrepo.server.storage.ConnectionPoolManager";
+
+    private static final String DO_MANAGER_ROLE = "org.fcrepo.server.storage.DOManager";
+
+    private StubServer() {
+    }
+
+    /**
+     * @param pool the pool the module works on, with the field search tables
+     * @param identifiers the number of DC identifiers of the objects the DOManager reads
+     * @param params the module parameters, as in fedora.fcfg, e.g. maxResults and maxSecondsPerSession
+     * @return the module, initialised as the server would
+     * @throws ServerException if the stubs could not be set up
+     * @throws ModuleInitializationException if the module failed to initialise
+     */
+    public static SBFieldSearchModule startFieldSearch(ConnectionPool pool, final int identifiers,
+                                                       Map<String, String> params)
+            throws ServerException, ModuleInitializationException {
+        Module poolManager = mock(Module.class, withSettings().stubOnly()
+                .extraInterfaces(ConnectionPoolManager.class));
+        when(((ConnectionPoolManager) poolManager).getPool()).thenReturn(pool);
+
+        Module doManager = mock(Module.class, withSettings().stubOnly().extraInterfaces(DOManager.class));
+        when(((DOManager) doManager).getReader(anyBoolean(), any(Context.class), anyString())).thenAnswer(
+                new Answer<DOReader>() {
+                    @Override
+                    public DOReader answer(InvocationOnMock invocation) {
+                        String pid = (String) invocation.getArguments()[2];
+                        return SyntheticObjects.reader(SyntheticObjects.number(pid), identifiers);
+                    }
+                });
+
+        Server server = mock(Server.class, withSettings().stubOnly());
+        when(server.getModule(CONNECTION_POOL_MANAGER_ROLE)).thenReturn(poolManager);
+        when(server.getModule(DO_MANAGER_ROLE)).thenReturn(doManager);
+
+        SBFieldSearchModule module = new SBFieldSearchModule(params, server, FIELD_SEARCH_ROLE);
+        module.postInitModule();
+        return module;
+    }
+}
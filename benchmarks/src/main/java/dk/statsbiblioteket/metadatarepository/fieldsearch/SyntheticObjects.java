@@ -0,0 +1,136 @@
+package dk.statsbiblioteket.metadatarepository.fieldsearch;
+
+import org.fcrepo.server.errors.QueryParseException;
+import org.fcrepo.server.search.Condition;
+import org.fcrepo.server.search.FieldSearchQuery;
+import org.fcrepo.server.search.Operator;
+import org.fcrepo.server.storage.DOReader;
+import org.fcrepo.server.storage.types.DatastreamXMLMetadata;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Date;
+
+/**
+ * Generates objects for the field search benchmarks. Object {@code n} has the PID {@code bench:n} and a DC
+ * datastream with the identifiers {@link #identifier(int, int)} for 0 up to the number of identifiers, so any
+ * identifier can be looked up again without keeping the objects around.
+ */
+public class SyntheticObjects {
+
+    public static final String[] PID_ONLY = {"pid"};
+
+    private static final Date CREATED = new Date(1262304000000L);
+
+    private SyntheticObjects() {
+    }
+
+    public static String pid(int n) {
+        return "bench:" + n;
+    }
+
+    /**
+     * @param pid a PID made by {@link #pid(int)}
+     * @return the number of the object
+     */
+    public static int number(String pid) {
+        return Integer.parseInt(pid.substring(pid.indexOf(':') + 1));
+    }
+
+    public static String identifier(int n, int i) {
+        return "uuid:00000000-0000-0000-" + String.format("%04d", i % 10000) + "-" + String.format("%012d", n);
+    }
+
+    /**
+     * @param n the number of the object
+     * @param identifiers the number of DC identifiers of the object
+     * @return a reader for the object, answering what the field search reads: the PID, owner, label, state, dates
+     * and the DC datastream. Everything else is null, false or 0
+     */
+    public static DOReader reader(int n, int identifiers) {
+        return (DOReader) Proxy.newProxyInstance(SyntheticObjects.class.getClassLoader(),
+                new Class<?>[]{DOReader.class}, new SyntheticReader(n, dc(n, identifiers)));
+    }
+
+    /**
+     * @return a query the field search answers from the doIdentifiers table, when asked for {@link #PID_ONLY}
+     */
+    public static FieldSearchQuery identifierQuery(int n, int i) throws QueryParseException {
+        return new FieldSearchQuery(Collections.singletonList(new Condition("identifier", Operator.EQUALS,
+                identifier(n, i))));
+    }
+
+    private static DatastreamXMLMetadata dc(int n, int identifiers) {
+        StringBuilder xml = new StringBuilder(256 + identifiers * 64);
+        xml.append("<oai_dc:dc xmlns:oai_dc=\"http://www.openarchives.org/OAI/2.0/oai_dc/\"")
+           .append(" xmlns:dc=\"http://purl.org/dc/elements/1.1/\">\n")
+           .append("  <dc:title>Object ").append(n).append("</dc:title>\n");
+        for (int i = 0; i < identifiers; i++) {
+            xml.append("  <dc:identifier>").append(identifier(n, i)).append("</dc:identifier>\n");
+        }
+        xml.append("</oai_dc:dc>\n");
+        DatastreamXMLMetadata dc = new DatastreamXMLMetadata("UTF-8");
+        dc.DatastreamID = "DC";
+        dc.DSVersionID = "DC1.0";
+        dc.DSControlGrp = "X";
+        dc.DSMIME = "text/xml";
+        dc.DSState = "A";
+        dc.DSCreateDT = CREATED;
+        dc.xmlContent = xml.toString().getBytes(StandardCharsets.UTF_8);
+        dc.DSSize = dc.xmlContent.length;
+        return dc;
+    }
+
+    private static class SyntheticReader implements InvocationHandler {
+
+        private final int n;
+
+        private final DatastreamXMLMetadata dc;
+
+        SyntheticReader(int n, DatastreamXMLMetadata dc) {
+            this.n = n;
+            this.dc = dc;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "GetObjectPID":
+                    return pid(n);
+                case "getOwnerId":
+                    return "fedoraAdmin";
+                case "GetObjectLabel":
+                    return "Object " + n;
+                case "GetObjectState":
+                    return "A";
+                case "getCreateDate":
+                case "getLastModDate":
+                    return CREATED;
+                case "GetDatastream":
+                    return "DC".equals(args[0]) ? dc : null;
+                case "toString":
+                    return "SyntheticReader[" + pid(n) + "]";
+                case "hashCode":
+                    return n;
+                case "equals":
+                    return proxy == args[0];
+                default:
+                    return defaultValue(method.getReturnType());
+            }
+        }
+
+        private static Object defaultValue(Class<?> type) {
+            if (type == boolean.class) {
+                return false;
+            } else if (type == int.class) {
+                return 0;
+            } else if (type == long.class) {
+                return 0L;
+            }
+            return null;
+        }
+    }
+}
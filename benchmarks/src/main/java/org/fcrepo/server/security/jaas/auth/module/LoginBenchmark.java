@@ -0,0 +1,176 @@
+package org.fcrepo.server.security.jaas.auth.module;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.security.auth.Subject;
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.callback.PasswordCallback;
+import javax.security.auth.login.LoginException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput and latency of a full JAAS login ({@code initialize}, {@code login}, {@code commit}) against
+ * {@link XmlUsersFileModule}, for random users out of a generated users file.
+ * <p>
+ * The module reads the users file from FEDORA_HOME, which is fixed when the Fedora constants are first loaded, so
+ * the setup points the {@code fedora.home} system property at a temporary directory before the module is touched.
+ * Every parameter combination runs in its own fork, so each gets a fresh module. The {@code reload} group logs in
+ * while another thread replaces the users file, to measure the cost of background reloads on the login path.
+ * </p>
+ * <p>
+ * Use {@link LoginBenchmarkRunner} to run the logins at 1 to 64 threads with the GC profiler.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+public class LoginBenchmark {
+
+    @Param({"100", "1000", "10000", "100000"})
+    int users;
+
+    @Param({"PLAIN", "SSHA256", "PBKDF2"})
+    UsersFiles.PasswordFormat passwords;
+
+    /*
+     * 0 to leave the authCacheSize option out. Hashed passwords are cached regardless
+     */
+    @Param({"0", "10000"})
+    int authCacheSize;
+
+    @Param({"1000"})
+    long reloadIntervalMillis;
+
+    private File home;
+
+    private File usersFile;
+
+    private Map<String, String> options;
+
+    private boolean grown = false;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        home = Files.createTempDirectory("fedora-home").toFile();
+        File config = new File(home, "server/config");
+        if (!config.mkdirs()) {
+            throw new IOException("Failed to create " + config);
+        }
+        usersFile = new File(config, "fedora-users.xml");
+        UsersFiles.write(usersFile, users, passwords);
+        System.setProperty("fedora.home", home.getAbsolutePath());
+        options = new HashMap<String, String>();
+        if (authCacheSize > 0) {
+            options.put("authCacheSize", String.valueOf(authCacheSize));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        File[] files = usersFile.getParentFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        usersFile.getParentFile().delete();
+        usersFile.getParentFile().getParentFile().delete();
+        home.delete();
+    }
+
+    @Benchmark
+    public boolean login(Credentials credentials) throws LoginException {
+        return logIn(credentials.next(users));
+    }
+
+    @Benchmark
+    @Group("reload")
+    @GroupThreads(3)
+    public boolean loginDuringReload(Credentials credentials) throws LoginException {
+        return logIn(credentials.next(users));
+    }
+
+    /**
+     * Replace the users file the way an editor or deployment would, alternating between two versions so every
+     * replacement is a change, and wait for the next reload
+     */
+    @Benchmark
+    @Group("reload")
+    @GroupThreads(1)
+    public void replaceUsersFile() throws IOException, InterruptedException {
+        grown = !grown;
+        File next = new File(usersFile.getParentFile(), "fedora-users.xml.new");
+        UsersFiles.write(next, grown ? users + 1 : users, passwords);
+        Files.move(next.toPath(), usersFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        Thread.sleep(reloadIntervalMillis);
+    }
+
+    private boolean logIn(Credentials credentials) throws LoginException {
+        XmlUsersFileModule module = new XmlUsersFileModule();
+        Subject subject = new Subject();
+        module.initialize(subject, credentials, Collections.<String, Object>emptyMap(), options);
+        if (!module.login() || !module.commit()) {
+            throw new IllegalStateException("Login failed for " + credentials.username);
+        }
+        return !subject.getPrincipals().isEmpty();
+    }
+
+    /**
+     * The credentials of a random user, one instance per benchmark thread
+     */
+    @State(Scope.Thread)
+    public static class Credentials implements CallbackHandler {
+
+        private final Random random = new Random();
+
+        private String username;
+
+        private char[] password;
+
+        Credentials next(int users) {
+            int n = random.nextInt(users);
+            username = UsersFiles.username(n);
+            password = UsersFiles.password(n).toCharArray();
+            return this;
+        }
+
+        @Override
+        public void handle(Callback[] callbacks) {
+            for (Callback callback : callbacks) {
+                if (callback instanceof NameCallback) {
+                    ((NameCallback) callback).setName(username);
+                } else if (callback instanceof PasswordCallback) {
+                    ((PasswordCallback) callback).setPassword(password);
+                }
+            }
+        }
+    }
+}
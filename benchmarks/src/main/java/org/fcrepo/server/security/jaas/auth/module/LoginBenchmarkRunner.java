@@ -0,0 +1,36 @@
+package org.fcrepo.server.security.jaas.auth.module;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs {@link LoginBenchmark#login} at 1, 2, 4, ... 64 threads with the GC profiler, which reports the allocation
+ * rate per login, and writes the results of each thread count to {@code login-<threads>.json}. Other JMH command
+ * line options, e.g. {@code -p users=100000}, are passed on. Run it with
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar org.fcrepo.server.security.jaas.auth.module.LoginBenchmarkRunner
+ * </pre>
+ */
+public class LoginBenchmarkRunner {
+
+    private static final int MAX_THREADS = 64;
+
+    public static void main(String[] args) throws Exception {
+        Options commandLine = new CommandLineOptions(args);
+        for (int threads = 1; threads <= MAX_THREADS; threads *= 2) {
+            Options options = new OptionsBuilder()
+                    .parent(commandLine)
+                    .include(LoginBenchmark.class.getName() + ".login$")
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result("login-" + threads + ".json")
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
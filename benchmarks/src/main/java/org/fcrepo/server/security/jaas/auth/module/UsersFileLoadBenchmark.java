@@ -0,0 +1,101 @@
+package org.fcrepo.server.security.jaas.auth.module;
+
+import org.fcrepo.server.security.jaas.util.DataUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to load a users file, as done on every reload, and the heap retained by the loaded users.
+ * <p>
+ * {@link #loadDom()} parses the file into a DOM the way the module used to, as a baseline. The retained heap of
+ * both forms is measured once per trial, outside the timed part, and printed with the results.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+public class UsersFileLoadBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    int users;
+
+    private File file;
+
+    // the object being measured, reachable through a field so the collector cannot drop it early
+    private Object retained;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        file = UsersFiles.generate(users);
+    }
+
+    @TearDown(Level.Trial)
+    public void reportRetainedHeap() throws Exception {
+        long compact = retainedBytes(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return XmlUsers.load(file);
+            }
+        });
+        long dom = retainedBytes(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return DataUtils.getDocumentFromFile(file);
+            }
+        });
+        System.out.printf("%nRetained heap for %d users (file %d KB): compact %d KB, DOM %d KB%n", users,
+                file.length() / 1024, compact / 1024, dom / 1024);
+        file.delete();
+    }
+
+    @Benchmark
+    public XmlUsers load() throws Exception {
+        return XmlUsers.load(file);
+    }
+
+    @Benchmark
+    public Document loadDom() throws Exception {
+        return DataUtils.getDocumentFromFile(file);
+    }
+
+    /*
+     * Heap in use after a full collection while the loaded object is reachable, less the heap in use before
+     */
+    private long retainedBytes(Callable<Object> loader) throws Exception {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long before = usedAfterGc(memory);
+        retained = loader.call();
+        long after = usedAfterGc(memory);
+        retained = null;
+        return after - before;
+    }
+
+    private static long usedAfterGc(MemoryMXBean memory) throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
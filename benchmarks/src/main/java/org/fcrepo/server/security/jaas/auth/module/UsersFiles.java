@@ -0,0 +1,123 @@
+package org.fcrepo.server.security.jaas.auth.module;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.xml.bind.DatatypeConverter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Generates synthetic fedora-users.xml files for the benchmarks.
+ * <p>
+ * User {@code user<n>} has the password {@link #password(int)}, two roles out of a small set and a group, so that
+ * attribute names and values repeat the way they do in real files. There are only a few distinct passwords, so
+ * files with hashed passwords can be generated quickly; each distinct password is hashed once.
+ * </p>
+ */
+class UsersFiles {
+
+    /**
+     * How the passwords are stored in a generated file
+     */
+    enum PasswordFormat {
+        PLAIN, SSHA256, PBKDF2
+    }
+
+    private static final int ROLES = 10;
+
+    private static final int GROUPS = 100;
+
+    private static final int PASSWORDS = 100;
+
+    private static final int PBKDF2_ITERATIONS = 10000;
+
+    private static final byte[] SALT = "fedora-users-benchmark".getBytes();
+
+    private UsersFiles() {
+    }
+
+    static String username(int n) {
+        return "user" + n;
+    }
+
+    static String password(int n) {
+        return "password" + (n % PASSWORDS);
+    }
+
+    /**
+     * @param users the number of users in the file
+     * @return a new temporary file with plain text passwords, deleted on exit
+     * @throws IOException if the file could not be written
+     */
+    static File generate(int users) throws IOException {
+        File file = File.createTempFile("fedora-users-" + users + "-", ".xml");
+        file.deleteOnExit();
+        write(file, users, PasswordFormat.PLAIN);
+        return file;
+    }
+
+    /**
+     * @param file the file to write
+     * @param users the number of users in the file
+     * @param format how the passwords are stored
+     * @throws IOException if the file could not be written
+     */
+    static void write(File file, int users, PasswordFormat format) throws IOException {
+        String[] passwords = new String[Math.min(users, PASSWORDS)];
+        for (int n = 0; n < passwords.length; n++) {
+            passwords[n] = store(password(n), format);
+        }
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            out.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+            out.println("<users>");
+            for (int n = 0; n < users; n++) {
+                out.println("  <user name=\"" + username(n) + "\" password=\"" + passwords[n % PASSWORDS] + "\">");
+                out.println("    <attribute name=\"fedoraRole\">");
+                out.println("      <value>role" + (n % ROLES) + "</value>");
+                out.println("      <value>role" + ((n + 1) % ROLES) + "</value>");
+                out.println("    </attribute>");
+                out.println("    <attribute name=\"group\">");
+                out.println("      <value>group" + (n % GROUPS) + "</value>");
+                out.println("    </attribute>");
+                out.println("  </user>");
+            }
+            out.println("</users>");
+        } finally {
+            out.close();
+        }
+        if (out.checkError()) {
+            throw new IOException("Failed to write " + file);
+        }
+    }
+
+    private static String store(String password, PasswordFormat format) throws IOException {
+        try {
+            switch (format) {
+                case SSHA256:
+                    MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                    digest.update(password.getBytes("UTF-8"));
+                    digest.update(SALT);
+                    byte[] hash = digest.digest();
+                    byte[] salted = Arrays.copyOf(hash, hash.length + SALT.length);
+                    System.arraycopy(SALT, 0, salted, hash.length, SALT.length);
+                    return "{SSHA256}" + DatatypeConverter.printBase64Binary(salted);
+                case PBKDF2:
+                    PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), SALT, PBKDF2_ITERATIONS, 160);
+                    byte[] key = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1").generateSecret(spec).getEncoded();
+                    return "{PBKDF2}" + PBKDF2_ITERATIONS + "$" + DatatypeConverter.printBase64Binary(SALT) + "$"
+                           + DatatypeConverter.printBase64Binary(key);
+                default:
+                    return password;
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to hash password", e);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package org.fcrepo.server.storage;
+
+import dk.statsbiblioteket.metadatarepository.fieldsearch.FieldSearchDatabase;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput and latency of borrowing a connection from {@link ConnectionPool} and freeing it again, with a mix
+ * of {@link ConnectionPool#getReadOnlyConnection()} and {@link ConnectionPool#getReadWriteConnection()}.
+ * <p>
+ * With the {@code noop} database the connections come from {@link NoopDriver}, so the results are the overhead of
+ * the pool itself, including the read-only toggling when a connection is borrowed for the other kind of use than
+ * last time. With {@code derby} the connections are embedded Derby connections, whose read-only changes and
+ * validation queries are real. The pool has {@code maxActive} connections and borrowers block when all are in
+ * use; see {@link ConnectionPoolExhaustionBenchmark} for the other exhaustion actions.
+ * </p>
+ * <p>
+ * Use {@link ConnectionPoolBenchmarkRunner} to run at 1 to 256 threads with the GC profiler.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgs = {"-Xms1g", "-Xmx1g"})
+public class ConnectionPoolBenchmark {
+
+    @Param({"noop", "derby"})
+    String database;
+
+    /*
+     * The percentage of borrows that are read-only
+     */
+    @Param({"100", "90", "50", "0"})
+    int readPercent;
+
+    @Param({"false", "true"})
+    boolean testOnBorrow;
+
+    @Param({"32"})
+    int maxActive;
+
+    /*
+     * Busy work done while holding the connection, in Blackhole.consumeCPU tokens
+     */
+    @Param({"0"})
+    long work;
+
+    private ConnectionPool pool;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        pool = createPool(database, maxActive, testOnBorrow, (byte) 1);
+        NoopDriver.resetCounts();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        long borrows = pool.getReadOnlyLane().getBorrowCount() + pool.getReadWriteLane().getBorrowCount();
+        System.out.println();
+        System.out.println("Pool: " + pool);
+        if (database.equals("noop") && borrows > 0) {
+            System.out.println("Read-only changes per borrow: "
+                               + (double) NoopDriver.getReadOnlyChangeCount() / borrows);
+        }
+        pool.close();
+    }
+
+    @Benchmark
+    public boolean borrowAndFree(Borrower borrower) throws SQLException {
+        boolean readOnly = borrower.random.nextInt(100) < readPercent;
+        Connection conn = readOnly ? pool.getReadOnlyConnection() : pool.getReadWriteConnection();
+        try {
+            if (work > 0) {
+                Blackhole.consumeCPU(work);
+            }
+            return conn.isReadOnly();
+        } finally {
+            pool.free(conn);
+        }
+    }
+
+    /**
+     * @param database {@code noop} or {@code derby}
+     * @param maxActive the maximum number of connections
+     * @param testOnBorrow whether the validation query is run on every borrow
+     * @param whenExhaustedAction 0 to fail, 1 to block and 2 to grow when all connections are in use
+     * @return a pool configured as {@link ConnectionPoolManagerImpl} would, without extra properties
+     * @throws SQLException if the pool could not be created
+     */
+    static ConnectionPool createPool(String database, int maxActive, boolean testOnBorrow, byte whenExhaustedAction)
+            throws SQLException {
+        ConnectionPool pool;
+        if (database.equals("derby")) {
+            pool = FieldSearchDatabase.createPool(maxActive, testOnBorrow, whenExhaustedAction);
+        } else if (database.equals("noop")) {
+            pool = new ConnectionPool(NoopDriver.class.getName(), NoopDriver.URL_PREFIX + "bench", "fedoraAdmin",
+                    "fedoraAdmin", maxActive, maxActive, 10000, Math.min(maxActive, 8), 300000, 0, -1,
+                    FieldSearchDatabase.VALIDATION_QUERY, testOnBorrow, false, false, whenExhaustedAction);
+        } else {
+            throw new IllegalArgumentException("Unknown database " + database);
+        }
+        pool.setConnectionProperties(Collections.<String, String>emptyMap());
+        return pool;
+    }
+
+    @State(Scope.Thread)
+    public static class Borrower {
+
+        private final Random random = new Random();
+    }
+}
@@ -0,0 +1,37 @@
+package org.fcrepo.server.storage;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs {@link ConnectionPoolBenchmark} and {@link ConnectionPoolExhaustionBenchmark} at 1, 2, 4, ... 256 threads
+ * with the GC profiler, and writes the results of each thread count to {@code pool-<threads>.json}. Other JMH
+ * command line options, e.g. {@code -p database=noop}, are passed on. Run it with
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar org.fcrepo.server.storage.ConnectionPoolBenchmarkRunner
+ * </pre>
+ */
+public class ConnectionPoolBenchmarkRunner {
+
+    private static final int MAX_THREADS = 256;
+
+    public static void main(String[] args) throws Exception {
+        Options commandLine = new CommandLineOptions(args);
+        for (int threads = 1; threads <= MAX_THREADS; threads *= 2) {
+            Options options = new OptionsBuilder()
+                    .parent(commandLine)
+                    .include(ConnectionPoolBenchmark.class.getName() + "\\.")
+                    .include(ConnectionPoolExhaustionBenchmark.class.getName() + "\\.")
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result("pool-" + threads + ".json")
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.fcrepo.server.storage;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Borrowers holding connections for a while from a small {@link ConnectionPool}, so that with more threads than
+ * {@code maxActive} the pool is exhausted, under each {@code whenExhaustedAction}: 0 to fail, 1 to block and 2 to
+ * grow.
+ * <p>
+ * A borrow that throws is counted as {@code failed} rather than ending the run, next to the {@code borrowed} count,
+ * and the latency distribution shows how long borrowers wait. The pool statistics, including the number of
+ * connections opened, are printed after each trial.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xms1g", "-Xmx1g"})
+public class ConnectionPoolExhaustionBenchmark {
+
+    @Param({"noop", "derby"})
+    String database;
+
+    @Param({"0", "1", "2"})
+    byte whenExhaustedAction;
+
+    @Param({"8"})
+    int maxActive;
+
+    /*
+     * How long a borrower holds its connection, standing in for a query
+     */
+    @Param({"200"})
+    long holdMicros;
+
+    private ConnectionPool pool;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        pool = ConnectionPoolBenchmark.createPool(database, maxActive, false, whenExhaustedAction);
+        NoopDriver.resetCounts();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.out.println();
+        System.out.println("Pool: " + pool);
+        if (database.equals("noop")) {
+            System.out.println("Connections opened: " + NoopDriver.getConnectCount());
+        }
+        pool.close();
+    }
+
+    @Benchmark
+    public void borrowAndHold(Outcomes outcomes) {
+        Connection conn;
+        try {
+            conn = pool.getReadWriteConnection();
+        } catch (SQLException e) {
+            outcomes.failed++;
+            return;
+        }
+        try {
+            outcomes.borrowed++;
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(holdMicros));
+        } finally {
+            pool.free(conn);
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Outcomes {
+
+        public long borrowed;
+
+        public long failed;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            borrowed = 0;
+            failed = 0;
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package org.fcrepo.server.storage;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * A JDBC driver for {@code jdbc:noop:} URLs, whose connections do nothing and answer at once. Pooling it measures
+ * the overhead of {@link ConnectionPool} and DBCP without any database latency.
+ * <p>
+ * Connections remember their read-only, auto-commit and closed state. Every query returns a single row, so
+ * validation queries succeed, and updates report one row. The driver counts opened connections and calls that
+ * actually change the read-only state.
+ * </p>
+ */
+public class NoopDriver implements Driver {
+
+    public static final String URL_PREFIX = "jdbc:noop:";
+
+    private static final AtomicLong connects = new AtomicLong();
+
+    private static final AtomicLong readOnlyChanges = new AtomicLong();
+
+    static {
+        try {
+            DriverManager.registerDriver(new NoopDriver());
+        } catch (SQLException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    public static long getConnectCount() {
+        return connects.get();
+    }
+
+    public static long getReadOnlyChangeCount() {
+        return readOnlyChanges.get();
+    }
+
+    public static void resetCounts() {
+        connects.set(0);
+        readOnlyChanges.set(0);
+    }
+
+    @Override
+    public Connection connect(String url, Properties info) throws SQLException {
+        if (!acceptsURL(url)) {
+            return null;
+        }
+        connects.incrementAndGet();
+        return proxy(Connection.class, new NoopConnection());
+    }
+
+    @Override
+    public boolean acceptsURL(String url) {
+        return url != null && url.startsWith(URL_PREFIX);
+    }
+
+    @Override
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+        return new DriverPropertyInfo[0];
+    }
+
+    @Override
+    public int getMajorVersion() {
+        return 1;
+    }
+
+    @Override
+    public int getMinorVersion() {
+        return 0;
+    }
+
+    @Override
+    public boolean jdbcCompliant() {
+        return false;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(NoopDriver.class.getClassLoader(), new Class<?>[]{type}, handler));
+    }
+
+    /*
+     * The answer of a method nobody cares about
+     */
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == double.class) {
+            return 0d;
+        } else if (type == float.class) {
+            return 0f;
+        } else if (type == short.class) {
+            return (short) 0;
+        } else if (type == byte.class) {
+            return (byte) 0;
+        }
+        return null;
+    }
+
+    private static Object identity(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            default:
+                return proxy.getClass().getInterfaces()[0].getSimpleName() + "@"
+                       + Integer.toHexString(System.identityHashCode(proxy));
+        }
+    }
+
+    private static boolean isObjectMethod(Method method) {
+        return method.getDeclaringClass() == Object.class;
+    }
+
+    private static class NoopConnection implements InvocationHandler {
+
+        private volatile boolean readOnly = false;
+
+        private volatile boolean autoCommit = true;
+
+        private volatile boolean closed = false;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws SQLException {
+            if (isObjectMethod(method)) {
+                return identity(proxy, method, args);
+            }
+            switch (method.getName()) {
+                case "close":
+                    closed = true;
+                    return null;
+                case "isClosed":
+                    return closed;
+                case "isValid":
+                    return !closed;
+                case "isReadOnly":
+                    return readOnly;
+                case "setReadOnly":
+                    if (readOnly != (Boolean) args[0]) {
+                        readOnlyChanges.incrementAndGet();
+                        readOnly = (Boolean) args[0];
+                    }
+                    return null;
+                case "getAutoCommit":
+                    return autoCommit;
+                case "setAutoCommit":
+                    autoCommit = (Boolean) args[0];
+                    return null;
+                case "getTransactionIsolation":
+                    return Connection.TRANSACTION_READ_COMMITTED;
+                case "createStatement":
+                    checkOpen();
+                    return proxy(Statement.class, new NoopStatement(proxy));
+                case "prepareStatement":
+                    checkOpen();
+                    return proxy(PreparedStatement.class, new NoopStatement(proxy));
+                default:
+                    return defaultValue(method.getReturnType());
+            }
+        }
+
+        private void checkOpen() throws SQLException {
+            if (closed) {
+                throw new SQLException("Connection is closed");
+            }
+        }
+    }
+
+    private static class NoopStatement implements InvocationHandler {
+
+        private final Object connection;
+
+        NoopStatement(Object connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if (isObjectMethod(method)) {
+                return identity(proxy, method, args);
+            }
+            switch (method.getName()) {
+                case "getConnection":
+                    return connection;
+                case "executeQuery":
+                case "getResultSet":
+                    return proxy(ResultSet.class, new NoopResultSet(proxy));
+                case "execute":
+                    return true;
+                case "executeUpdate":
+                case "getUpdateCount":
+                    return 1;
+                default:
+                    return defaultValue(method.getReturnType());
+            }
+        }
+    }
+
+    private static class NoopResultSet implements InvocationHandler {
+
+        private final Object statement;
+
+        private int row = 0;
+
+        NoopResultSet(Object statement) {
+            this.statement = statement;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if (isObjectMethod(method)) {
+                return identity(proxy, method, args);
+            }
+            switch (method.getName()) {
+                case "next":
+                    return ++row == 1;
+                case "getStatement":
+                    return statement;
+                case "getString":
+                    return "1";
+                case "getInt":
+                    return 1;
+                default:
+                    return defaultValue(method.getReturnType());
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package dk.statsbiblioteket.metadatarepository.fedoranobjectpolicy;
+
+import com.sun.xacml.AbstractPolicy;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of parsed object policies, in least recently used order.
+ * <p>
+ * Objects without a POLICY datastream are cached as well, as entries without a policy. Every entry remembers the
+ * last modification date of the object it was read from, and is only used while the object has that date, so
+ * modifying an object invalidates its entry.
+ * </p>
+ */
+class ObjectPolicyCache {
+
+    private final int maxSize;
+
+    private final Map<String, Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    ObjectPolicyCache(final int maxSize) {
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > ObjectPolicyCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param pid the object
+     * @param lastModified the current last modification date of the object
+     * @param validate whether the policy must have been schema validated
+     * @return the cached entry, or null if the object must be read
+     */
+    Entry get(String pid, long lastModified, boolean validate) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(pid);
+        }
+        if (entry == null || entry.lastModified != lastModified || (validate && !entry.validated)) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry;
+    }
+
+    /**
+     * @param pid the object
+     * @param lastModified the last modification date of the object the policy was read from
+     * @param validated whether the policy was schema validated
+     * @param policy the parsed policy, or null if the object has no policy
+     */
+    void put(String pid, long lastModified, boolean validated, AbstractPolicy policy) {
+        synchronized (entries) {
+            entries.put(pid, new Entry(lastModified, validated, policy));
+        }
+    }
+
+    /**
+     * Forget the policy of an object
+     * @param pid the object
+     */
+    void invalidate(String pid) {
+        synchronized (entries) {
+            entries.remove(pid);
+        }
+    }
+
+    void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+    long getMissCount() {
+        return misses.get();
+    }
+
+    static class Entry {
+
+        private final long lastModified;
+
+        private final boolean validated;
+
+        private final AbstractPolicy policy;
+
+        Entry(long lastModified, boolean validated, AbstractPolicy policy) {
+            this.lastModified = lastModified;
+            this.validated = validated;
+            this.policy = policy;
+        }
+
+        /**
+         * @return the policy, or null if the object has no policy
+         */
+        AbstractPolicy getPolicy() {
+            return policy;
+        }
+    }
+}
@@ -1,25 +1,408 @@
 package dk.statsbiblioteket.metadatarepository.fedoranobjectpolicy;
 
 import com.sun.xacml.AbstractPolicy;
+import org.fcrepo.server.ReadOnlyContext;
+import org.fcrepo.server.errors.ObjectNotInLowlevelStorageException;
 import org.fcrepo.server.errors.ServerException;
+import org.fcrepo.server.errors.ValidationException;
 import org.fcrepo.server.security.PolicyParser;
 import org.fcrepo.server.security.impl.SimplePolicyLoader;
+import org.fcrepo.server.storage.DOReader;
 import org.fcrepo.server.storage.RepositoryReader;
+import org.fcrepo.server.storage.types.Datastream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
 /**
- * Created with IntelliJ IDEA.
- * User: abr
- * Date: 6/11/13
- * Time: 11:02 AM
- * To change this template use File | Settings | File Templates.
+ * Policy loader that only loads object policies for selected objects.
+ * <p>
+ * Reading the POLICY datastream of every object on every authorization is too expensive, so by default no object
+ * policies are loaded. Objects whose PID matches one of the configured object policy patterns do get their POLICY
+ * datastream loaded. The parsed policies of those objects, and the fact that an object has no policy, are kept in
+ * a bounded cache until the object is modified.
+ * </p>
+ * <p>
+ * Repository-wide policies are cached as parsed policies, keyed by file and a digest of the file content, so a
+ * reload of the policies only parses the files that have changed. A policy parsed without validation is parsed
+ * again the first time it is loaded with validation. Changed policies are parsed in parallel, and the policy set
+ * is assembled in file order, so it comes out the same whatever order the parsing finishes in.
+ * </p>
  */
 public class SBPolicyLoader extends SimplePolicyLoader {
+
+    private static final Logger logger = LoggerFactory.getLogger(SBPolicyLoader.class);
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    private static final String POLICY_DATASTREAM = "POLICY";
+
+    private static final int DEFAULT_OBJECT_POLICY_CACHE_SIZE = 10000;
+
+    private static final ThreadFactory WORKER_THREADS = new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "SBPolicyLoader-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    private final RepositoryReader repoReader;
+
+    private final Map<String, CachedPolicy> policyCache = new ConcurrentHashMap<String, CachedPolicy>();
+
+    private volatile List<String> objectPolicyNamespaces = Collections.emptyList();
+
+    private volatile List<Pattern> objectPolicyPatterns = Collections.emptyList();
+
+    private volatile ObjectPolicyCache objectPolicyCache = new ObjectPolicyCache(DEFAULT_OBJECT_POLICY_CACHE_SIZE);
+
+    private volatile int policyLoaderThreads = Runtime.getRuntime().availableProcessors();
+
     public SBPolicyLoader(RepositoryReader repoReader) {
         super(repoReader);
+        this.repoReader = repoReader;
+    }
+
+    /**
+     * Select the objects that object policies are loaded for. An entry ending with a colon is a PID namespace,
+     * e.g. {@code uuid:} or {@code collection:}, any other entry is a regular expression the whole PID must match.
+     * With no entries, which is the default, no object policies are loaded.
+     * @param objectPolicyPids namespaces and patterns
+     */
+    public void setObjectPolicyPids(List<String> objectPolicyPids) {
+        List<String> namespaces = new ArrayList<String>();
+        List<Pattern> patterns = new ArrayList<Pattern>();
+        for (String entry : objectPolicyPids) {
+            String trimmed = entry.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            if (trimmed.endsWith(":")) {
+                namespaces.add(trimmed);
+            } else {
+                patterns.add(Pattern.compile(trimmed));
+            }
+        }
+        logger.info("Loading object policies for namespaces {} and patterns {}", namespaces, patterns);
+        objectPolicyNamespaces = Collections.unmodifiableList(namespaces);
+        objectPolicyPatterns = Collections.unmodifiableList(patterns);
+        objectPolicyCache.clear();
+    }
+
+    /**
+     * @param objectPolicyCacheSize the maximum number of objects to cache the policy, or absence of a policy, for.
+     * The default is 10000
+     */
+    public void setObjectPolicyCacheSize(int objectPolicyCacheSize) {
+        objectPolicyCache = new ObjectPolicyCache(objectPolicyCacheSize);
+    }
+
+    /**
+     * Forget the cached policy of an object. Not needed when the object is modified through Fedora, as that
+     * changes its modification date
+     * @param pid the object
+     */
+    public void invalidateObjectPolicy(String pid) {
+        objectPolicyCache.invalidate(pid);
+    }
+
+    @Override
+    public Map<String, AbstractPolicy> loadPolicies(PolicyParser policyParser, boolean validate, File policyDir)
+            throws IOException, ValidationException {
+        long start = System.nanoTime();
+        List<File> files = new ArrayList<File>();
+        listPolicyFiles(policyDir, files);
+        List<Future<CachedPolicy>> results = new ArrayList<Future<CachedPolicy>>(files.size());
+        AtomicInteger parsed = new AtomicInteger();
+        int threads = Math.min(policyLoaderThreads, files.size());
+        ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads, WORKER_THREADS) : null;
+        try {
+            ParserPerThread parsers = new ParserPerThread(policyParser, executor != null);
+            for (File file : files) {
+                PolicyTask task = new PolicyTask(file, parsers, validate, parsed);
+                if (executor != null) {
+                    results.add(executor.submit(task));
+                } else {
+                    FutureTask<CachedPolicy> inline = new FutureTask<CachedPolicy>(task);
+                    inline.run();
+                    results.add(inline);
+                }
+            }
+            // assembled in the order of the file list, whatever order the workers finish in
+            Map<String, AbstractPolicy> policies = new LinkedHashMap<String, AbstractPolicy>();
+            Set<String> seen = new HashSet<String>();
+            for (int i = 0; i < files.size(); i++) {
+                String path = files.get(i).getPath();
+                policies.put(path, await(results.get(i)).policy);
+                seen.add(path);
+            }
+            forgetRemoved(policyDir, seen);
+            logger.info("Loaded {} policies from {} in {} ms, {} parsed on {} threads and {} unchanged",
+                    new Object[]{policies.size(), policyDir, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                            parsed.get(), Math.max(threads, 1), policies.size() - parsed.get()});
+            return policies;
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * @param policyLoaderThreads the maximum number of threads repository policies are parsed on. The default is
+     * the number of processors
+     */
+    public void setPolicyLoaderThreads(int policyLoaderThreads) {
+        this.policyLoaderThreads = Math.max(1, policyLoaderThreads);
+    }
+
+    /*
+     * The policy files below the directory, each directory in name order, so the policy set has a stable order
+     */
+    private static void listPolicyFiles(File dir, List<File> policyFiles) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("Unable to list policy directory " + dir);
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.isDirectory()) {
+                listPolicyFiles(file, policyFiles);
+            } else if (file.getName().endsWith(".xml")) {
+                policyFiles.add(file);
+            }
+        }
+    }
+
+    private static CachedPolicy await(Future<CachedPolicy> result) throws IOException, ValidationException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading policies", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ValidationException) {
+                throw (ValidationException) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("Failed to load policy", cause);
+        }
+    }
+
+    /*
+     * Drop cached policies of files below the directory that no longer exist
+     */
+    private void forgetRemoved(File policyDir, Set<String> seen) {
+        String prefix = policyDir.getPath() + File.separator;
+        Iterator<String> paths = policyCache.keySet().iterator();
+        while (paths.hasNext()) {
+            String path = paths.next();
+            if (path.startsWith(prefix) && !seen.contains(path)) {
+                logger.debug("Policy removed: {}", path);
+                paths.remove();
+            }
+        }
+    }
+
+    private static byte[] digest(byte[] content) {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM).digest(content);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(DIGEST_ALGORITHM + " is not available", e);
+        }
     }
 
     @Override
     protected AbstractPolicy loadObjectPolicy(PolicyParser policyParser, String pid, boolean validate) throws ServerException {
-        return null;
+        if (!hasObjectPolicy(pid)) {
+            return null;
+        }
+        ObjectPolicyCache cache = objectPolicyCache;
+        DOReader reader;
+        long lastModified;
+        try {
+            reader = repoReader.getReader(false, ReadOnlyContext.EMPTY, pid);
+            lastModified = reader.getLastModDate().getTime();
+        } catch (ObjectNotInLowlevelStorageException e) {
+            return null;
+        }
+        ObjectPolicyCache.Entry cached = cache.get(pid, lastModified, validate);
+        if (cached != null) {
+            return cached.getPolicy();
+        }
+        AbstractPolicy policy = null;
+        Datastream policyDatastream = reader.GetDatastream(POLICY_DATASTREAM, null);
+        if (policyDatastream != null) {
+            logger.info("Using POLICY for {}", pid);
+            InputStream policyStream = policyDatastream.getContentStream();
+            try {
+                policy = policyParser.parse(policyStream, validate);
+            } finally {
+                try {
+                    policyStream.close();
+                } catch (IOException e) {
+                    logger.debug("Failed to close POLICY stream of {}", pid, e);
+                }
+            }
+        }
+        cache.put(pid, lastModified, validate, policy);
+        return policy;
+    }
+
+    /*
+     * The fast path: objects outside the configured namespaces and patterns have no policy
+     */
+    private boolean hasObjectPolicy(String pid) {
+        for (String namespace : objectPolicyNamespaces) {
+            if (pid.startsWith(namespace)) {
+                return true;
+            }
+        }
+        for (Pattern pattern : objectPolicyPatterns) {
+            if (pattern.matcher(pid).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Load one policy file, from the cache if it is unchanged
+     */
+    private class PolicyTask implements Callable<CachedPolicy> {
+
+        private final File file;
+
+        private final ParserPerThread parsers;
+
+        private final boolean validate;
+
+        private final AtomicInteger parsed;
+
+        PolicyTask(File file, ParserPerThread parsers, boolean validate, AtomicInteger parsed) {
+            this.file = file;
+            this.parsers = parsers;
+            this.validate = validate;
+            this.parsed = parsed;
+        }
+
+        @Override
+        public CachedPolicy call() throws IOException, ValidationException {
+            String path = file.getPath();
+            byte[] content = Files.readAllBytes(file.toPath());
+            byte[] digest = digest(content);
+            CachedPolicy cached = policyCache.get(path);
+            if (cached != null && cached.matches(digest, validate)) {
+                logger.debug("Policy unchanged: {}", path);
+                return cached;
+            }
+            long start = System.nanoTime();
+            AbstractPolicy policy = parsers.parse(new ByteArrayInputStream(content), validate);
+            logger.info("Loaded policy {} in {} ms", path, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            cached = new CachedPolicy(digest, validate, policy);
+            policyCache.put(path, cached);
+            parsed.incrementAndGet();
+            return cached;
+        }
+    }
+
+    /*
+     * PolicyParser is not thread safe, so every worker parses with its own copy. If the parser cannot be copied,
+     * the workers take turns with the original
+     */
+    private static class ParserPerThread extends ThreadLocal<PolicyParser> {
+
+        private final PolicyParser original;
+
+        private final boolean copy;
+
+        ParserPerThread(PolicyParser original, boolean copy) {
+            this.original = original;
+            this.copy = copy;
+        }
+
+        @Override
+        protected PolicyParser initialValue() {
+            if (copy) {
+                try {
+                    return original.copy();
+                } catch (Exception e) {
+                    logger.warn("Unable to copy the policy parser, parsing policies one at a time", e);
+                }
+            }
+            return original;
+        }
+
+        AbstractPolicy parse(InputStream policyStream, boolean validate) throws ValidationException {
+            PolicyParser parser = get();
+            if (parser != original) {
+                return parser.parse(policyStream, validate);
+            }
+            synchronized (original) {
+                return original.parse(policyStream, validate);
+            }
+        }
+    }
+
+    /*
+     * A parsed policy, with the digest of the content it was parsed from
+     */
+    private static class CachedPolicy {
+
+        private final byte[] digest;
+
+        private final boolean validated;
+
+        private final AbstractPolicy policy;
+
+        CachedPolicy(byte[] digest, boolean validated, AbstractPolicy policy) {
+            this.digest = digest;
+            this.validated = validated;
+            this.policy = policy;
+        }
+
+        boolean matches(byte[] digest, boolean validate) {
+            return (validated || !validate) && Arrays.equals(this.digest, digest);
+        }
     }
 }
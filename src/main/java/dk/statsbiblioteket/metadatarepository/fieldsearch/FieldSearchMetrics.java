@@ -0,0 +1,519 @@
+package dk.statsbiblioteket.metadatarepository.fieldsearch;
+
+import dk.statsbiblioteket.metadatarepository.metrics.LatencyHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and timings of {@link SBFieldSearchSQLImpl}, registered in the platform MBean server as
+ * {@value #OBJECT_NAME} until the field search module is shut down.
+ * <p>
+ * Every findObjects call is counted either as a fast path lookup in the doIdentifiers table or as a fallback to
+ * the normal field search, with the reason it could not take the fast path. Lookups, fallbacks, updates and deletes
+ * are timed, whether they succeed or not, and updates count the doIdentifiers rows they write. Recording is a few
+ * atomic increments, so it is always on. {@link #snapshot()} gives a consistent enough copy of everything for
+ * reports and tests.
+ * </p>
+ * <p>
+ * The state of the {@link IdentifierGuard} of the field search module, its circuit breaker and rejection counts, is
+ * shown here too.
+ * </p>
+ */
+public class FieldSearchMetrics implements FieldSearchMetricsMBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(FieldSearchMetrics.class);
+
+    public static final String OBJECT_NAME = "dk.statsbiblioteket.metadatarepository.fieldsearch:type=FieldSearchMetrics";
+
+    private static final FieldSearchMetrics INSTANCE = register(new FieldSearchMetrics());
+
+    /**
+     * The timed operations
+     */
+    public enum Operation {
+        /**
+         * findObjects answered from the doIdentifiers table
+         */
+        LOOKUP,
+        /**
+         * findObjects passed on to the normal field search
+         */
+        FALLBACK,
+        UPDATE,
+        DELETE
+    }
+
+    /**
+     * Why a findObjects call could not take the fast path
+     */
+    public enum Fallback {
+        /**
+         * More result fields than the pid were asked for
+         */
+        RESULT_FIELDS,
+        /**
+         * The query is a terms query, or has no conditions
+         */
+        NO_CONDITIONS,
+        MULTIPLE_CONDITIONS,
+        /**
+         * The condition is not on the identifier
+         */
+        PROPERTY,
+        /**
+         * The condition on the identifier is not EQUALS
+         */
+        OPERATOR,
+        /**
+         * The {@link IdentifierGuard} rejected the doIdentifiers lookup
+         */
+        UNAVAILABLE
+    }
+
+    private final Map<Operation, LatencyHistogram> times =
+            new EnumMap<Operation, LatencyHistogram>(Operation.class);
+
+    private final Map<Operation, AtomicLong> errors = new EnumMap<Operation, AtomicLong>(Operation.class);
+
+    private final Map<Fallback, AtomicLong> fallbacks = new EnumMap<Fallback, AtomicLong>(Fallback.class);
+
+    private final AtomicLong rowsWritten = new AtomicLong();
+
+    private final AtomicLong maxRowsPerUpdate = new AtomicLong();
+
+    private volatile IdentifierGuard guard = IdentifierGuard.UNGUARDED;
+
+    FieldSearchMetrics() {
+        for (Operation operation : Operation.values()) {
+            times.put(operation, new LatencyHistogram());
+            errors.put(operation, new AtomicLong());
+        }
+        for (Fallback fallback : Fallback.values()) {
+            fallbacks.put(fallback, new AtomicLong());
+        }
+    }
+
+    /**
+     * @return the metrics of this server
+     */
+    public static FieldSearchMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    private static FieldSearchMetrics register(FieldSearchMetrics metrics) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                // left behind by an earlier deployment that was not shut down cleanly
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(metrics, name);
+        } catch (JMException | SecurityException e) {
+            logger.warn("Unable to register field search metrics in JMX", e);
+        }
+        return metrics;
+    }
+
+    /**
+     * Remove the metrics from the platform MBean server, so it does not keep this deployment alive
+     */
+    static void unregister() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException | SecurityException e) {
+            logger.warn("Unable to unregister field search metrics from JMX", e);
+        }
+    }
+
+    /**
+     * Record one findObjects call
+     * @param fallback why the call fell back to the normal field search, or null if it took the fast path
+     * @param nanos the time it took
+     * @param failed whether it threw
+     */
+    void searched(Fallback fallback, long nanos, boolean failed) {
+        if (fallback == null) {
+            record(Operation.LOOKUP, nanos, failed);
+        } else {
+            fallbacks.get(fallback).incrementAndGet();
+            record(Operation.FALLBACK, nanos, failed);
+        }
+    }
+
+    /**
+     * Record one update
+     * @param nanos the time it took
+     * @param rows the number of doIdentifiers rows written, or -1 if the update threw
+     */
+    void updated(long nanos, int rows) {
+        record(Operation.UPDATE, nanos, rows < 0);
+        if (rows > 0) {
+            rowsWritten.addAndGet(rows);
+            long max = maxRowsPerUpdate.get();
+            while (rows > max && !maxRowsPerUpdate.compareAndSet(max, rows)) {
+                max = maxRowsPerUpdate.get();
+            }
+        }
+    }
+
+    /**
+     * Show the state of this guard
+     * @param guard the guard of the field search module
+     */
+    void guardedBy(IdentifierGuard guard) {
+        this.guard = guard;
+    }
+
+    void deleted(long nanos, boolean failed) {
+        record(Operation.DELETE, nanos, failed);
+    }
+
+    private void record(Operation operation, long nanos, boolean failed) {
+        times.get(operation).record(nanos);
+        if (failed) {
+            errors.get(operation).incrementAndGet();
+        }
+    }
+
+    /**
+     * @return a copy of the current counts and timings
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    @Override
+    public long getFastPathCount() {
+        return times.get(Operation.LOOKUP).getCount();
+    }
+
+    @Override
+    public long getFallbackCount() {
+        return times.get(Operation.FALLBACK).getCount();
+    }
+
+    @Override
+    public double getFastPathRatio() {
+        return ratio(getFastPathCount(), getFallbackCount());
+    }
+
+    private static double ratio(long fastPath, long fallback) {
+        long total = fastPath + fallback;
+        return total == 0 ? 0 : (double) fastPath / total;
+    }
+
+    @Override
+    public String[] getFallbackCounts() {
+        List<Map.Entry<Fallback, AtomicLong>> rows = new ArrayList<Map.Entry<Fallback, AtomicLong>>();
+        for (Map.Entry<Fallback, AtomicLong> entry : fallbacks.entrySet()) {
+            if (entry.getValue().get() > 0) {
+                rows.add(entry);
+            }
+        }
+        Collections.sort(rows, new Comparator<Map.Entry<Fallback, AtomicLong>>() {
+            @Override
+            public int compare(Map.Entry<Fallback, AtomicLong> a, Map.Entry<Fallback, AtomicLong> b) {
+                return Long.compare(b.getValue().get(), a.getValue().get());
+            }
+        });
+        String[] lines = new String[rows.size()];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = rows.get(i).getKey() + " " + rows.get(i).getValue().get();
+        }
+        return lines;
+    }
+
+    @Override
+    public double getLookupMeanMillis() {
+        return times.get(Operation.LOOKUP).getMeanMillis();
+    }
+
+    @Override
+    public double getLookup99thPercentileMillis() {
+        return times.get(Operation.LOOKUP).getPercentileMillis(99);
+    }
+
+    @Override
+    public double getLookupMaxMillis() {
+        return times.get(Operation.LOOKUP).getMaxMillis();
+    }
+
+    @Override
+    public double getFallbackMeanMillis() {
+        return times.get(Operation.FALLBACK).getMeanMillis();
+    }
+
+    @Override
+    public double getFallback99thPercentileMillis() {
+        return times.get(Operation.FALLBACK).getPercentileMillis(99);
+    }
+
+    @Override
+    public double getFallbackMaxMillis() {
+        return times.get(Operation.FALLBACK).getMaxMillis();
+    }
+
+    @Override
+    public long getUpdateCount() {
+        return times.get(Operation.UPDATE).getCount();
+    }
+
+    @Override
+    public double getUpdateMeanMillis() {
+        return times.get(Operation.UPDATE).getMeanMillis();
+    }
+
+    @Override
+    public double getUpdate99thPercentileMillis() {
+        return times.get(Operation.UPDATE).getPercentileMillis(99);
+    }
+
+    @Override
+    public double getUpdateMaxMillis() {
+        return times.get(Operation.UPDATE).getMaxMillis();
+    }
+
+    @Override
+    public long getDeleteCount() {
+        return times.get(Operation.DELETE).getCount();
+    }
+
+    @Override
+    public double getDeleteMeanMillis() {
+        return times.get(Operation.DELETE).getMeanMillis();
+    }
+
+    @Override
+    public double getDelete99thPercentileMillis() {
+        return times.get(Operation.DELETE).getPercentileMillis(99);
+    }
+
+    @Override
+    public double getDeleteMaxMillis() {
+        return times.get(Operation.DELETE).getMaxMillis();
+    }
+
+    @Override
+    public long getErrorCount() {
+        long total = 0;
+        for (AtomicLong count : errors.values()) {
+            total += count.get();
+        }
+        return total;
+    }
+
+    @Override
+    public long getRowsWritten() {
+        return rowsWritten.get();
+    }
+
+    @Override
+    public double getMeanRowsPerUpdate() {
+        long updates = getUpdateCount() - errors.get(Operation.UPDATE).get();
+        return updates <= 0 ? 0 : (double) rowsWritten.get() / updates;
+    }
+
+    @Override
+    public long getMaxRowsPerUpdate() {
+        return maxRowsPerUpdate.get();
+    }
+
+    @Override
+    public String getBreakerState() {
+        return guard.getState().name();
+    }
+
+    @Override
+    public int getIdentifierSqlInFlight() {
+        return guard.getInFlight();
+    }
+
+    @Override
+    public long getTimeoutCount() {
+        return guard.getTimeoutCount();
+    }
+
+    @Override
+    public long getBulkheadRejectedCount() {
+        return guard.getBulkheadRejectedCount();
+    }
+
+    @Override
+    public long getBreakerRejectedCount() {
+        return guard.getBreakerRejectedCount();
+    }
+
+    @Override
+    public long getBreakerOpenedCount() {
+        return guard.getBreakerOpenedCount();
+    }
+
+    @Override
+    public void reset() {
+        for (LatencyHistogram histogram : times.values()) {
+            histogram.reset();
+        }
+        for (AtomicLong count : errors.values()) {
+            count.set(0);
+        }
+        for (AtomicLong count : fallbacks.values()) {
+            count.set(0);
+        }
+        rowsWritten.set(0);
+        maxRowsPerUpdate.set(0);
+        guard.reset();
+    }
+
+    @Override
+    public String toString() {
+        return snapshot().toString();
+    }
+
+    /**
+     * The counts and timings at one point in time. The values are read one by one without stopping the recording,
+     * so counts of operations in flight may be off by a few
+     */
+    public static final class Snapshot {
+
+        private final long[] counts = new long[Operation.values().length];
+
+        private final long[] errorCounts = new long[Operation.values().length];
+
+        private final double[] meanMillis = new double[Operation.values().length];
+
+        private final double[] p99Millis = new double[Operation.values().length];
+
+        private final double[] maxMillis = new double[Operation.values().length];
+
+        private final long[] fallbackCounts = new long[Fallback.values().length];
+
+        private final long rowsWritten;
+
+        private final double meanRowsPerUpdate;
+
+        private final long maxRowsPerUpdate;
+
+        private final IdentifierGuard.State breakerState;
+
+        private final long timeoutCount;
+
+        private final long bulkheadRejectedCount;
+
+        private final long breakerRejectedCount;
+
+        private Snapshot(FieldSearchMetrics metrics) {
+            for (Operation operation : Operation.values()) {
+                LatencyHistogram histogram = metrics.times.get(operation);
+                int i = operation.ordinal();
+                counts[i] = histogram.getCount();
+                errorCounts[i] = metrics.errors.get(operation).get();
+                meanMillis[i] = histogram.getMeanMillis();
+                p99Millis[i] = histogram.getPercentileMillis(99);
+                maxMillis[i] = histogram.getMaxMillis();
+            }
+            for (Fallback fallback : Fallback.values()) {
+                fallbackCounts[fallback.ordinal()] = metrics.fallbacks.get(fallback).get();
+            }
+            rowsWritten = metrics.getRowsWritten();
+            meanRowsPerUpdate = metrics.getMeanRowsPerUpdate();
+            maxRowsPerUpdate = metrics.getMaxRowsPerUpdate();
+            IdentifierGuard guard = metrics.guard;
+            breakerState = guard.getState();
+            timeoutCount = guard.getTimeoutCount();
+            bulkheadRejectedCount = guard.getBulkheadRejectedCount();
+            breakerRejectedCount = guard.getBreakerRejectedCount();
+        }
+
+        public long getCount(Operation operation) {
+            return counts[operation.ordinal()];
+        }
+
+        public long getErrorCount(Operation operation) {
+            return errorCounts[operation.ordinal()];
+        }
+
+        public double getMeanMillis(Operation operation) {
+            return meanMillis[operation.ordinal()];
+        }
+
+        public double get99thPercentileMillis(Operation operation) {
+            return p99Millis[operation.ordinal()];
+        }
+
+        public double getMaxMillis(Operation operation) {
+            return maxMillis[operation.ordinal()];
+        }
+
+        public long getFallbackCount(Fallback fallback) {
+            return fallbackCounts[fallback.ordinal()];
+        }
+
+        public double getFastPathRatio() {
+            return ratio(getCount(Operation.LOOKUP), getCount(Operation.FALLBACK));
+        }
+
+        public long getRowsWritten() {
+            return rowsWritten;
+        }
+
+        public double getMeanRowsPerUpdate() {
+            return meanRowsPerUpdate;
+        }
+
+        public long getMaxRowsPerUpdate() {
+            return maxRowsPerUpdate;
+        }
+
+        public IdentifierGuard.State getBreakerState() {
+            return breakerState;
+        }
+
+        public long getTimeoutCount() {
+            return timeoutCount;
+        }
+
+        public long getBulkheadRejectedCount() {
+            return bulkheadRejectedCount;
+        }
+
+        public long getBreakerRejectedCount() {
+            return breakerRejectedCount;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("FieldSearchMetrics[");
+            for (Operation operation : Operation.values()) {
+                builder.append(operation).append(": count=").append(getCount(operation))
+                       .append(", errors=").append(getErrorCount(operation))
+                       .append(String.format(", mean=%.3fms, p99=%.3fms, max=%.3fms; ", getMeanMillis(operation),
+                               get99thPercentileMillis(operation), getMaxMillis(operation)));
+            }
+            builder.append("fallbacks:");
+            for (Fallback fallback : Fallback.values()) {
+                builder.append(' ').append(fallback).append('=').append(getFallbackCount(fallback));
+            }
+            return builder.append(String.format("; fastPathRatio=%.3f, rowsWritten=%d, maxRowsPerUpdate=%d"
+                                                + "; breaker=%s, timeouts=%d, bulkheadRejected=%d, breakerRejected=%d]",
+                    getFastPathRatio(), rowsWritten, maxRowsPerUpdate, breakerState, timeoutCount,
+                    bulkheadRejectedCount, breakerRejectedCount)).toString();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package dk.statsbiblioteket.metadatarepository.fieldsearch;
+
+/**
+ * JMX view of {@link FieldSearchMetrics}
+ */
+public interface FieldSearchMetricsMBean {
+
+    /**
+     * @return the number of findObjects calls answered from the doIdentifiers table
+     */
+    long getFastPathCount();
+
+    /**
+     * @return the number of findObjects calls passed on to the normal field search
+     */
+    long getFallbackCount();
+
+    /**
+     * @return the fraction of findObjects calls that took the fast path, 0 if there were none
+     */
+    double getFastPathRatio();
+
+    /**
+     * @return one line per fallback reason, "REASON count", most frequent first
+     */
+    String[] getFallbackCounts();
+
+    double getLookupMeanMillis();
+
+    double getLookup99thPercentileMillis();
+
+    double getLookupMaxMillis();
+
+    double getFallbackMeanMillis();
+
+    double getFallback99thPercentileMillis();
+
+    double getFallbackMaxMillis();
+
+    long getUpdateCount();
+
+    double getUpdateMeanMillis();
+
+    double getUpdate99thPercentileMillis();
+
+    double getUpdateMaxMillis();
+
+    long getDeleteCount();
+
+    double getDeleteMeanMillis();
+
+    double getDelete99thPercentileMillis();
+
+    double getDeleteMaxMillis();
+
+    /**
+     * @return the number of lookups, fallbacks, updates and deletes that threw
+     */
+    long getErrorCount();
+
+    /**
+     * @return the number of doIdentifiers rows inserted by updates
+     */
+    long getRowsWritten();
+
+    double getMeanRowsPerUpdate();
+
+    long getMaxRowsPerUpdate();
+
+    /**
+     * @return the state of the doIdentifiers circuit breaker, CLOSED, OPEN or HALF_OPEN
+     */
+    String getBreakerState();
+
+    /**
+     * @return the number of threads in doIdentifiers SQL now, lookups and writes, 0 if there are no bulkheads
+     */
+    int getIdentifierSqlInFlight();
+
+    /**
+     * @return the number of doIdentifiers statements that timed out
+     */
+    long getTimeoutCount();
+
+    /**
+     * @return the number of lookups rejected because too many lookups were in doIdentifiers SQL
+     */
+    long getBulkheadRejectedCount();
+
+    /**
+     * @return the number of calls rejected because the circuit breaker was open
+     */
+    long getBreakerRejectedCount();
+
+    /**
+     * @return the number of times the circuit breaker has opened
+     */
+    long getBreakerOpenedCount();
+
+    /**
+     * Start counting from zero
+     */
+    void reset();
+}
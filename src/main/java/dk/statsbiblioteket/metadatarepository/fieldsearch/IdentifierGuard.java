@@ -0,0 +1,368 @@
+package dk.statsbiblioteket.metadatarepository.fieldsearch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps a stalled database from tying up every request thread in the doIdentifiers SQL of
+ * {@link SBFieldSearchSQLImpl}.
+ * <p>
+ * Statements get a query timeout, separately for lookups and for updates and deletes. After
+ * {@code timeoutThreshold} statement timeouts in a row the circuit breaker opens, and calls are rejected at once for
+ * {@code openMillis}. Then a single trial call is let through. Only the outcome of the trial closes the breaker
+ * again, or opens it for another period; calls that were let in before the breaker opened do not change its state.
+ * </p>
+ * <p>
+ * Lookups and writes have a bulkhead each, both of {@code maxConcurrent} threads. A lookup waits at most
+ * {@code maxWaitMillis} for its turn, and rejected lookups fall back to the normal field search if
+ * {@code fallback} is set. Updates and deletes are only rejected by the breaker, which they ask before the doFields
+ * tables are touched, so a rejection never leaves the doFields and doIdentifiers tables out of step. They then
+ * hold a place in the write bulkhead only while running the doIdentifiers statements, and wait for it as long as
+ * it takes, which is bounded by the update timeout of the statements ahead of them. Slow ingests therefore never
+ * take capacity from lookups.
+ * </p>
+ * <p>
+ * A limit of 0 switches that part off, and {@link #UNGUARDED} has everything switched off.
+ * </p>
+ */
+public class IdentifierGuard {
+
+    private static final Logger logger = LoggerFactory.getLogger(IdentifierGuard.class);
+
+    /**
+     * The guard with no timeouts, no bulkhead and no circuit breaker
+     */
+    public static final IdentifierGuard UNGUARDED = new IdentifierGuard(0, 0, 0, 0, 0, 0, false);
+
+    /**
+     * The states of the circuit breaker
+     */
+    public enum State {
+        /**
+         * Calls are let through
+         */
+        CLOSED,
+        /**
+         * Calls are rejected
+         */
+        OPEN,
+        /**
+         * One trial call is in progress, other calls are rejected
+         */
+        HALF_OPEN
+    }
+
+    private final int lookupTimeoutSeconds;
+
+    private final int updateTimeoutSeconds;
+
+    private final int maxConcurrent;
+
+    private final long maxWaitMillis;
+
+    private final int timeoutThreshold;
+
+    private final long openNanos;
+
+    private final boolean fallback;
+
+    private final Semaphore lookupBulkhead;
+
+    private final Semaphore writeBulkhead;
+
+    private final AtomicReference<State> state = new AtomicReference<State>(State.CLOSED);
+
+    private final AtomicInteger consecutiveTimeouts = new AtomicInteger();
+
+    private volatile long openedAt;
+
+    private final AtomicLong timeouts = new AtomicLong();
+
+    private final AtomicLong bulkheadRejections = new AtomicLong();
+
+    private final AtomicLong breakerRejections = new AtomicLong();
+
+    private final AtomicLong breakerOpenings = new AtomicLong();
+
+    /**
+     * @param lookupTimeoutSeconds the query timeout of identifier lookups, 0 for none
+     * @param updateTimeoutSeconds the query timeout of the doIdentifiers statements of updates and deletes, 0 for none
+     * @param maxConcurrent the maximum number of lookups, and of writes, in doIdentifiers SQL at once, 0 for no limit
+     * @param maxWaitMillis how long a lookup may wait for the lookup bulkhead
+     * @param timeoutThreshold the number of timeouts in a row that opens the circuit breaker, 0 for no breaker
+     * @param openMillis how long the breaker stays open before a trial call is let through
+     * @param fallback whether rejected lookups go to the normal field search instead of failing
+     */
+    public IdentifierGuard(int lookupTimeoutSeconds, int updateTimeoutSeconds, int maxConcurrent, long maxWaitMillis,
+                           int timeoutThreshold, long openMillis, boolean fallback) {
+        this.lookupTimeoutSeconds = Math.max(0, lookupTimeoutSeconds);
+        this.updateTimeoutSeconds = Math.max(0, updateTimeoutSeconds);
+        this.maxConcurrent = Math.max(0, maxConcurrent);
+        this.maxWaitMillis = Math.max(0, maxWaitMillis);
+        this.timeoutThreshold = Math.max(0, timeoutThreshold);
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, openMillis));
+        this.fallback = fallback;
+        this.lookupBulkhead = this.maxConcurrent > 0 ? new Semaphore(this.maxConcurrent, true) : null;
+        this.writeBulkhead = this.maxConcurrent > 0 ? new Semaphore(this.maxConcurrent, true) : null;
+    }
+
+    /**
+     * Admission to the doIdentifiers SQL, to be handed back to {@link #exit(Permit, Throwable)}
+     */
+    public static final class Permit {
+
+        private final boolean trial;
+
+        private Semaphore held;
+
+        Permit(boolean trial) {
+            this.trial = trial;
+        }
+
+        /**
+         * @return true if this call is the trial that decides whether the breaker closes again
+         */
+        boolean isTrial() {
+            return trial;
+        }
+    }
+
+    /**
+     * Ask to run a doIdentifiers lookup, waiting at most maxWaitMillis for the lookup bulkhead
+     * @return the permit, which must be handed to {@link #exit(Permit, Throwable)} afterwards, or null if the circuit
+     * breaker is open or the bulkhead stayed full
+     */
+    public Permit tryEnter() {
+        Permit permit = admit();
+        if (permit == null || lookupBulkhead == null) {
+            return permit;
+        }
+        boolean acquired;
+        try {
+            acquired = lookupBulkhead.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        if (!acquired) {
+            bulkheadRejections.incrementAndGet();
+            if (permit.trial) { //let the next caller make the trial instead
+                state.compareAndSet(State.HALF_OPEN, State.OPEN);
+            }
+            return null;
+        }
+        permit.held = lookupBulkhead;
+        return permit;
+    }
+
+    /**
+     * Ask to run an update or delete. Only the circuit breaker is asked, so this is done before anything is
+     * written; the doIdentifiers statements are then run after {@link #enterWrite(Permit)}
+     * @return the permit, which must be handed to {@link #exit(Permit, Throwable)} afterwards, or null if the circuit
+     * breaker is open
+     */
+    public Permit tryEnterWrite() {
+        return admit();
+    }
+
+    /**
+     * Wait for a place in the write bulkhead, for the doIdentifiers statements of an admitted update or delete
+     * @param permit the permit from {@link #tryEnterWrite()}
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public void enterWrite(Permit permit) throws InterruptedException {
+        if (writeBulkhead != null && permit.held == null) {
+            writeBulkhead.acquire();
+            permit.held = writeBulkhead;
+        }
+    }
+
+    /*
+     * Ask the circuit breaker. When the breaker has been open long enough, the first caller gets the trial
+     */
+    private Permit admit() {
+        if (timeoutThreshold <= 0) {
+            return new Permit(false);
+        }
+        State current = state.get();
+        if (current == State.HALF_OPEN
+            || (current == State.OPEN && (System.nanoTime() - openedAt < openNanos
+                                          || !state.compareAndSet(State.OPEN, State.HALF_OPEN)))) {
+            breakerRejections.incrementAndGet();
+            return null;
+        }
+        return new Permit(current == State.OPEN);
+    }
+
+    /**
+     * Leave the doIdentifiers SQL
+     * @param permit the permit the call was let in with
+     * @param failure what the call threw, or null if it succeeded
+     */
+    public void exit(Permit permit, Throwable failure) {
+        if (permit.held != null) {
+            permit.held.release();
+            permit.held = null;
+        }
+        boolean timedOut = failure != null && isTimeout(failure);
+        if (timedOut) {
+            timeouts.incrementAndGet();
+        }
+        if (timeoutThreshold <= 0) {
+            return;
+        }
+        if (permit.trial) {
+            if (failure == null) {
+                consecutiveTimeouts.set(0);
+                if (state.compareAndSet(State.HALF_OPEN, State.CLOSED)) {
+                    logger.info("doIdentifiers circuit breaker closed");
+                }
+            } else { //the trial failed, so the database is not back yet
+                open(State.HALF_OPEN, "the trial call failed");
+            }
+        } else if (state.get() != State.CLOSED) {
+            return; //a call let in before the breaker opened says nothing about the database now
+        } else if (failure == null) {
+            consecutiveTimeouts.set(0);
+        } else if (timedOut && consecutiveTimeouts.incrementAndGet() >= timeoutThreshold) {
+            open(State.CLOSED, consecutiveTimeouts.get() + " statement timeouts in a row");
+        }
+    }
+
+    private void open(State from, String reason) {
+        openedAt = System.nanoTime(); //set before the state, so callers never see the breaker open with an old time
+        if (state.compareAndSet(from, State.OPEN)) {
+            consecutiveTimeouts.set(0);
+            breakerOpenings.incrementAndGet();
+            logger.warn("doIdentifiers circuit breaker opened after {}, rejecting calls for {} ms", reason,
+                    TimeUnit.NANOSECONDS.toMillis(openNanos));
+        }
+    }
+
+    /**
+     * @param failure what a statement threw, possibly wrapped
+     * @return true if it was a query timeout or cancellation
+     */
+    static boolean isTimeout(Throwable failure) {
+        for (Throwable t = failure; t != null; t = t.getCause()) {
+            if (t instanceof SQLTimeoutException) {
+                return true;
+            }
+            if (t instanceof SQLException) {
+                String sqlState = ((SQLException) t).getSQLState();
+                //Standard query canceled (PostgreSQL, DB2), Derby and MySQL statement timeouts
+                if ("57014".equals(sqlState) || "XCL52".equals(sqlState) || "70100".equals(sqlState)) {
+                    return true;
+                }
+            }
+            if (t.getCause() == t) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Set the query timeout of a lookup statement
+     * @param statement the statement
+     * @throws SQLException if the driver fails
+     */
+    public void setLookupTimeout(Statement statement) throws SQLException {
+        if (lookupTimeoutSeconds > 0) {
+            statement.setQueryTimeout(lookupTimeoutSeconds);
+        }
+    }
+
+    /**
+     * Set the query timeout of a statement of an update or delete
+     * @param statement the statement
+     * @throws SQLException if the driver fails
+     */
+    public void setUpdateTimeout(Statement statement) throws SQLException {
+        if (updateTimeoutSeconds > 0) {
+            statement.setQueryTimeout(updateTimeoutSeconds);
+        }
+    }
+
+    /**
+     * @return whether rejected lookups go to the normal field search
+     */
+    public boolean isFallback() {
+        return fallback;
+    }
+
+    /**
+     * @return the state of the circuit breaker, CLOSED if there is none
+     */
+    public State getState() {
+        return state.get();
+    }
+
+    /**
+     * @return the number of threads in doIdentifiers SQL now, lookups and writes, 0 if there are no bulkheads
+     */
+    public int getInFlight() {
+        if (lookupBulkhead == null) {
+            return 0;
+        }
+        return 2 * maxConcurrent - lookupBulkhead.availablePermits() - writeBulkhead.availablePermits();
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    /**
+     * @return the number of statements that timed out
+     */
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    /**
+     * @return the number of lookups rejected because the lookup bulkhead stayed full
+     */
+    public long getBulkheadRejectedCount() {
+        return bulkheadRejections.get();
+    }
+
+    /**
+     * @return the number of calls rejected because the circuit breaker was open
+     */
+    public long getBreakerRejectedCount() {
+        return breakerRejections.get();
+    }
+
+    /**
+     * @return the number of times the circuit breaker has opened
+     */
+    public long getBreakerOpenedCount() {
+        return breakerOpenings.get();
+    }
+
+    /**
+     * Start counting from zero. The state of the breaker is kept
+     */
+    public void reset() {
+        timeouts.set(0);
+        bulkheadRejections.set(0);
+        breakerRejections.set(0);
+        breakerOpenings.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "IdentifierGuard[breaker=" + getState() + ", inFlight=" + getInFlight() + "/" + maxConcurrent
+               + ", timeouts=" + getTimeoutCount() + ", bulkheadRejected=" + getBulkheadRejectedCount()
+               + ", breakerRejected=" + getBreakerRejectedCount() + "]";
+    }
+}
@@ -3,6 +3,7 @@ package dk.statsbiblioteket.metadatarepository.fieldsearch;
 import org.fcrepo.server.Server;
 import org.fcrepo.server.errors.ConnectionPoolNotFoundException;
 import org.fcrepo.server.errors.ModuleInitializationException;
+import org.fcrepo.server.errors.ModuleShutdownException;
 import org.fcrepo.server.errors.ServerException;
 import org.fcrepo.server.search.FieldSearchQuery;
 import org.fcrepo.server.search.FieldSearchResult;
@@ -35,8 +36,64 @@ public class SBFieldSearchModule extends FieldSearchSQLModule {
         boolean indexDCFields = getIndexDCFields();
         ConnectionPool cPool = getConnectionPool();
         createDoIdentifierTable(cPool);
+        //Now that the table exists, prepare the doIdentifiers statements on the idle connections
+        cPool.warmUp(SBFieldSearchSQLImpl.SELECT_PIDS_BY_IDENTIFIER, SBFieldSearchSQLImpl.DELETE_IDENTIFIERS,
+                SBFieldSearchSQLImpl.INSERT_IDENTIFIER);
         DOManager doManager = getDoManager();
-        m_wrappedFieldSearch = new SBFieldSearchSQLImpl(cPool, doManager, maxResults, maxSecondsPerSession, indexDCFields);
+        IdentifierGuard guard = getIdentifierGuard();
+        FieldSearchMetrics.getInstance().guardedBy(guard);
+        m_wrappedFieldSearch = new SBFieldSearchSQLImpl(cPool, doManager, maxResults, maxSecondsPerSession, indexDCFields,
+                guard);
+    }
+
+    @Override
+    public void shutdownModule() throws ModuleShutdownException {
+        FieldSearchMetrics.unregister();
+        super.shutdownModule();
+    }
+
+    /**
+     * Read the timeouts, bulkhead and circuit breaker of the doIdentifiers SQL. All are off unless configured
+     * @return the guard
+     * @throws ModuleInitializationException if a parameter is not a number
+     */
+    private IdentifierGuard getIdentifierGuard() throws ModuleInitializationException {
+        int lookupTimeoutSeconds = getNonNegativeInt("identifierLookupTimeoutSeconds", 0);
+        int updateTimeoutSeconds = getNonNegativeInt("identifierUpdateTimeoutSeconds", 0);
+        int maxConcurrent = getNonNegativeInt("identifierMaxConcurrent", 0);
+        int maxWaitMillis = getNonNegativeInt("identifierMaxWaitMillis", 1000);
+        int timeoutThreshold = getNonNegativeInt("breakerTimeoutThreshold", 0);
+        int openSeconds = getNonNegativeInt("breakerOpenSeconds", 30);
+        boolean fallback = !"false".equalsIgnoreCase(trimmed(getParameter("breakerFallback")));
+        if (lookupTimeoutSeconds == 0 && updateTimeoutSeconds == 0 && maxConcurrent == 0 && timeoutThreshold == 0) {
+            return IdentifierGuard.UNGUARDED;
+        }
+        logger.info("doIdentifiers SQL timeouts {}s for lookups and {}s for updates, at most {} threads, "
+                    + "circuit breaker after {} timeouts for {}s, fallback {}",
+                new Object[]{lookupTimeoutSeconds, updateTimeoutSeconds, maxConcurrent, timeoutThreshold, openSeconds,
+                             fallback});
+        return new IdentifierGuard(lookupTimeoutSeconds, updateTimeoutSeconds, maxConcurrent, maxWaitMillis,
+                timeoutThreshold, openSeconds * 1000L, fallback);
+    }
+
+    private int getNonNegativeInt(String name, int defaultValue) throws ModuleInitializationException {
+        String value = trimmed(getParameter(name));
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed < 0) {
+                throw new NumberFormatException("");
+            }
+            return parsed;
+        } catch (NumberFormatException nfe) {
+            throw new ModuleInitializationException(name + " must be a non-negative integer.", getRole());
+        }
+    }
+
+    private static String trimmed(String value) {
+        return value == null ? null : value.trim();
     }
 
     private DOManager getDoManager() throws ModuleInitializationException {
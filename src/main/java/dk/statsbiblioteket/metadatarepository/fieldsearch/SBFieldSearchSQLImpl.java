@@ -1,5 +1,7 @@
 package dk.statsbiblioteket.metadatarepository.fieldsearch;
 
+import dk.statsbiblioteket.metadatarepository.tracing.Span;
+import dk.statsbiblioteket.metadatarepository.tracing.Tracer;
 import org.fcrepo.server.errors.ObjectIntegrityException;
 import org.fcrepo.server.errors.RepositoryConfigurationException;
 import org.fcrepo.server.errors.ServerException;
@@ -32,18 +34,38 @@ import java.util.List;
 public class SBFieldSearchSQLImpl extends FieldSearchSQLImpl {
 
     private static final Logger logger = LoggerFactory.getLogger(SBFieldSearchSQLImpl.class);
+
+    static final String SELECT_PIDS_BY_IDENTIFIER =
+            "SELECT doIdentifiers.pid FROM doIdentifiers where doIdentifiers.dcIdentifier=?";
+
+    static final String DELETE_IDENTIFIERS = "DELETE FROM doIdentifiers WHERE pid=?";
+
+    static final String INSERT_IDENTIFIER = "INSERT INTO doIdentifiers (pid, dcIdentifier) VALUES (?, ?)";
+
     private final ConnectionPool m_cPool;
 
+    private final IdentifierGuard guard;
+
     public SBFieldSearchSQLImpl(ConnectionPool cPool, RepositoryReader repoReader, int maxResults,
                                 int maxSecondsPerSession) {
         super(cPool, repoReader, maxResults, maxSecondsPerSession);
         m_cPool = cPool;
+        guard = IdentifierGuard.UNGUARDED;
     }
 
     public SBFieldSearchSQLImpl(ConnectionPool cPool, RepositoryReader repoReader, int maxResults,
                                 int maxSecondsPerSession, boolean indexDCFields) {
+        this(cPool, repoReader, maxResults, maxSecondsPerSession, indexDCFields, IdentifierGuard.UNGUARDED);
+    }
+
+    /**
+     * @param guard the timeouts, bulkhead and circuit breaker of the doIdentifiers SQL
+     */
+    public SBFieldSearchSQLImpl(ConnectionPool cPool, RepositoryReader repoReader, int maxResults,
+                                int maxSecondsPerSession, boolean indexDCFields, IdentifierGuard guard) {
         super(cPool, repoReader, maxResults, maxSecondsPerSession, indexDCFields);
         m_cPool = cPool;
+        this.guard = guard;
     }
 
     /**
@@ -56,38 +78,99 @@ public class SBFieldSearchSQLImpl extends FieldSearchSQLImpl {
      * @throws ServerException if anything failed
      */
     public void update(DOReader reader) throws ServerException {
-        super.update(reader);
-        logger.debug("Entering update(DOReader)");
+        long start = System.nanoTime();
+        int rows = -1; //stays -1 if the update fails
+        Span span = Tracer.getInstance().start("fieldsearch.update");
+        try {
+            span.tag("pid", reader.GetObjectPID());
+            rows = updateWithIdentifiers(reader);
+            span.tag("identifiers", rows);
+        } catch (ServerException | RuntimeException e) {
+            span.error(e);
+            throw e;
+        } finally {
+            span.close();
+            FieldSearchMetrics.getInstance().updated(System.nanoTime() - start, rows);
+        }
+    }
+
+    /**
+     * Update the doFields tables and then the doIdentifiers table. The circuit breaker of the guard is asked before
+     * either, so a rejected update leaves both tables as they were, while the write bulkhead is only held for the
+     * doIdentifiers statements
+     *
+     * @param reader the object reader
+     * @return the number of doIdentifiers rows written
+     * @throws ServerException if anything failed
+     */
+    private int updateWithIdentifiers(DOReader reader) throws ServerException {
+        Tracer tracer = Tracer.getInstance();
         String pid = reader.GetObjectPID();
+        IdentifierGuard.Permit permit = guard.tryEnterWrite();
+        if (permit == null) {
+            throw new StorageDeviceException("Rejected FieldSearch update of " + pid + ": " + guard);
+        }
+        Exception failure = null;
         Connection conn = null;
-        try { //Try for getting the connection
+        try {
+            try (Span span = tracer.startChild("fieldsearch.update.fields")) {
+                super.update(reader);
+            }
+            logger.debug("Entering update(DOReader)");
+            final List<DCField> identifiers;
+            try (Span span = tracer.startChild("fieldsearch.parseDC")) {
+                identifiers = getIdentifiers(reader);
+                span.tag("identifiers", identifiers.size());
+            }
+            guard.enterWrite(permit);
             conn = m_cPool.getReadWriteConnection();
             try { //try for the transaction
                 conn.setAutoCommit(false);//Start Transaction
-                final List<DCField> identifiers = getIdentifiers(reader);
-                try (PreparedStatement delete = conn.prepareStatement("DELETE FROM doIdentifiers WHERE pid=?")) {
+                try (Span span = tracer.startChild("sql.deleteIdentifiers");
+                     PreparedStatement delete = conn.prepareStatement(DELETE_IDENTIFIERS)) {
+                    guard.setUpdateTimeout(delete);
                     delete.setString(1, pid);
                     delete.executeUpdate();
                 }
-                for (DCField identifier : identifiers) {
-                    try (PreparedStatement insert = conn.prepareStatement(
-                            "INSERT INTO doIdentifiers (pid, dcIdentifier) VALUES (?, ?)")) {
-                        insert.setString(1, pid);
-                        insert.setString(2, identifier.getValue());
-                        insert.executeUpdate();
+                try (Span span = tracer.startChild("sql.insertIdentifiers").tag("rows", identifiers.size())) {
+                    for (DCField identifier : identifiers) {
+                        try (PreparedStatement insert = conn.prepareStatement(INSERT_IDENTIFIER)) {
+                            guard.setUpdateTimeout(insert);
+                            insert.setString(1, pid);
+                            insert.setString(2, identifier.getValue());
+                            insert.executeUpdate();
+                        }
                     }
                 }
                 logger.debug("Formulating SQL and inserting/updating WITH DC...");
-                conn.commit();
+                try (Span span = tracer.startChild("sql.commit")) {
+                    conn.commit();
+                }
+                return identifiers.size();
             } catch (Exception e) {
+                failure = e;
                 rollback(conn);
                 throw new StorageDeviceException("Error attempting FieldSearch " + "update of " + pid, e);
             } finally {
                 conn.setAutoCommit(true);//restore autocommit
                 m_cPool.free(conn);
             }
-        } catch (SQLException e) {
+        } catch (SQLException | IOException e) {
+            if (failure == null) {
+                failure = e;
+            }
             throw new StorageDeviceException("Error attempting FieldSearch " + "update of " + pid, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = e;
+            throw new StorageDeviceException("Interrupted while waiting to update the identifiers of " + pid, e);
+        } catch (ServerException | RuntimeException e) {
+            if (failure == null) { //the doFields update or the DC parsing failed
+                failure = e;
+            }
+            throw e;
+        } finally {
+            guard.exit(permit, failure);
         }
     }
 
@@ -132,19 +215,56 @@ public class SBFieldSearchSQLImpl extends FieldSearchSQLImpl {
      */
     @Override
     public boolean delete(String pid) throws ServerException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        Span span = Tracer.getInstance().start("fieldsearch.delete").tag("pid", pid);
+        try {
+            boolean deleted = deleteWithIdentifiers(pid);
+            failed = false;
+            return deleted;
+        } catch (ServerException | RuntimeException e) {
+            span.error(e);
+            throw e;
+        } finally {
+            span.close();
+            FieldSearchMetrics.getInstance().deleted(System.nanoTime() - start, failed);
+        }
+    }
+
+    private boolean deleteWithIdentifiers(String pid) throws ServerException {
         logger.debug("Entering delete(DOReader)");
-        Connection conn;
+        IdentifierGuard.Permit permit = guard.tryEnterWrite();
+        if (permit == null) {
+            throw new StorageDeviceException("Rejected FieldSearch delete of " + pid + ": " + guard);
+        }
+        Tracer tracer = Tracer.getInstance();
+        Exception failure = null;
         try {
-            conn = m_cPool.getReadWriteConnection();
-            try (PreparedStatement st = conn.prepareStatement("DELETE FROM doIdentifiers WHERE pid=?")) {
+            guard.enterWrite(permit);
+            Connection conn = m_cPool.getReadWriteConnection();
+            try (Span span = tracer.startChild("sql.deleteIdentifiers");
+                 PreparedStatement st = conn.prepareStatement(DELETE_IDENTIFIERS)) {
+                guard.setUpdateTimeout(st);
                 st.setString(1, pid);
                 st.executeUpdate();
-                return super.delete(pid);
             } finally {
                 m_cPool.free(conn);
             }
         } catch (SQLException sqle) {
+            failure = sqle;
             throw new StorageDeviceException("Error attempting FieldSearch " + "update of " + pid, sqle);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = e;
+            throw new StorageDeviceException("Interrupted while waiting to delete the identifiers of " + pid, e);
+        } catch (RuntimeException e) {
+            failure = e;
+            throw e;
+        } finally {
+            guard.exit(permit, failure);
+        }
+        try (Span span = tracer.startChild("fieldsearch.delete.fields")) {
+            return super.delete(pid);
         } finally {
             logger.debug("Exiting update(DOReader)");
         }
@@ -152,7 +272,8 @@ public class SBFieldSearchSQLImpl extends FieldSearchSQLImpl {
 
     /**
      * If you search with a Condition query, with just one condition, namely that the the identifier should be EQUALS some value
-     * and you only use the resultField pid, perform a search in the doIdentifiers table. Otherwise, do a normal fieldSearch
+     * and you only use the resultField pid, perform a search in the doIdentifiers table. Otherwise, do a normal fieldSearch.
+     * If the {@link IdentifierGuard} rejects the doIdentifiers search, a normal fieldSearch is done if it allows fallback
      * @param resultFields the resultFields
      * @param maxResults maxResults, not used here
      * @param query the query
@@ -173,25 +294,83 @@ public class SBFieldSearchSQLImpl extends FieldSearchSQLImpl {
                                                                                                         ServerException,
                                                                                                         StorageDeviceException {
 
-        if (resultFields.length == 1 && resultFields[0].equals("pid")) {  //result is only pids
-            List<Condition> conditions = query.getConditions();
-            if (conditions != null && conditions.size() == 1) { // and only one condition
-                Condition condition = conditions.get(0);
-                if (condition.getProperty().equals("identifier")) { //and this is a condition on dcIdentifier
-                    if (condition.getOperator() == Operator.EQUALS) { //and the condition is equals
-                        return searchUsingSBFieldSearch(condition);
-                    }
+        FieldSearchMetrics.Fallback fallback = getFallbackReason(resultFields, query);
+        long start = System.nanoTime();
+        boolean failed = true;
+        Span span = Tracer.getInstance().start(fallback == null ? "fieldsearch.lookup" : "fieldsearch.findObjects");
+        try {
+            if (fallback != null) {
+                span.tag("fallback", fallback);
+            }
+            FieldSearchResult result = null;
+            if (fallback == null) {
+                result = searchUsingSBFieldSearch(query.getConditions().get(0));
+                if (result == null) { // The doIdentifiers SQL is unavailable, but the normal fieldSearch may do
+                    fallback = FieldSearchMetrics.Fallback.UNAVAILABLE;
+                    span.tag("fallback", fallback);
                 }
             }
-        } // If any of the conditions failed, forward to the normal fieldSearch
-        return super.findObjects(resultFields, maxResults, query);
+            if (fallback != null) { // If any of the conditions failed, forward to the normal fieldSearch
+                result = super.findObjects(resultFields, maxResults, query);
+            }
+            failed = false;
+            return result;
+        } catch (ServerException | RuntimeException e) {
+            span.error(e);
+            throw e;
+        } finally {
+            span.close();
+            FieldSearchMetrics.getInstance().searched(fallback, System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * Check whether a search can be answered from the doIdentifiers table
+     * @param resultFields the resultFields
+     * @param query the query
+     * @return why the search must go to the normal fieldSearch, or null if it can use the doIdentifiers table
+     */
+    static FieldSearchMetrics.Fallback getFallbackReason(String[] resultFields, FieldSearchQuery query) {
+        if (resultFields.length != 1 || !resultFields[0].equals("pid")) { //result must be only pids
+            return FieldSearchMetrics.Fallback.RESULT_FIELDS;
+        }
+        List<Condition> conditions = query.getConditions();
+        if (conditions == null || conditions.isEmpty()) {
+            return FieldSearchMetrics.Fallback.NO_CONDITIONS;
+        }
+        if (conditions.size() > 1) { // and only one condition is allowed
+            return FieldSearchMetrics.Fallback.MULTIPLE_CONDITIONS;
+        }
+        Condition condition = conditions.get(0);
+        if (!condition.getProperty().equals("identifier")) { //and it must be a condition on dcIdentifier
+            return FieldSearchMetrics.Fallback.PROPERTY;
+        }
+        if (condition.getOperator() != Operator.EQUALS) { //and the condition must be equals
+            return FieldSearchMetrics.Fallback.OPERATOR;
+        }
+        return null;
     }
 
+    /**
+     * Look up the pids with the identifier in the doIdentifiers table
+     * @param condition the identifier condition
+     * @return the result, or null if the guard rejected the lookup and allows falling back
+     * @throws StorageDeviceException if the lookup failed, or was rejected without fallback
+     */
     private FieldSearchResult searchUsingSBFieldSearch(Condition condition) throws StorageDeviceException {
+        IdentifierGuard.Permit permit = guard.tryEnter();
+        if (permit == null) {
+            if (guard.isFallback()) {
+                return null;
+            }
+            throw new StorageDeviceException("Rejected identifier lookup: " + guard);
+        }
+        Exception failure = null;
         try {
             Connection conn = m_cPool.getReadOnlyConnection();
-            try (PreparedStatement m_statement = conn.prepareStatement(
-                    "SELECT doIdentifiers.pid FROM doIdentifiers where doIdentifiers.dcIdentifier=?")) {
+            try (Span span = Tracer.getInstance().startChild("sql.selectByIdentifier");
+                 PreparedStatement m_statement = conn.prepareStatement(SELECT_PIDS_BY_IDENTIFIER)) {
+                guard.setLookupTimeout(m_statement);
                 m_statement.setString(1, condition.getValue());
                 try (ResultSet m_resultSet = m_statement.executeQuery()) {
                     return new SBFieldSearchResultImpl(m_resultSet);
@@ -200,7 +379,13 @@ public class SBFieldSearchSQLImpl extends FieldSearchSQLImpl {
                 m_cPool.free(conn);
             }
         } catch (SQLException e) {
+            failure = e;
             throw new StorageDeviceException("Error querying sql db: " + e.getMessage(), e);
+        } catch (RuntimeException e) {
+            failure = e;
+            throw e;
+        } finally {
+            guard.exit(permit, failure);
         }
     }
 }
@@ -0,0 +1,146 @@
+package dk.statsbiblioteket.metadatarepository.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of durations in nanoseconds.
+ * <p>
+ * Values are counted in logarithmic buckets with 8 linear sub buckets per power of two, so percentiles are
+ * accurate to within about 12%, which is plenty for telling where time goes. Recording is a couple of atomic
+ * increments and never allocates.
+ * </p>
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong total = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a duration
+     * @param nanos the duration in nanoseconds, negative values count as 0
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(index(nanos));
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        long current = max.get();
+        while (nanos > current && !max.compareAndSet(current, nanos)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Forget everything recorded so far. Values recorded concurrently with the reset may or may not be kept
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+    /**
+     * @return the number of recorded durations
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return the mean of the recorded durations in milliseconds
+     */
+    public double getMeanMillis() {
+        long n = count.get();
+        return n == 0 ? 0 : total.get() / (n * 1000000.0);
+    }
+
+    /**
+     * @return the longest recorded duration in milliseconds
+     */
+    public double getMaxMillis() {
+        return max.get() / 1000000.0;
+    }
+
+    /**
+     * @param percentile the percentile, between 0 and 100
+     * @return the duration in nanoseconds that the given percentage of the recorded durations did not exceed
+     */
+    public long getPercentileNanos(double percentile) {
+        long n = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            n += snapshot[i];
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100.0 * n);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= Math.max(rank, 1)) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * @param percentile the percentile, between 0 and 100
+     * @return the duration in milliseconds that the given percentage of the recorded durations did not exceed
+     */
+    public double getPercentileMillis(double percentile) {
+        return getPercentileNanos(percentile) / 1000000.0;
+    }
+
+    /**
+     * @return the total of the recorded durations in milliseconds
+     */
+    public long getTotalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(total.get());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d, mean=%.3fms, p50=%.3fms, p99=%.3fms, max=%.3fms", getCount(),
+                getMeanMillis(), getPercentileMillis(50), getPercentileMillis(99), getMaxMillis());
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = (index - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+        long subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        long lower = (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+        return lower + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -0,0 +1,194 @@
+package dk.statsbiblioteket.metadatarepository.tracing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Appends spans to a file, one JSON object per line, for loading into whatever tool is at hand.
+ * <p>
+ * The file is written by a background thread, so requests do not wait for the disk. If the thread falls more than
+ * {@value #QUEUE_SIZE} traces behind, further traces are dropped and counted.
+ * </p>
+ */
+public class FileSpanExporter implements SpanExporter {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileSpanExporter.class);
+
+    static final int QUEUE_SIZE = 10000;
+
+    private static final Object CLOSED = new Object();
+
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+    private final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(QUEUE_SIZE);
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final Writer writer;
+
+    private final Thread thread;
+
+    private volatile boolean closed = false;
+
+    /**
+     * @param file the file to append to, created if missing
+     * @throws IOException if the file cannot be opened
+     */
+    public FileSpanExporter(File file) throws IOException {
+        this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true),
+                StandardCharsets.UTF_8));
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "FileSpanExporter");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void export(List<Span> spans) {
+        if (closed || !queue.offer(spans)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of traces not written because the queue was full or the exporter closed
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Write the queued traces and close the file. Waits at most a few seconds for the writer, and stops it if it
+     * does not finish in time
+     */
+    @Override
+    public void close() {
+        if (closed && !thread.isAlive()) {
+            return;
+        }
+        closed = true;
+        try {
+            // A full queue with the writer gone would never take the marker
+            if (!thread.isAlive() || !queue.offer(CLOSED, CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                thread.interrupt();
+            }
+            thread.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            logger.warn("Span writer did not finish within {} ms, stopping it", CLOSE_TIMEOUT_MILLIS);
+            thread.interrupt();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void write() {
+        try {
+            while (true) {
+                Object next = queue.take();
+                if (next == CLOSED) {
+                    break;
+                }
+                for (Span span : (List<Span>) next) {
+                    writer.write(toJson(span));
+                    writer.write('\n');
+                }
+                if (queue.isEmpty()) {
+                    writer.flush();
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to write spans, no more will be written", e);
+            closed = true;
+        } catch (InterruptedException e) {
+            closed = true;
+        } finally {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close span file", e);
+            }
+        }
+    }
+
+    static String toJson(Span span) {
+        StringBuilder builder = new StringBuilder(128);
+        builder.append("{\"traceId\":\"").append(span.getTraceId())
+                .append("\",\"spanId\":").append(span.getSpanId())
+                .append(",\"parentId\":").append(span.getParentId())
+                .append(",\"name\":");
+        quote(builder, span.getName());
+        builder.append(",\"startMicros\":").append(span.getStartEpochMicros())
+                .append(",\"durationMicros\":").append(span.getDurationNanos() / 1000);
+        Map<String, String> tags = span.getTags();
+        if (!tags.isEmpty()) {
+            builder.append(",\"tags\":{");
+            boolean first = true;
+            for (Map.Entry<String, String> tag : tags.entrySet()) {
+                if (!first) {
+                    builder.append(',');
+                }
+                first = false;
+                quote(builder, tag.getKey());
+                builder.append(':');
+                quote(builder, tag.getValue());
+            }
+            builder.append('}');
+        }
+        if (span.getError() != null) {
+            builder.append(",\"error\":");
+            quote(builder, span.getError());
+        }
+        return builder.append('}').toString();
+    }
+
+    private static void quote(StringBuilder builder, String value) {
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }
+        builder.append('"');
+    }
+}
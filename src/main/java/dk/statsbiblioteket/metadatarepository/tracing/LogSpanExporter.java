@@ -0,0 +1,50 @@
+package dk.statsbiblioteket.metadatarepository.tracing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Logs each trace as one INFO message, the spans indented under their parents in the order they started
+ */
+public class LogSpanExporter implements SpanExporter {
+
+    private static final Logger logger = LoggerFactory.getLogger(LogSpanExporter.class);
+
+    @Override
+    public void export(List<Span> spans) {
+        if (!logger.isInfoEnabled() || spans.isEmpty()) {
+            return;
+        }
+        List<Span> sorted = new ArrayList<Span>(spans);
+        Collections.sort(sorted, new Comparator<Span>() {
+            @Override
+            public int compare(Span a, Span b) {
+                return Long.compare(a.getStartNanos(), b.getStartNanos());
+            }
+        });
+        Map<Integer, Integer> depths = new HashMap<Integer, Integer>();
+        StringBuilder builder = new StringBuilder("Trace ").append(sorted.get(0).getTraceId());
+        for (Span span : sorted) {
+            Integer parentDepth = depths.get(span.getParentId());
+            int depth = parentDepth == null ? 0 : parentDepth + 1;
+            depths.put(span.getSpanId(), depth);
+            builder.append('\n');
+            for (int i = 0; i <= depth; i++) {
+                builder.append("  ");
+            }
+            builder.append(span);
+        }
+        logger.info(builder.toString());
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,188 @@
+package dk.statsbiblioteket.metadatarepository.tracing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One timed phase of a traced request, e.g. waiting for a connection or executing a statement.
+ * <p>
+ * Spans are started with {@link Tracer#start(String)} or {@link Tracer#startChild(String)} and must be closed by
+ * the thread that started them, in reverse order of starting, which try-with-resources does. A span that is not
+ * recorded is {@link #NOOP}, on which tagging and closing do nothing.
+ * </p>
+ */
+public class Span implements AutoCloseable {
+
+    /**
+     * The span of requests that are not traced
+     */
+    public static final Span NOOP = new Span();
+
+    private final String name;
+
+    private final Trace trace;
+
+    private final Span parent;
+
+    private final int spanId;
+
+    private final long startNanos;
+
+    private long durationNanos = -1;
+
+    private List<String> tags;
+
+    private String error;
+
+    private Span() {
+        this.name = "noop";
+        this.trace = null;
+        this.parent = null;
+        this.spanId = 0;
+        this.startNanos = 0;
+    }
+
+    Span(String name, Trace trace, Span parent) {
+        this.name = name;
+        this.trace = trace;
+        this.parent = parent;
+        this.spanId = trace.nextSpanId();
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * @return false if this is {@link #NOOP}
+     */
+    public boolean isRecording() {
+        return trace != null;
+    }
+
+    /**
+     * Add a key and value to the span. The value is turned into a string right away
+     * @param key the name of the tag
+     * @param value the value
+     * @return this span
+     */
+    public Span tag(String key, Object value) {
+        if (trace != null) {
+            if (tags == null) {
+                tags = new ArrayList<String>(4);
+            }
+            tags.add(key);
+            tags.add(String.valueOf(value));
+        }
+        return this;
+    }
+
+    /**
+     * Mark the span as failed
+     * @param t the reason
+     * @return this span
+     */
+    public Span error(Throwable t) {
+        if (trace != null) {
+            error = t.getClass().getSimpleName() + ": " + t.getMessage();
+        }
+        return this;
+    }
+
+    /**
+     * End the span. When the first span of a trace ends, the trace is exported if it is sampled or slow
+     */
+    @Override
+    public void close() {
+        if (trace == null || durationNanos >= 0) {
+            return;
+        }
+        durationNanos = System.nanoTime() - startNanos;
+        trace.finished(this);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the random ID shared by all spans of the trace, as 16 hex digits
+     */
+    public String getTraceId() {
+        return trace == null ? "" : trace.getTraceId();
+    }
+
+    /**
+     * @return the number of the span within its trace, counting from 1
+     */
+    public int getSpanId() {
+        return spanId;
+    }
+
+    /**
+     * @return the number of the parent span, or 0 for the first span of a trace
+     */
+    public int getParentId() {
+        return parent == null ? 0 : parent.spanId;
+    }
+
+    Span getParent() {
+        return parent;
+    }
+
+    Trace getTrace() {
+        return trace;
+    }
+
+    /**
+     * @return when the span started, in microseconds since the epoch
+     */
+    public long getStartEpochMicros() {
+        return trace == null ? 0 : trace.toEpochMicros(startNanos);
+    }
+
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    /**
+     * @return the duration, or -1 if the span is still open
+     */
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    /**
+     * @return the tags in the order they were added
+     */
+    public Map<String, String> getTags() {
+        if (tags == null) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> map = new LinkedHashMap<String, String>();
+        for (int i = 0; i < tags.size(); i += 2) {
+            map.put(tags.get(i), tags.get(i + 1));
+        }
+        return map;
+    }
+
+    /**
+     * @return the error the span was marked with, or null
+     */
+    public String getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(name).append(' ')
+                .append(String.format("%.3fms", durationNanos / 1000000.0));
+        for (Map.Entry<String, String> tag : getTags().entrySet()) {
+            builder.append(' ').append(tag.getKey()).append('=').append(tag.getValue());
+        }
+        if (error != null) {
+            builder.append(" error=").append(error);
+        }
+        return builder.toString();
+    }
+}
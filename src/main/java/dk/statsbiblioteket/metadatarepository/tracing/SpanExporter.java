@@ -0,0 +1,20 @@
+package dk.statsbiblioteket.metadatarepository.tracing;
+
+import java.util.List;
+
+/**
+ * Where finished traces go. Implementations are called on the thread of the traced request, so anything slow
+ * should be handed off to another thread
+ */
+public interface SpanExporter {
+
+    /**
+     * @param spans the spans of one trace, in the order they ended, so the first span of the trace is last
+     */
+    void export(List<Span> spans);
+
+    /**
+     * Release files and threads; no more traces are exported after this
+     */
+    void close();
+}
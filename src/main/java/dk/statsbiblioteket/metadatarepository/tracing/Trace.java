@@ -0,0 +1,67 @@
+package dk.statsbiblioteket.metadatarepository.tracing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The spans of one traced request, collected until the first span ends
+ */
+class Trace {
+
+    /*
+     * A runaway loop of spans in one request must not eat the heap
+     */
+    static final int MAX_SPANS = 1000;
+
+    private final Tracer tracer;
+
+    private final String traceId;
+
+    private final boolean sampled;
+
+    private final long startNanos = System.nanoTime();
+
+    private final long startEpochMicros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+
+    private final List<Span> spans = new ArrayList<Span>();
+
+    private int lastSpanId = 0;
+
+    private int dropped = 0;
+
+    Trace(Tracer tracer, long traceId, boolean sampled) {
+        this.tracer = tracer;
+        this.traceId = String.format("%016x", traceId);
+        this.sampled = sampled;
+    }
+
+    String getTraceId() {
+        return traceId;
+    }
+
+    int nextSpanId() {
+        return ++lastSpanId;
+    }
+
+    long toEpochMicros(long nanos) {
+        return startEpochMicros + TimeUnit.NANOSECONDS.toMicros(nanos - startNanos);
+    }
+
+    void finished(Span span) {
+        if (spans.size() < MAX_SPANS) {
+            spans.add(span);
+        } else {
+            dropped++;
+        }
+        tracer.finished(this, span, sampled);
+    }
+
+    List<Span> getSpans() {
+        return spans;
+    }
+
+    int getDropped() {
+        return dropped;
+    }
+}
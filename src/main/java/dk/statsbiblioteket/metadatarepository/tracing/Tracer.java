@@ -0,0 +1,195 @@
+package dk.statsbiblioteket.metadatarepository.tracing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts spans and keeps track of the current span of each thread, so code further down the call, like the
+ * connection pool, can add child spans without the span being passed along.
+ * <p>
+ * A trace begins when {@link #start(String)} is called on a thread with no current span, and is kept with
+ * probability {@value #SAMPLE_RATE_PROPERTY} (0.0 to 1.0, default 0). If {@value #SLOW_MILLIS_PROPERTY} is above 0,
+ * every trace is recorded and the ones not sampled are still exported if they took at least that long. With
+ * neither set, nothing is recorded and spans cost a thread local lookup. Finished traces go to the exporter named by
+ * {@value #EXPORTER_PROPERTY}: {@code log} (default) for {@link LogSpanExporter}, {@code file:<path>} for
+ * {@link FileSpanExporter}, or the name of a {@link SpanExporter} class with a no argument constructor.
+ * </p>
+ * <p>
+ * Work handed to other threads is not part of the trace.
+ * </p>
+ */
+public class Tracer {
+
+    private static final Logger logger = LoggerFactory.getLogger(Tracer.class);
+
+    public static final String SAMPLE_RATE_PROPERTY = "fedora.tracing.sampleRate";
+
+    public static final String SLOW_MILLIS_PROPERTY = "fedora.tracing.slowMillis";
+
+    public static final String EXPORTER_PROPERTY = "fedora.tracing.exporter";
+
+    private static final Tracer INSTANCE = fromSystemProperties();
+
+    private final ThreadLocal<Span> current = new ThreadLocal<Span>();
+
+    private volatile double sampleRate;
+
+    private volatile long slowNanos;
+
+    private volatile SpanExporter exporter;
+
+    /**
+     * @param sampleRate the fraction of traces to export, 0.0 to 1.0
+     * @param slowMillis export traces taking at least this long even if not sampled, 0 to not record those
+     * @param exporter where exported traces go
+     */
+    public Tracer(double sampleRate, long slowMillis, SpanExporter exporter) {
+        configure(sampleRate, slowMillis, exporter);
+    }
+
+    /**
+     * @return the tracer used by the field search and the connection pool
+     */
+    public static Tracer getInstance() {
+        return INSTANCE;
+    }
+
+    private static Tracer fromSystemProperties() {
+        double sampleRate = 0;
+        long slowMillis = 0;
+        String exporter = null;
+        try {
+            String rate = System.getProperty(SAMPLE_RATE_PROPERTY);
+            if (rate != null) {
+                sampleRate = Double.parseDouble(rate.trim());
+            }
+            slowMillis = Long.getLong(SLOW_MILLIS_PROPERTY, 0);
+            exporter = System.getProperty(EXPORTER_PROPERTY, "log");
+        } catch (SecurityException e) {
+            return new Tracer(0, 0, new LogSpanExporter());
+        } catch (NumberFormatException e) {
+            logger.warn("Ignoring {}, not a number", SAMPLE_RATE_PROPERTY, e);
+        }
+        if (sampleRate <= 0 && slowMillis <= 0) {
+            return new Tracer(0, 0, new LogSpanExporter());
+        }
+        logger.info("Tracing {} of requests and requests slower than {} ms to {}",
+                new Object[]{sampleRate, slowMillis, exporter});
+        return new Tracer(sampleRate, slowMillis, createExporter(exporter));
+    }
+
+    /**
+     * @param spec {@code log}, {@code file:<path>} or a class name
+     * @return the exporter, the log exporter if the spec cannot be used
+     */
+    static SpanExporter createExporter(String spec) {
+        if (spec == null || spec.trim().isEmpty() || spec.trim().equals("log")) {
+            return new LogSpanExporter();
+        }
+        spec = spec.trim();
+        try {
+            if (spec.startsWith("file:")) {
+                return new FileSpanExporter(new File(spec.substring("file:".length())));
+            }
+            return Class.forName(spec).asSubclass(SpanExporter.class).newInstance();
+        } catch (IOException | ReflectiveOperationException | ClassCastException e) {
+            logger.warn("Failed to create span exporter '{}', logging traces instead", spec, e);
+            return new LogSpanExporter();
+        }
+    }
+
+    /**
+     * Change the sampling and the exporter. The old exporter is closed
+     * @param sampleRate the fraction of traces to export, 0.0 to 1.0
+     * @param slowMillis export traces taking at least this long even if not sampled, 0 to not record those
+     * @param exporter where exported traces go
+     */
+    public void configure(double sampleRate, long slowMillis, SpanExporter exporter) {
+        SpanExporter old = this.exporter;
+        this.exporter = exporter;
+        this.sampleRate = Math.max(0, Math.min(1, sampleRate));
+        this.slowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, slowMillis));
+        if (old != null && old != exporter) {
+            old.close();
+        }
+    }
+
+    /**
+     * @return true if some traces are recorded
+     */
+    public boolean isEnabled() {
+        return sampleRate > 0 || slowNanos > 0;
+    }
+
+    /**
+     * Start a span as a child of the current span, or start a new trace if there is none
+     * @param name what the span times, e.g. "fieldsearch.update"
+     * @return the span, to be closed by this thread, or {@link Span#NOOP} if the trace is not recorded
+     */
+    public Span start(String name) {
+        Span parent = current.get();
+        if (parent != null) {
+            return push(name, parent);
+        }
+        double rate = sampleRate;
+        boolean sampled = rate > 0 && (rate >= 1 || ThreadLocalRandom.current().nextDouble() < rate);
+        if (!sampled && slowNanos <= 0) {
+            return Span.NOOP;
+        }
+        Trace trace = new Trace(this, ThreadLocalRandom.current().nextLong(), sampled);
+        Span span = new Span(name, trace, null);
+        current.set(span);
+        return span;
+    }
+
+    /**
+     * Start a span only if this thread is inside a recorded trace
+     * @param name what the span times, e.g. "pool.borrow"
+     * @return the span, to be closed by this thread, or {@link Span#NOOP}
+     */
+    public Span startChild(String name) {
+        Span parent = current.get();
+        if (parent == null) {
+            return Span.NOOP;
+        }
+        return push(name, parent);
+    }
+
+    /**
+     * @return the innermost open span of this thread, or {@link Span#NOOP}
+     */
+    public Span current() {
+        Span span = current.get();
+        return span == null ? Span.NOOP : span;
+    }
+
+    private Span push(String name, Span parent) {
+        Span span = new Span(name, parent.getTrace(), parent);
+        current.set(span);
+        return span;
+    }
+
+    void finished(Trace trace, Span span, boolean sampled) {
+        Span parent = span.getParent();
+        if (parent != null) {
+            current.set(parent);
+            return;
+        }
+        current.remove();
+        if (sampled || (slowNanos > 0 && span.getDurationNanos() >= slowNanos)) {
+            if (trace.getDropped() > 0) {
+                span.tag("droppedSpans", trace.getDropped());
+            }
+            try {
+                exporter.export(trace.getSpans());
+            } catch (RuntimeException e) {
+                logger.warn("Failed to export trace {}", trace.getTraceId(), e);
+            }
+        }
+    }
+}
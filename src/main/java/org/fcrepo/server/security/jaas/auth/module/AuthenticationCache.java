@@ -0,0 +1,227 @@
+package org.fcrepo.server.security.jaas.auth.module;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers successful logins for a while, so clients that log in on every request are served by a single
+ * lookup.
+ * <p>
+ * Entries are keyed by the username and a keyed digest (HMAC-SHA256 with a random per-JVM key) of the password,
+ * so the cache never holds a password. Only successful logins are cached. Entries expire after a fixed time,
+ * the number of entries is bounded, and all entries are dropped when the users file has been reloaded.
+ * Each entry also remembers the users it was checked against, and is only used with those same users, so a login
+ * checked against an older users file is never served after a reload, whatever the order of threads.
+ * </p>
+ */
+class AuthenticationCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(AuthenticationCache.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private final int maxSize;
+
+    private final long ttlNanos;
+
+    private final SecretKeySpec key;
+
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>();
+
+    private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private volatile XmlUsers snapshot = null;
+
+    /*
+     * Users that have been replaced by a reload, so a thread still holding them cannot make them current again
+     */
+    private final Set<XmlUsers> retired = Collections.newSetFromMap(new WeakHashMap<XmlUsers, Boolean>());
+
+    /**
+     * @param maxSize the maximum number of cached logins
+     * @param ttlMillis how long a login is remembered
+     */
+    AuthenticationCache(int maxSize, long ttlMillis) {
+        this.maxSize = maxSize;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        this.key = new SecretKeySpec(secret, ALGORITHM);
+    }
+
+    /**
+     * Look up a previous successful login
+     * @param users the currently loaded users
+     * @param username the username
+     * @param password the password
+     * @return the user, or null if this login has not been seen recently
+     */
+    XmlUsers.User get(XmlUsers users, String username, String password) {
+        if (users != snapshot) {
+            reset(users);
+            misses.incrementAndGet();
+            return null;
+        }
+        Key lookup = new Key(username, digest(password));
+        Entry entry = entries.get(lookup);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (entry.users != users || System.nanoTime() - entry.created > ttlNanos) {
+            entries.remove(lookup, entry);
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.user;
+    }
+
+    /**
+     * Remember a successful login
+     * @param users the users the login was checked against
+     * @param username the username
+     * @param password the password
+     * @param user the user that logged in
+     */
+    void put(XmlUsers users, String username, String password, XmlUsers.User user) {
+        if (users != snapshot && !reset(users)) {
+            return; //checked against users that have since been reloaded
+        }
+        if (entries.size() >= maxSize) {
+            evict();
+        }
+        entries.put(new Key(username, digest(password)), new Entry(users, user));
+    }
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+    long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Make the users current and drop the cached logins, unless they have already been replaced
+     * @param users the users of a login
+     * @return false if the users are older than the current ones
+     */
+    private synchronized boolean reset(XmlUsers users) {
+        if (users == snapshot) {
+            return true;
+        }
+        if (retired.contains(users)) {
+            return false;
+        }
+        if (snapshot != null) {
+            logger.debug("Users file reloaded, dropping {} cached logins", entries.size());
+            retired.add(snapshot);
+        }
+        entries.clear();
+        snapshot = users;
+        return true;
+    }
+
+    /*
+     * Drop expired entries and entries of reloaded users, and if that is not enough, arbitrary entries until a tenth
+     * of the cache is free, so the scan is only done once in a while
+     */
+    private synchronized void evict() {
+        if (entries.size() < maxSize) {
+            return; //another thread made room
+        }
+        long now = System.nanoTime();
+        XmlUsers current = snapshot;
+        Iterator<Entry> values = entries.values().iterator();
+        while (values.hasNext()) {
+            Entry entry = values.next();
+            if (entry.users != current || now - entry.created > ttlNanos) {
+                values.remove();
+            }
+        }
+        int target = maxSize - Math.max(1, maxSize / 10);
+        values = entries.values().iterator();
+        while (entries.size() > target && values.hasNext()) {
+            values.next();
+            values.remove();
+        }
+    }
+
+    private byte[] digest(String password) {
+        Mac mac = macs.get();
+        if (mac == null) {
+            try {
+                mac = Mac.getInstance(ALGORITHM);
+                mac.init(key);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(ALGORITHM + " is not available", e);
+            }
+            macs.set(mac);
+        }
+        return mac.doFinal(password.getBytes(UTF8));
+    }
+
+    private static class Key {
+
+        private final String username;
+
+        private final byte[] digest;
+
+        private final int hash;
+
+        Key(String username, byte[] digest) {
+            this.username = username;
+            this.digest = digest;
+            this.hash = 31 * username.hashCode() + Arrays.hashCode(digest);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) o;
+            return username.equals(that.username) && Arrays.equals(digest, that.digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static class Entry {
+
+        private final XmlUsers users;
+
+        private final XmlUsers.User user;
+
+        private final long created = System.nanoTime();
+
+        Entry(XmlUsers users, XmlUsers.User user) {
+            this.users = users;
+            this.user = user;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package org.fcrepo.server.security.jaas.auth.module;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.xml.bind.DatatypeConverter;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Verification of the password attribute of a user in fedora-users.xml.
+ * <p>
+ * A password starting with one of these schemes in braces is a hash, any other password is compared as plain text,
+ * even if it starts with braces
+ * </p>
+ * <ul>
+ * <li>{@code {SHA}}, {@code {SHA256}}, {@code {SHA512}} followed by the base64 encoded digest of the password</li>
+ * <li>{@code {SSHA}}, {@code {SSHA256}}, {@code {SSHA512}} followed by the base64 encoded digest of the password
+ * and salt, with the salt appended</li>
+ * <li>{@code {PBKDF2}} (HMAC-SHA1) or {@code {PBKDF2-SHA256}} followed by {@code iterations$salt$hash}, salt and
+ * hash base64 encoded. PBKDF2-SHA256 needs a Java 8 runtime</li>
+ * </ul>
+ * <p>
+ * The PBKDF2 forms are deliberately slow, which is why successful logins are remembered by the
+ * {@link AuthenticationCache}.
+ * </p>
+ */
+class PasswordHashes {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private PasswordHashes() {
+    }
+
+    /**
+     * @param stored the password attribute from the users file
+     * @return the text in braces the password starts with, upper case, or null if it does not start with braces
+     */
+    static String prefix(String stored) {
+        if (stored.startsWith("{")) {
+            int end = stored.indexOf('}');
+            if (end > 1) {
+                return stored.substring(1, end).toUpperCase(Locale.ROOT);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param stored the password attribute from the users file
+     * @return the algorithm of a hashed password, upper case, or null if the password is plain text
+     */
+    static String algorithm(String stored) {
+        String prefix = prefix(stored);
+        return prefix != null && isSupported(prefix) ? prefix : null;
+    }
+
+    /**
+     * @param algorithm a prefix returned by {@link #prefix(String)}
+     * @return true if the prefix names a hash algorithm that can be verified
+     */
+    static boolean isSupported(String algorithm) {
+        return digestName(algorithm) != null || pbkdf2Name(algorithm) != null;
+    }
+
+    /**
+     * Check a password given at login against the stored password
+     * @param stored the password attribute from the users file
+     * @param candidate the password given at login
+     * @return true if the passwords match
+     */
+    static boolean verify(String stored, String candidate) {
+        String algorithm = algorithm(stored);
+        if (algorithm == null) {
+            return stored.equals(candidate);
+        }
+        String encoded = stored.substring(algorithm.length() + 2);
+        try {
+            String digestName = digestName(algorithm);
+            if (digestName != null) {
+                return verifyDigest(digestName, algorithm.startsWith("SSHA"), encoded, candidate);
+            }
+            String pbkdf2Name = pbkdf2Name(algorithm);
+            if (pbkdf2Name != null) {
+                return verifyPbkdf2(pbkdf2Name, encoded, candidate);
+            }
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            return false;
+        }
+        return false;
+    }
+
+    private static boolean verifyDigest(String digestName, boolean salted, String encoded, String candidate)
+            throws GeneralSecurityException {
+        byte[] decoded = DatatypeConverter.parseBase64Binary(encoded);
+        MessageDigest digest = MessageDigest.getInstance(digestName);
+        int length = digest.getDigestLength();
+        if (decoded.length < length || (!salted && decoded.length != length)) {
+            return false;
+        }
+        digest.update(candidate.getBytes(UTF8));
+        if (salted) {
+            digest.update(decoded, length, decoded.length - length);
+        }
+        return MessageDigest.isEqual(digest.digest(), Arrays.copyOf(decoded, length));
+    }
+
+    private static boolean verifyPbkdf2(String pbkdf2Name, String encoded, String candidate)
+            throws GeneralSecurityException {
+        String[] parts = encoded.split("\\$");
+        if (parts.length != 3) {
+            return false;
+        }
+        int iterations = Integer.parseInt(parts[0]);
+        byte[] salt = DatatypeConverter.parseBase64Binary(parts[1]);
+        byte[] expected = DatatypeConverter.parseBase64Binary(parts[2]);
+        PBEKeySpec spec = new PBEKeySpec(candidate.toCharArray(), salt, iterations, expected.length * 8);
+        try {
+            byte[] actual = SecretKeyFactory.getInstance(pbkdf2Name).generateSecret(spec).getEncoded();
+            return MessageDigest.isEqual(actual, expected);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private static String digestName(String algorithm) {
+        switch (algorithm) {
+            case "SHA":
+            case "SSHA":
+                return "SHA-1";
+            case "SHA256":
+            case "SSHA256":
+                return "SHA-256";
+            case "SHA512":
+            case "SSHA512":
+                return "SHA-512";
+            default:
+                return null;
+        }
+    }
+
+    private static String pbkdf2Name(String algorithm) {
+        switch (algorithm) {
+            case "PBKDF2":
+                return "PBKDF2WithHmacSHA1";
+            case "PBKDF2-SHA256":
+                return "PBKDF2WithHmacSHA256";
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package org.fcrepo.server.security.jaas.auth.module;
+
+import org.fcrepo.server.security.jaas.auth.UserPrincipal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable snapshot of the users in fedora-users.xml, indexed by username.
+ * <p>
+ * The file is compiled into user records once per load, so a login is a single hash lookup. The principal is
+ * shared between logins, while each Subject gets its own mutable copy of the attributes, as the Fedora JAAS filter
+ * adds attributes such as fedoraRole to that map.
+ * </p>
+ */
+class XmlUsers {
+
+    private static final Logger logger = LoggerFactory.getLogger(XmlUsers.class);
+
+    private static final XMLInputFactory INPUT_FACTORY = createInputFactory();
+
+    private final Map<String, User> users;
+
+    private final byte[] digest;
+
+    private XmlUsers(Map<String, User> users, byte[] digest) {
+        this.users = users;
+        this.digest = digest;
+    }
+
+    /**
+     * Parse and compile a users file.
+     * <p>
+     * The file is read into memory once, for its digest, and then streamed, so only the compact user records are
+     * built, never a tree of the whole file. Attribute
+     * names and values are shared between users, as large files repeat the same roles and groups many times.
+     * </p>
+     * @param userFile fedora-users.xml
+     * @return the users in the file
+     * @throws Exception if the file could not be read or parsed
+     */
+    static XmlUsers load(File userFile) throws Exception {
+        return load(Files.readAllBytes(userFile.toPath()));
+    }
+
+    /**
+     * Parse and compile the content of a users file
+     * @param content the bytes of fedora-users.xml
+     * @return the users in the file
+     * @throws Exception if the content could not be parsed
+     */
+    static XmlUsers load(byte[] content) throws Exception {
+        XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(new ByteArrayInputStream(content));
+        try {
+            return new XmlUsers(Collections.unmodifiableMap(parse(reader)), digest(content));
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @param content the bytes of a users file
+     * @return the digest that tells one version of the file from another
+     */
+    static byte[] digest(byte[] content) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(content);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static Map<String, User> parse(XMLStreamReader reader) throws XMLStreamException {
+        Map<String, User> users = new HashMap<String, User>();
+        Map<String, String> strings = new HashMap<String, String>();
+        String name = null;
+        String password = null;
+        Map<String, Set<String>> attributes = null;
+        String attributeName = null;
+        StringBuilder text = null;
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    String element = reader.getLocalName();
+                    if (element.equals("user")) {
+                        name = attribute(reader, "name");
+                        password = attribute(reader, "password");
+                        attributes = new HashMap<String, Set<String>>();
+                    } else if (element.equals("attribute") && attributes != null) {
+                        attributeName = intern(strings, attribute(reader, "name"));
+                    } else if (element.equals("value") && attributeName != null) {
+                        text = new StringBuilder();
+                    }
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                    if (text != null) {
+                        text.append(reader.getText());
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    element = reader.getLocalName();
+                    if (element.equals("value") && text != null) {
+                        if (text.length() == 0) {
+                            logger.warn("Ignoring empty value of attribute '{}' for user '{}'", attributeName, name);
+                        } else {
+                            Set<String> values = attributes.get(attributeName);
+                            if (values == null) {
+                                values = new HashSet<String>(4);
+                                attributes.put(attributeName, values);
+                            }
+                            values.add(intern(strings, text.toString()));
+                        }
+                        text = null;
+                    } else if (element.equals("attribute")) {
+                        attributeName = null;
+                    } else if (element.equals("user") && attributes != null) {
+                        if (users.containsKey(name)) {
+                            logger.warn("User '{}' is defined more than once in the users file, using the first definition",
+                                    name);
+                        } else {
+                            users.put(name, new User(name, password, attributes));
+                        }
+                        attributes = null;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return users;
+    }
+
+    private static String attribute(XMLStreamReader reader, String name) {
+        String value = reader.getAttributeValue(null, name);
+        return value == null ? "" : value;
+    }
+
+    /*
+     * Share equal strings within one load. Unlike String.intern, the strings go away with the snapshot
+     */
+    private static String intern(Map<String, String> strings, String value) {
+        String shared = strings.get(value);
+        if (shared == null) {
+            strings.put(value, value);
+            shared = value;
+        }
+        return shared;
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+
+    /**
+     * @param username the username
+     * @return the user, or null if there is no such user
+     */
+    User get(String username) {
+        return users.get(username);
+    }
+
+    int size() {
+        return users.size();
+    }
+
+    /**
+     * @return the digest of the file these users were loaded from
+     */
+    byte[] getDigest() {
+        return digest;
+    }
+
+    /**
+     * One user from the users file
+     */
+    static class User {
+
+        private final String name;
+
+        private final String password;
+
+        private final boolean hashed;
+
+        private final UserPrincipal principal;
+
+        private final Map<String, Set<String>> attributes;
+
+        User(String name, String password, Map<String, Set<String>> attributes) {
+            this.name = name;
+            this.password = password;
+            this.hashed = PasswordHashes.algorithm(password) != null;
+            String prefix = PasswordHashes.prefix(password);
+            if (!hashed && prefix != null) {
+                logger.warn("User '{}' has a password starting with the unknown hash algorithm '{}', comparing it as "
+                            + "plain text", name, prefix);
+            }
+            this.principal = new UserPrincipal(name);
+            this.attributes = compact(attributes);
+        }
+
+        /*
+         * Most users have one or two attributes with a single value, so use the small immutable collections where
+         * possible
+         */
+        private static Map<String, Set<String>> compact(Map<String, Set<String>> attributes) {
+            if (attributes.isEmpty()) {
+                return Collections.emptyMap();
+            }
+            Map<String, Set<String>> frozen = new HashMap<String, Set<String>>(attributes.size() * 4 / 3 + 1);
+            for (Map.Entry<String, Set<String>> attribute : attributes.entrySet()) {
+                Set<String> values = attribute.getValue();
+                frozen.put(attribute.getKey(), values.size() == 1
+                                               ? Collections.singleton(values.iterator().next())
+                                               : Collections.unmodifiableSet(values));
+            }
+            if (frozen.size() == 1) {
+                Map.Entry<String, Set<String>> only = frozen.entrySet().iterator().next();
+                return Collections.singletonMap(only.getKey(), only.getValue());
+            }
+            return Collections.unmodifiableMap(frozen);
+        }
+
+        String getName() {
+            return name;
+        }
+
+        boolean checkPassword(String candidate) {
+            return PasswordHashes.verify(password, candidate);
+        }
+
+        /**
+         * @return true if the password is stored as a hash, which is expensive to verify
+         */
+        boolean isHashed() {
+            return hashed;
+        }
+
+        UserPrincipal getPrincipal() {
+            return principal;
+        }
+
+        /**
+         * @return the attributes of the user, shared between logins and therefore unmodifiable
+         */
+        Map<String, Set<String>> getAttributes() {
+            return attributes;
+        }
+
+        /**
+         * @return a new, modifiable copy of the attributes and their values, for the credentials of one Subject
+         */
+        HashMap<String, Set<String>> copyAttributes() {
+            HashMap<String, Set<String>> copy = new HashMap<String, Set<String>>(attributes.size() * 4 / 3 + 1);
+            for (Map.Entry<String, Set<String>> attribute : attributes.entrySet()) {
+                copy.put(attribute.getKey(), new HashSet<String>(attribute.getValue()));
+            }
+            return copy;
+        }
+    }
+}
@@ -20,12 +20,8 @@ package org.fcrepo.server.security.jaas.auth.module;
 
 import org.fcrepo.common.Constants;
 import org.fcrepo.server.security.jaas.auth.UserPrincipal;
-import org.fcrepo.server.security.jaas.util.DataUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
 
 import javax.security.auth.Subject;
 import javax.security.auth.callback.Callback;
@@ -37,10 +33,9 @@ import javax.security.auth.login.LoginException;
 import javax.security.auth.spi.LoginModule;
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 public class XmlUsersFileModule
         implements LoginModule {
@@ -50,12 +45,17 @@ public class XmlUsersFileModule
 
     private static final File userFile = getUsersFile();
 
-    // must be marked volatile for double-checked locking in caching method to work
-    private static volatile long userFileParsed = Long.MIN_VALUE;
+    private static final XmlUsersFileWatcher usersFileWatcher = new XmlUsersFileWatcher(userFile);
 
-    private static volatile long userFileBytesLoaded = 0L;
+    private static final long DEFAULT_AUTH_CACHE_TTL_SECONDS = 300;
 
-    private static volatile Document userDoc = null;
+    private static final int DEFAULT_AUTH_CACHE_SIZE = 1000;
+
+    // shared by all module instances, configured by the first instance whose options set it up
+    private static volatile AuthenticationCache authCache = null;
+
+    // true if the options asked for caching, otherwise only logins with hashed passwords are cached
+    private static volatile boolean cacheAllLogins = false;
 
     private Subject subject = null;
 
@@ -89,7 +89,9 @@ public class XmlUsersFileModule
             debug = true;
         }
 
-        attributes = new HashMap<String, Set<String>>();
+        if (authCache == null && this.options.get("authCacheSize") != null) {
+            initAuthCache((String) this.options.get("authCacheSize"), (String) this.options.get("authCacheTtlSeconds"));
+        }
 
         if (debug) {
             logger.debug("login module initialised: {}", this.getClass().getName());
@@ -184,56 +186,78 @@ public class XmlUsersFileModule
     }
 
     private boolean authenticate(String username, String password) {
-        if (!userFile.exists()) {
-            logger.error("XmlUsersFile not found: {}", userFile.getAbsolutePath());
+        XmlUsers users = usersFileWatcher.getUsers();
+        if (users == null) {
+            logger.error("XmlUsersFile could not be loaded: {}", userFile.getAbsolutePath());
             return false;
         }
 
         try {
-            Document userDoc = getUserDocument();
-            // go through each user
-            NodeList userList = userDoc.getElementsByTagName("user");
-            for (int x = 0; x < userList.getLength(); x++) {
-                Element user = (Element) userList.item(x);
-                String a_username = user.getAttribute("name");
-                String a_password = user.getAttribute("password");
-                if (!a_username.equals(username)
-                        || !a_password.equals(password)) {
-                    continue;
+            XmlUsers.User user = users.get(username);
+            if (user == null) {
+                return false;
+            }
+            // plain text logins are only cached if the options asked for it
+            AuthenticationCache cache = cacheAllLogins || user.isHashed() ? getAuthCache() : null;
+            if (cache == null || cache.get(users, username, password) == null) {
+                if (!user.checkPassword(password)) {
+                    return false;
                 }
-
-                principal = new UserPrincipal(username);
-
-                // for a matched user, go through each attribute
-                NodeList attributeList = user.getElementsByTagName("attribute");
-                for (int y = 0; y < attributeList.getLength(); y++) {
-                    Element attribute = (Element) attributeList.item(y);
-                    String name = attribute.getAttribute("name");
-
-                    // go through each value
-                    NodeList valueList =
-                            attribute.getElementsByTagName("value");
-                    for (int z = 0; z < valueList.getLength(); z++) {
-                        Element value = (Element) valueList.item(z);
-                        String v = value.getFirstChild().getNodeValue();
-
-                        Set<String> values = attributes.get(name);
-                        if (values == null) {
-                            values = new HashSet<String>();
-                            attributes.put(name, values);
-                        }
-                        values.add(v);
-                    }
+                if (cache != null) {
+                    cache.put(users, username, password, user);
                 }
-
-                return true;
             }
+            // the principal is shared between logins, but the attributes are copied, as the JAAS filter adds to them
+            principal = user.getPrincipal();
+            attributes = user.copyAttributes();
+            return true;
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
         }
         return false;
     }
 
+    /**
+     * Set up the authentication cache from the login module options
+     * @param size the value of the authCacheSize option, the maximum number of cached logins
+     * @param ttlSeconds the value of the authCacheTtlSeconds option, how long a login is cached
+     */
+    private static synchronized void initAuthCache(String size, String ttlSeconds) {
+        if (authCache != null) {
+            return;
+        }
+        try {
+            int maxSize = Integer.parseInt(size.trim());
+            long ttl = ttlSeconds == null ? DEFAULT_AUTH_CACHE_TTL_SECONDS : Long.parseLong(ttlSeconds.trim());
+            if (maxSize > 0 && ttl > 0) {
+                logger.info("Caching up to {} logins for {} seconds", maxSize, ttl);
+                authCache = new AuthenticationCache(maxSize, TimeUnit.SECONDS.toMillis(ttl));
+                cacheAllLogins = true;
+            }
+        } catch (NumberFormatException e) {
+            logger.warn("Failed to read authCacheSize '{}' or authCacheTtlSeconds '{}' as numbers, not caching logins",
+                    size, ttlSeconds);
+        }
+    }
+
+    /**
+     * @return the authentication cache, set up with default bounds if the options did not configure it. Hashed
+     * passwords are always verified through the cache, as verifying them on every request would be too slow
+     */
+    private static AuthenticationCache getAuthCache() {
+        AuthenticationCache cache = authCache;
+        if (cache == null) {
+            synchronized (XmlUsersFileModule.class) {
+                if (authCache == null) {
+                    authCache = new AuthenticationCache(DEFAULT_AUTH_CACHE_SIZE,
+                            TimeUnit.SECONDS.toMillis(DEFAULT_AUTH_CACHE_TTL_SECONDS));
+                }
+                cache = authCache;
+            }
+        }
+        return cache;
+    }
+
     private static File getUsersFile() {
         if (Constants.FEDORA_HOME == null || "".equals(Constants.FEDORA_HOME)) {
             logger.error("FEDORA_HOME constant is not set");
@@ -245,22 +269,4 @@ public class XmlUsersFileModule
 
         return new File(Constants.FEDORA_HOME + "/server/config/fedora-users.xml");
     }
-
-    /**
-     * Quick and dirty caching.
-     * @return DOM of a parsed user file
-     * @throws Exception
-     */
-    private static Document getUserDocument() throws Exception {
-        if (userDoc == null || userFileParsed != userFile.lastModified() || userFileBytesLoaded != userFile.length()) {
-            synchronized(org.fcrepo.server.security.jaas.auth.module.XmlUsersFileModule.class) {
-                if (userDoc == null || userFileParsed != userFile.lastModified() || userFileBytesLoaded != userFile.length()) {
-                    userDoc = DataUtils.getDocumentFromFile(userFile);
-                    userFileParsed = userFile.lastModified();
-                    userFileBytesLoaded = userFile.length();
-                }
-            }
-        }
-        return userDoc;
-    }
 }
\ No newline at end of file
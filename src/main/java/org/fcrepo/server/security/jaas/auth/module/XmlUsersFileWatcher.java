@@ -0,0 +1,194 @@
+package org.fcrepo.server.security.jaas.auth.module;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the current snapshot of fedora-users.xml, and reloads it in the background when the file changes.
+ * <p>
+ * Logins only read the published snapshot, they never look at the file. A daemon thread waits for changes to the
+ * config directory through a {@link WatchService}, and also checks the file at a fixed interval, for file systems
+ * where the watch service does not see every change. The file has changed if its digest has, as an edit can keep
+ * both the modification time and the length. A new file is parsed and compiled off the login path, and replaces
+ * the snapshot in a single write. If the new file cannot be parsed, the last good snapshot stays in use.
+ * </p>
+ * <p>
+ * The thread stops when there have been no logins for {@value #IDLE_MINUTES} minutes, so it does not keep an
+ * undeployed webapp alive, and the next login starts it again.
+ * </p>
+ */
+class XmlUsersFileWatcher implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(XmlUsersFileWatcher.class);
+
+    private static final long POLL_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    private static final long IDLE_MINUTES = 10;
+
+    /*
+     * Editors often write a file in several steps, so wait a little after an event before reading it
+     */
+    private static final long SETTLE_MILLIS = 200;
+
+    /*
+     * The failed digest of a file that could not be read
+     */
+    private static final byte[] UNREADABLE = new byte[0];
+
+    private final File userFile;
+
+    private volatile XmlUsers users = null;
+
+    private volatile boolean watching = false;
+
+    private volatile long lastUsed;
+
+    /*
+     * Digest of a file that failed to load, so it is not retried until it changes again. Guarded by this
+     */
+    private byte[] failedDigest = null;
+
+    XmlUsersFileWatcher(File userFile) {
+        this.userFile = userFile;
+    }
+
+    /**
+     * @return the current users, loading them and starting the watcher if it is not running. Null if the file has
+     * never been loaded successfully
+     */
+    XmlUsers getUsers() {
+        lastUsed = System.currentTimeMillis();
+        if (!watching) {
+            synchronized (this) {
+                if (!watching) {
+                    reloadIfChanged();
+                    Thread thread = new Thread(this, "XmlUsersFileWatcher");
+                    thread.setDaemon(true);
+                    thread.start();
+                    watching = true;
+                }
+            }
+        }
+        return users;
+    }
+
+    @Override
+    public void run() {
+        WatchService watchService = null;
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            Path dir = userFile.getAbsoluteFile().getParentFile().toPath();
+            dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException | UnsupportedOperationException | SecurityException e) {
+            logger.info("Unable to watch {} for changes, polling it every {} ms instead", userFile, POLL_INTERVAL_MILLIS);
+            logger.debug("Watch service failure", e);
+            close(watchService);
+            watchService = null;
+        }
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                if (watchService != null) {
+                    WatchKey key = watchService.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (key != null) {
+                        boolean relevant = concernsUserFile(key);
+                        key.reset();
+                        if (relevant) {
+                            Thread.sleep(SETTLE_MILLIS);
+                        }
+                    }
+                } else {
+                    Thread.sleep(POLL_INTERVAL_MILLIS);
+                }
+                synchronized (this) {
+                    if (System.currentTimeMillis() - lastUsed > TimeUnit.MINUTES.toMillis(IDLE_MINUTES)) {
+                        logger.debug("No logins for {} minutes, no longer watching {}", IDLE_MINUTES, userFile);
+                        watching = false;
+                        return;
+                    }
+                    reloadIfChanged();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            logger.warn("Watch service for {} was closed, no longer watching it", userFile);
+        } finally {
+            synchronized (this) {
+                watching = false;
+            }
+            close(watchService);
+        }
+    }
+
+    private boolean concernsUserFile(WatchKey key) {
+        boolean relevant = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            Object context = event.context();
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                || (context instanceof Path && ((Path) context).getFileName().toString().equals(userFile.getName()))) {
+                relevant = true;
+            }
+        }
+        return relevant;
+    }
+
+    /*
+     * Parse and compile the file if its digest has changed, and publish it if it is good. Must be called with the
+     * lock held
+     */
+    private void reloadIfChanged() {
+        byte[] content;
+        try {
+            content = Files.readAllBytes(userFile.toPath());
+        } catch (IOException e) {
+            if (failedDigest != UNREADABLE) {
+                logger.error("XmlUsersFile could not be read: {}", userFile.getAbsolutePath(), e);
+                failedDigest = UNREADABLE;
+            }
+            return;
+        }
+        byte[] digest = XmlUsers.digest(content);
+        XmlUsers current = users;
+        if (Arrays.equals(digest, failedDigest) || (current != null && Arrays.equals(digest, current.getDigest()))) {
+            return;
+        }
+        try {
+            long start = System.nanoTime();
+            XmlUsers loaded = XmlUsers.load(content);
+            users = loaded;
+            failedDigest = null;
+            logger.info("{} {} users from {} in {} ms", new Object[]{current == null ? "Loaded" : "Reloaded",
+                    loaded.size(), userFile, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)});
+        } catch (Exception e) {
+            failedDigest = digest;
+            if (current == null) {
+                logger.error("Failed to load users file {}", userFile, e);
+            } else {
+                logger.error("Failed to reload users file {}, keeping the previously loaded users", userFile, e);
+            }
+        }
+    }
+
+    private void close(WatchService watchService) {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                logger.debug("Failed to close watch service", e);
+            }
+        }
+    }
+}
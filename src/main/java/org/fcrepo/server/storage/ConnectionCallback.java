@@ -0,0 +1,26 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.storage;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Work to be done with a pooled connection, once one becomes available.
+ *
+ * @param <T> the type of the result
+ * @see ConnectionPool#executeReadOnly(ConnectionCallback, long)
+ * @see ConnectionPool#executeReadWrite(ConnectionCallback, long)
+ */
+public interface ConnectionCallback<T> {
+
+    /**
+     * Use the connection. The connection is returned to the pool afterwards, so it must not be kept.
+     * @param connection the borrowed connection
+     * @return the result of the work
+     * @throws SQLException if the database failed
+     */
+    T execute(Connection connection) throws SQLException;
+}
@@ -4,6 +4,8 @@
  */
 package org.fcrepo.server.storage;
 
+import dk.statsbiblioteket.metadatarepository.tracing.Span;
+import dk.statsbiblioteket.metadatarepository.tracing.Tracer;
 import org.apache.commons.dbcp.BasicDataSource;
 import org.apache.commons.dbcp.BasicDataSourceFactory;
 import org.fcrepo.server.utilities.DDLConverter;
@@ -13,9 +15,13 @@ import org.slf4j.LoggerFactory;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 
 
 /**
@@ -29,12 +35,35 @@ public class ConnectionPool {
     private static final Logger logger =
             LoggerFactory.getLogger(ConnectionPool.class);
 
+    /*
+     * How many connections to try before giving up, when borrowed connections keep failing validation
+     */
+    private static final int MAX_VALIDATION_ATTEMPTS = 3;
+
+    private static final int DEFAULT_ASYNC_MAX_WAITERS = 64;
+
     private DDLConverter ddlConverter;
 
     private BasicDataSource dataSource;
 
     private boolean supportsReadOnly = true;
 
+    private volatile ConnectionPoolGate gate = null;
+
+    private volatile ConnectionPoolValidation validation = null;
+
+    private long warmUpTimeoutMillis = 0;
+
+    private volatile ConnectionPoolAsync async = null;
+
+    private volatile ConnectionPoolSizing sizing = null;
+
+    private volatile ConnectionPoolStatementCache statementCache = null;
+
+    private final ConnectionPoolLane readOnlyLane = new ConnectionPoolLane("readOnly");
+
+    private final ConnectionPoolLane readWriteLane = new ConnectionPoolLane("readWrite");
+
     /**
      * <p>
      * Constructs a ConnectionPool based on the calling arguments.
@@ -178,10 +207,53 @@ public class ConnectionPool {
             }
         }
      </pre>
+     * Besides the JDBC driver properties, the following properties configure the pool itself
+     * <ul>
+     * <li>{@code database.supportsReadOnly}: set to false if the driver does not support read-only connections</li>
+     * <li>{@code pool.readOnlyReserved}: the number of connections, out of maxActive, that can only be borrowed
+     * through {@link #getReadOnlyConnection()}. When set, borrowers queue fairly for connections in front of the
+     * pool, and read-write borrowers can never hold more than maxActive minus this number of connections</li>
+     * <li>{@code pool.validationIdleMillis}: when set, connections are no longer validated on every borrow.
+     * Instead a connection is validated only if it has been idle for longer than this many milliseconds, using
+     * {@link Connection#isValid(int)} or, if the driver does not support that, the validation query. This
+     * replaces testOnBorrow</li>
+     * <li>{@code pool.validationTimeoutSeconds}: how long a single validation may take, default 5 seconds</li>
+     * <li>{@code pool.warmUpTimeoutMillis}: when set, minIdle connections are opened in parallel as soon as the
+     * pool is configured, see {@link #warmUp(String...)}. Startup never waits longer than this for the warm-up</li>
+     * <li>{@code pool.asyncMaxWaiters}: the maximum number of asynchronous requests that can wait for a
+     * connection at the same time, default {@value #DEFAULT_ASYNC_MAX_WAITERS}. Further requests fail at once</li>
+     * <li>{@code pool.adaptive.minActive} and {@code pool.adaptive.maxActive}: when maxActive is set, the pool
+     * is resized between these bounds from the observed borrow waits, see {@link ConnectionPoolSizing}. maxIdle
+     * and minIdle are lowered along with the size, and an unlimited maxActive (whenExhaustedAction 2) is
+     * replaced by the upper bound</li>
+     * <li>{@code pool.adaptive.intervalMillis}: how often the size is evaluated, default 10000</li>
+     * <li>{@code pool.adaptive.growWaitMillis}: grow when the 95th percentile borrow wait exceeds this, default
+     * 20</li>
+     * <li>{@code pool.adaptive.shrinkWaitMillis}: shrink when the 95th percentile borrow wait is below this and
+     * less than half the pool is in use, default 1</li>
+     * <li>{@code pool.adaptive.maxErrorRate}: shrink when more than this fraction of borrows see an SQLException,
+     * default 0.05</li>
+     * <li>{@code pool.adaptive.windows}: the number of intervals in a row that must agree before the size
+     * changes, default 3</li>
+     * <li>{@code pool.statementCacheSize}: when set, up to this many prepared statements are cached for each
+     * connection, see {@link ConnectionPoolStatementCache}</li>
+     * </ul>
      * @param props see above
      * @see org.fcrepo.server.storage.ConnectionPoolManagerImpl
      */
     protected void setConnectionProperties(Map<String, String> props) {
+        int readOnlyReserved = 0;
+        long validationIdleMillis = -1;
+        int validationTimeoutSeconds = 5;
+        int asyncMaxWaiters = DEFAULT_ASYNC_MAX_WAITERS;
+        int adaptiveMinActive = 1;
+        int adaptiveMaxActive = 0;
+        int adaptiveIntervalMillis = 10000;
+        int adaptiveGrowWaitMillis = 20;
+        int adaptiveShrinkWaitMillis = 1;
+        double adaptiveMaxErrorRate = 0.05;
+        int adaptiveWindows = 3;
+        int statementCacheSize = 0;
         for (String name : props.keySet()) {
             if (name.equals("database.supportsReadOnly")){
                 String value = props.get(name);
@@ -192,10 +264,156 @@ public class ConnectionPool {
                 } catch (Exception e) {
                     logger.warn("Failed to read value '{}' of 'connection.database.supportsReadOnly' as a boolean",value,e);
                 }
+            } else if (name.equals("pool.readOnlyReserved")) {
+                readOnlyReserved = parseInt(name, props.get(name), readOnlyReserved);
+            } else if (name.equals("pool.validationIdleMillis")) {
+                validationIdleMillis = parseLong(name, props.get(name), validationIdleMillis);
+            } else if (name.equals("pool.validationTimeoutSeconds")) {
+                validationTimeoutSeconds = parseInt(name, props.get(name), validationTimeoutSeconds);
+            } else if (name.equals("pool.warmUpTimeoutMillis")) {
+                warmUpTimeoutMillis = parseInt(name, props.get(name), (int) warmUpTimeoutMillis);
+            } else if (name.equals("pool.asyncMaxWaiters")) {
+                asyncMaxWaiters = parseInt(name, props.get(name), asyncMaxWaiters);
+            } else if (name.equals("pool.adaptive.minActive")) {
+                adaptiveMinActive = parseInt(name, props.get(name), adaptiveMinActive);
+            } else if (name.equals("pool.adaptive.maxActive")) {
+                adaptiveMaxActive = parseInt(name, props.get(name), adaptiveMaxActive);
+            } else if (name.equals("pool.adaptive.intervalMillis")) {
+                adaptiveIntervalMillis = parseInt(name, props.get(name), adaptiveIntervalMillis);
+            } else if (name.equals("pool.adaptive.growWaitMillis")) {
+                adaptiveGrowWaitMillis = parseInt(name, props.get(name), adaptiveGrowWaitMillis);
+            } else if (name.equals("pool.adaptive.shrinkWaitMillis")) {
+                adaptiveShrinkWaitMillis = parseInt(name, props.get(name), adaptiveShrinkWaitMillis);
+            } else if (name.equals("pool.adaptive.maxErrorRate")) {
+                adaptiveMaxErrorRate = parseDouble(name, props.get(name), adaptiveMaxErrorRate);
+            } else if (name.equals("pool.adaptive.windows")) {
+                adaptiveWindows = parseInt(name, props.get(name), adaptiveWindows);
+            } else if (name.equals("pool.statementCacheSize")) {
+                statementCacheSize = parseInt(name, props.get(name), statementCacheSize);
             } else {
                 dataSource.addConnectionProperty(name, props.get(name));
             }
         }
+        if (adaptiveMaxActive > 0) {
+            adaptiveMinActive = Math.max(Math.min(adaptiveMinActive, adaptiveMaxActive), readOnlyReserved + 1);
+            adaptiveMaxActive = Math.max(adaptiveMaxActive, adaptiveMinActive);
+            int maxActive = dataSource.getMaxActive();
+            if (maxActive <= 0 || maxActive > adaptiveMaxActive) {
+                dataSource.setMaxActive(adaptiveMaxActive);
+            } else if (maxActive < adaptiveMinActive) {
+                dataSource.setMaxActive(adaptiveMinActive);
+            }
+        }
+        configureGate(readOnlyReserved);
+        configureValidation(validationIdleMillis, validationTimeoutSeconds);
+        if (statementCacheSize > 0) {
+            logger.info("Caching up to {} prepared statements per connection", statementCacheSize);
+            // Statements are prepared on the physical connection, so they survive the connection being returned
+            dataSource.setAccessToUnderlyingConnectionAllowed(true);
+            statementCache = new ConnectionPoolStatementCache(statementCacheSize);
+        }
+        if (warmUpTimeoutMillis > 0) {
+            // Needed to close the physical connection of a warmed connection that fails validation
+            dataSource.setAccessToUnderlyingConnectionAllowed(true);
+        }
+        if (adaptiveMaxActive > 0) {
+            logger.info("Sizing connection pool adaptively between {} and {} connections",
+                    adaptiveMinActive, adaptiveMaxActive);
+            sizing = new ConnectionPoolSizing(dataSource, gate, adaptiveMinActive, adaptiveMaxActive,
+                    adaptiveGrowWaitMillis, adaptiveShrinkWaitMillis, adaptiveMaxErrorRate, adaptiveWindows);
+            sizing.start(adaptiveIntervalMillis);
+        }
+        async = new ConnectionPoolAsync(this, asyncMaxWaiters);
+        warmUp();
+    }
+
+    /**
+     * Open minIdle connections in parallel, validate them and prepare the given statements on each of them, so
+     * that the first requests do not have to wait for connections to be set up. Waits at most
+     * {@code connection.pool.warmUpTimeoutMillis}, and does nothing if that is not set.
+     * <p>
+     * This is called when the pool is configured, and can be called again by modules that know their hot SQL
+     * once the tables exist.
+     * </p>
+     *
+     * @param primeSql SQL to prepare on every warmed connection
+     * @return the number of connections that were warmed up in time
+     */
+    public int warmUp(String... primeSql) {
+        if (warmUpTimeoutMillis <= 0) {
+            return 0;
+        }
+        int count = dataSource.getMinIdle();
+        if (dataSource.getMaxIdle() >= 0) {
+            count = Math.min(count, dataSource.getMaxIdle());
+        }
+        count = Math.max(count, 1);
+        if (dataSource.getMaxActive() > 0) {
+            count = Math.min(count, dataSource.getMaxActive());
+        }
+        return new ConnectionPoolWarmUp(dataSource, count, validation, statementCache, primeSql).run(warmUpTimeoutMillis);
+    }
+
+    /*
+     * Replace validation on every borrow with validation of connections that have been idle for a while
+     */
+    private void configureValidation(long idleMillis, int timeoutSeconds) {
+        if (idleMillis < 0) {
+            return;
+        }
+        logger.info("Validating connections idle for more than {} ms instead of on every borrow", idleMillis);
+        dataSource.setTestOnBorrow(false);
+        // Needed to recognise the physical connection behind the pooled connection across borrows
+        dataSource.setAccessToUnderlyingConnectionAllowed(true);
+        validation = new ConnectionPoolValidation(dataSource, idleMillis, timeoutSeconds);
+    }
+
+    /*
+     * Put a gate in front of the data source if some connections should be reserved for read-only borrowers
+     */
+    private void configureGate(int readOnlyReserved) {
+        if (readOnlyReserved <= 0) {
+            return;
+        }
+        int capacity = dataSource.getMaxActive();
+        if (capacity <= 0) {
+            logger.warn("Ignoring 'connection.pool.readOnlyReserved', as the pool has no upper bound on active connections");
+            return;
+        }
+        if (readOnlyReserved >= capacity) {
+            logger.warn("'connection.pool.readOnlyReserved' ({}) must be less than maxActive ({}), reserving {}",
+                    new Object[]{readOnlyReserved, capacity, capacity - 1});
+            readOnlyReserved = capacity - 1;
+        }
+        logger.info("Reserving {} of {} connections for read-only borrowers", readOnlyReserved, capacity);
+        gate = new ConnectionPoolGate(capacity, readOnlyReserved);
+    }
+
+    private double parseDouble(String name, String value, double defaultValue) {
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            logger.warn("Failed to read value '{}' of 'connection.{}' as a number", value, name);
+            return defaultValue;
+        }
+    }
+
+    private long parseLong(String name, String value, long defaultValue) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            logger.warn("Failed to read value '{}' of 'connection.{}' as an integer", value, name);
+            return defaultValue;
+        }
+    }
+
+    private int parseInt(String name, String value, int defaultValue) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            logger.warn("Failed to read value '{}' of 'connection.{}' as an integer", value, name);
+            return defaultValue;
+        }
     }
 
     /**
@@ -320,9 +538,7 @@ public class ConnectionPool {
      */
     public Connection getReadOnlyConnection() throws SQLException {
         try {
-            Connection conn = dataSource.getConnection();
-            setConnectionReadOnly(conn, true);
-            return conn;
+            return borrow(readOnlyLane, true, dataSource.getMaxWait());
         } finally {
             if (logger.isDebugEnabled()) {
                 logger.debug("Got connection from pool (" + toString() + ")");
@@ -343,15 +559,323 @@ public class ConnectionPool {
      */
     public Connection getReadWriteConnection() throws SQLException {
         try {
-            Connection conn = dataSource.getConnection();
-            setConnectionReadOnly(conn, false);
-            return conn;
+            return borrow(readWriteLane, false, dataSource.getMaxWait());
         } finally {
             if (logger.isDebugEnabled()) {
                 logger.debug("Got connection from pool (" + toString() + ")");
             }
         }
     }
+
+    /**
+     * <p>
+     * Gets a read-only connection without blocking the calling thread. The
+     * returned future completes when a connection is available, and fails if
+     * none became available before the deadline or if too many callers are
+     * already waiting. The connection must be given back with
+     * {@link #free(Connection)}; cancelling the future before that returns it
+     * to the pool.
+     * </p>
+     *
+     * @param timeoutMillis how long to wait for a connection
+     * @return the future connection
+     */
+    public Future<Connection> getReadOnlyConnectionAsync(long timeoutMillis) {
+        return async().borrow(true, timeoutMillis);
+    }
+
+    /**
+     * <p>
+     * Gets a read-write connection without blocking the calling thread, see
+     * {@link #getReadOnlyConnectionAsync(long)}.
+     * </p>
+     *
+     * @param timeoutMillis how long to wait for a connection
+     * @return the future connection
+     */
+    public Future<Connection> getReadWriteConnectionAsync(long timeoutMillis) {
+        return async().borrow(false, timeoutMillis);
+    }
+
+    /**
+     * <p>
+     * Runs the callback with a read-only connection once one is available,
+     * on the executor set with {@link #setAsyncExecutor(Executor)}. The
+     * connection is freed when the callback returns.
+     * </p>
+     *
+     * @param callback the work to do with the connection
+     * @param timeoutMillis how long to wait for a connection
+     * @param <T> the result type
+     * @return the future result of the callback
+     */
+    public <T> Future<T> executeReadOnly(ConnectionCallback<T> callback, long timeoutMillis) {
+        return async().execute(true, callback, timeoutMillis);
+    }
+
+    /**
+     * <p>
+     * Runs the callback with a read-write connection once one is available,
+     * see {@link #executeReadOnly(ConnectionCallback, long)}.
+     * </p>
+     *
+     * @param callback the work to do with the connection
+     * @param timeoutMillis how long to wait for a connection
+     * @param <T> the result type
+     * @return the future result of the callback
+     */
+    public <T> Future<T> executeReadWrite(ConnectionCallback<T> callback, long timeoutMillis) {
+        return async().execute(false, callback, timeoutMillis);
+    }
+
+    /**
+     * Sets the executor that waits for connections and runs the callbacks of asynchronous requests. By default
+     * this is a pool of daemon threads, bounded by {@code connection.pool.asyncMaxWaiters}.
+     * @param executor the executor, e.g. one that starts a virtual thread per task
+     */
+    public void setAsyncExecutor(Executor executor) {
+        async().setExecutor(executor);
+    }
+
+    /**
+     * @return the number of asynchronous requests currently waiting for a connection or running their callback
+     */
+    public int getAsyncWaiting() {
+        return async().getWaiting();
+    }
+
+    /**
+     * @return the number of asynchronous requests rejected because too many were already waiting
+     */
+    public long getAsyncRejectedCount() {
+        return async().getRejectedCount();
+    }
+
+    private ConnectionPoolAsync async() {
+        ConnectionPoolAsync async = this.async;
+        if (async == null) {
+            synchronized (this) {
+                if (this.async == null) {
+                    this.async = new ConnectionPoolAsync(this, DEFAULT_ASYNC_MAX_WAITERS);
+                }
+                async = this.async;
+            }
+        }
+        return async;
+    }
+
+    /*
+     * Borrow a connection on behalf of an asynchronous request
+     */
+    Connection borrow(boolean readOnly, long maxWaitMillis) throws SQLException {
+        try {
+            return borrow(readOnly ? readOnlyLane : readWriteLane, readOnly, maxWaitMillis);
+        } finally {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Got connection from pool asynchronously (" + toString() + ")");
+            }
+        }
+    }
+
+    /*
+     * Borrow a connection from the data source, passing through the gate first if one is configured
+     */
+    private Connection borrow(ConnectionPoolLane lane, boolean readOnly, long maxWaitMillis) throws SQLException {
+        Span span = Tracer.getInstance().startChild("pool.borrow").tag("lane", lane.getName());
+        try {
+            return take(lane, readOnly, maxWaitMillis);
+        } catch (SQLException | RuntimeException e) {
+            span.error(e);
+            throw e;
+        } finally {
+            span.close();
+        }
+    }
+
+    private Connection take(ConnectionPoolLane lane, boolean readOnly, long maxWaitMillis) throws SQLException {
+        long start = System.nanoTime();
+        ConnectionPoolGate gate = this.gate;
+        if (gate != null) {
+            boolean acquired;
+            try {
+                acquired = gate.acquire(readOnly, maxWaitMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a " + lane.getName() + " connection", e);
+            }
+            if (!acquired) {
+                lane.recordTimeout();
+                ConnectionPoolSizing sizing = this.sizing;
+                if (sizing != null) {
+                    sizing.borrowFailed(System.nanoTime() - start);
+                }
+                throw new SQLException("Timed out waiting for a " + lane.getName() + " connection (" + toString() + ")");
+            }
+        }
+        ConnectionPoolValidation validation = this.validation;
+        Connection conn = null;
+        try {
+            for (int attempt = 1; conn == null; attempt++) {
+                conn = getConnection(lane, start);
+                if (validation != null && !validation.checkOnBorrow(conn)) {
+                    conn = null;
+                    if (attempt >= MAX_VALIDATION_ATTEMPTS) {
+                        throw new SQLException("Unable to borrow a valid connection after " + attempt + " attempts");
+                    }
+                }
+            }
+        } finally {
+            if (conn == null && gate != null) {
+                gate.release();
+            }
+        }
+        long waitNanos = System.nanoTime() - start;
+        lane.recordBorrow(waitNanos);
+        ConnectionPoolSizing sizing = this.sizing;
+        if (sizing != null) {
+            sizing.borrowed(waitNanos);
+        }
+        setConnectionReadOnly(conn, readOnly);
+        if (gate != null || validation != null || sizing != null || statementCache != null) {
+            conn = PooledConnectionHandler.wrap(conn, this);
+        }
+        return conn;
+    }
+
+    /*
+     * Borrow from the data source. A borrow that fails because the pool stayed exhausted for maxWait is counted as a
+     * timeout of the lane and a failed borrow, with its wait, other failures as errors
+     */
+    private Connection getConnection(ConnectionPoolLane lane, long start) throws SQLException {
+        try {
+            return dataSource.getConnection();
+        } catch (SQLException | NoSuchElementException e) {
+            if (isExhausted(e)) {
+                lane.recordTimeout();
+            }
+            ConnectionPoolSizing sizing = this.sizing;
+            if (sizing != null) {
+                if (isExhausted(e)) {
+                    sizing.borrowFailed(System.nanoTime() - start);
+                } else {
+                    sizing.error();
+                }
+            }
+            throw e;
+        }
+    }
+
+    /*
+     * DBCP reports a timeout waiting for an idle connection, and an exhausted pool that fails at once, as a
+     * NoSuchElementException from the object pool, usually wrapped in an SQLException
+     */
+    private static boolean isExhausted(Throwable failure) {
+        for (Throwable t = failure; t != null; t = t.getCause()) {
+            if (t instanceof NoSuchElementException) {
+                return true;
+            }
+            if (t.getCause() == t) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Called by a wrapped connection just before it is closed
+     */
+    void returning(Connection delegate, Connection owner) {
+        ConnectionPoolValidation validation = this.validation;
+        if (validation != null) {
+            validation.returned(delegate);
+        }
+        ConnectionPoolStatementCache statementCache = this.statementCache;
+        if (statementCache != null) {
+            statementCache.release(delegate, owner);
+        }
+    }
+
+    /*
+     * Called by a wrapped connection once, when it has been closed
+     */
+    void released(long heldNanos) {
+        ConnectionPoolGate gate = this.gate;
+        if (gate != null) {
+            gate.release();
+        }
+        ConnectionPoolSizing sizing = this.sizing;
+        if (sizing != null) {
+            sizing.returned(heldNanos);
+        }
+    }
+
+    /*
+     * Called by a wrapped connection to prepare a statement. Returns null if statements are not cached
+     */
+    PreparedStatement prepareStatement(Connection delegate, Connection owner, String sql, int type,
+                                       int concurrency) throws SQLException {
+        ConnectionPoolStatementCache statementCache = this.statementCache;
+        if (statementCache == null) {
+            return null;
+        }
+        return statementCache.prepare(delegate, owner, sql, type, concurrency);
+    }
+
+    /*
+     * Called by a wrapped connection when a statement has been executed, successfully or not
+     */
+    void executed(long nanos) {
+        ConnectionPoolSizing sizing = this.sizing;
+        if (sizing != null) {
+            sizing.executed(nanos);
+        }
+    }
+
+    /*
+     * Called by a wrapped connection when a call on it, or on one of its statements or result sets, threw an
+     * SQLException
+     */
+    void failed() {
+        ConnectionPoolSizing sizing = this.sizing;
+        if (sizing != null) {
+            sizing.error();
+        }
+    }
+
+    /**
+     * @return borrow statistics for {@link #getReadOnlyConnection()}
+     */
+    public ConnectionPoolLane getReadOnlyLane() {
+        return readOnlyLane;
+    }
+
+    /**
+     * @return borrow statistics for {@link #getReadWriteConnection()} and {@link #getTableCreatingConnection()}
+     */
+    public ConnectionPoolLane getReadWriteLane() {
+        return readWriteLane;
+    }
+
+    /**
+     * @return the adaptive sizing controller, or null if the pool has a fixed size
+     */
+    public ConnectionPoolSizing getSizing() {
+        return sizing;
+    }
+
+    /**
+     * @return the prepared statement cache, or null if statements are not cached
+     */
+    public ConnectionPoolStatementCache getStatementCache() {
+        return statementCache;
+    }
+
+    /**
+     * @return validation statistics, or null if connections are not validated by idle time
+     */
+    public ConnectionPoolValidation getValidation() {
+        return validation;
+    }
     /**
      * <p>
      * Releases the specified connection and returns it to the pool.
@@ -366,6 +890,7 @@ public class ConnectionPool {
                 connection.close();
             } else {
                 logger.debug("Ignoring attempt to close a previously closed connection");
+                PooledConnectionHandler.release(connection);
             }
         } catch (SQLException sqle) {
             logger.warn("Unable to close connection", sqle);
@@ -384,7 +909,9 @@ public class ConnectionPool {
         return dataSource.getUsername() + "@" + dataSource.getUrl()
                 + ", numIdle=" + dataSource.getNumIdle() + ", numActive="
                 + dataSource.getNumActive() + ", maxActive="
-                + dataSource.getMaxActive();
+                + dataSource.getMaxActive() + ", " + readOnlyLane + ", " + readWriteLane
+                + (validation != null ? ", " + validation : "") + (sizing != null ? ", " + sizing : "")
+                + (statementCache != null ? ", " + statementCache : "");
     }
 
     /**
@@ -393,6 +920,15 @@ public class ConnectionPool {
      * </p>
      */
     public void close() {
+        if (sizing != null) {
+            sizing.stop();
+        }
+        if (async != null) {
+            async.close();
+        }
+        if (statementCache != null) {
+            statementCache.close();
+        }
         try {
             String username = dataSource.getUsername();
             String password = dataSource.getPassword();
@@ -0,0 +1,357 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.storage;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Connection acquisition on behalf of callers that should not block while
+ * the pool is exhausted.
+ * <p>
+ * Each request takes a slot in a bounded waiter queue and is handed to an
+ * executor, which waits for the connection and runs the caller's work. If the
+ * queue is full the request fails immediately. A request whose deadline
+ * passes before a connection is available fails with a timeout, and a
+ * cancelled request gives back any connection it had already got.
+ * </p>
+ * <p>
+ * The deadline is enforced by a timer, with or without a gate: when it
+ * passes, the future fails at once and the thread still waiting for the
+ * connection is interrupted. The slot in the waiter queue is held until that
+ * thread is free again. Waiting on the pool's gate uses
+ * {@code java.util.concurrent} locks only, so the executor may run on virtual
+ * threads without pinning them. Without a gate the wait is done by the data
+ * source, and commons-pool waits in {@code synchronized} blocks, which pins a
+ * virtual thread to its carrier while it waits.
+ * </p>
+ * <p>
+ * The default executor and the timer are only started by the first
+ * asynchronous request.
+ * </p>
+ */
+class ConnectionPoolAsync {
+
+    private final ConnectionPool pool;
+
+    private final Semaphore waiters;
+
+    private final int maxWaiters;
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private volatile Executor executor;
+
+    // the executor and timer started by this class, guarded by this
+    private ThreadPoolExecutor defaultExecutor;
+
+    private ScheduledThreadPoolExecutor timer;
+
+    private boolean closed = false;
+
+    ConnectionPoolAsync(ConnectionPool pool, int maxWaiters) {
+        this.pool = pool;
+        this.maxWaiters = maxWaiters;
+        this.waiters = new Semaphore(maxWaiters);
+    }
+
+    /*
+     * Use another executor. The default one is shut down, and the requests it is running are finished
+     */
+    synchronized void setExecutor(Executor executor) {
+        this.executor = executor;
+        if (defaultExecutor != null && executor != defaultExecutor) {
+            defaultExecutor.shutdown();
+            defaultExecutor = null;
+        }
+    }
+
+    /*
+     * Shut down the default executor and the timer. Requests already running are finished, new ones are rejected
+     */
+    synchronized void close() {
+        closed = true;
+        if (defaultExecutor != null) {
+            defaultExecutor.shutdown();
+        }
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+    }
+
+    /**
+     * Borrow a connection without blocking the calling thread
+     * @param readOnly true for a read-only connection
+     * @param timeoutMillis the deadline, relative to now
+     * @return the future connection, which the caller must free
+     */
+    Future<Connection> borrow(boolean readOnly, long timeoutMillis) {
+        return submit(new Acquisition<Connection>(readOnly, timeoutMillis, null));
+    }
+
+    /**
+     * Run work with a connection without blocking the calling thread
+     * @param readOnly true for a read-only connection
+     * @param callback the work to run once a connection is available
+     * @param timeoutMillis the deadline for getting a connection, relative to now
+     * @param <T> the result type
+     * @return the future result of the work
+     */
+    <T> Future<T> execute(boolean readOnly, ConnectionCallback<T> callback, long timeoutMillis) {
+        return submit(new Acquisition<T>(readOnly, timeoutMillis, callback));
+    }
+
+    int getWaiting() {
+        return maxWaiters - waiters.availablePermits();
+    }
+
+    long getRejectedCount() {
+        return rejected.get();
+    }
+
+    private <T> Future<T> submit(Acquisition<T> acquisition) {
+        if (!waiters.tryAcquire()) {
+            rejected.incrementAndGet();
+            return failed(new SQLException("Too many callers waiting for a connection (" + maxWaiters + ")"));
+        }
+        try {
+            acquisition.expiry = schedule(acquisition);
+            executor().execute(acquisition);
+        } catch (RejectedExecutionException e) {
+            acquisition.cancelExpiry();
+            waiters.release();
+            rejected.incrementAndGet();
+            return failed(new SQLException("Connection acquisition was rejected by the executor", e));
+        }
+        return acquisition.future;
+    }
+
+    private Executor executor() {
+        Executor current = executor;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this) {
+            if (executor == null) {
+                if (closed) {
+                    throw new RejectedExecutionException("The connection pool is closed");
+                }
+                defaultExecutor = new ThreadPoolExecutor(0, Math.max(1, maxWaiters), 60, TimeUnit.SECONDS,
+                        new SynchronousQueue<Runnable>(), daemonThreads("ConnectionPool-async-"));
+                executor = defaultExecutor;
+            }
+            return executor;
+        }
+    }
+
+    /*
+     * Expire the request when its deadline passes
+     */
+    private synchronized ScheduledFuture<?> schedule(final Acquisition<?> acquisition) {
+        if (closed) {
+            throw new RejectedExecutionException("The connection pool is closed");
+        }
+        if (timer == null) {
+            timer = new ScheduledThreadPoolExecutor(1, daemonThreads("ConnectionPool-async-deadline-"));
+            timer.setRemoveOnCancelPolicy(true);
+        }
+        return timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                acquisition.expire();
+            }
+        }, acquisition.deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    private <T> Future<T> failed(final SQLException e) {
+        FutureTask<T> future = new FutureTask<T>(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                throw e;
+            }
+        });
+        future.run();
+        return future;
+    }
+
+    private static ThreadFactory daemonThreads(final String prefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger number = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, prefix + number.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /*
+     * One asynchronous request. Without a callback the connection itself is the result, and it is freed again if
+     * the request is cancelled or expires after the connection was obtained. The waiter slot is given back when the
+     * executor is done with the request, not when the future completes, so a cancelled or expired request still
+     * holds its slot while its thread is busy
+     */
+    private class Acquisition<T> implements Callable<T>, Runnable {
+
+        private final boolean readOnly;
+
+        private final long deadline;
+
+        private final ConnectionCallback<T> callback;
+
+        private final AtomicReference<Connection> unclaimed = new AtomicReference<Connection>();
+
+        private final Task future = new Task();
+
+        private volatile ScheduledFuture<?> expiry;
+
+        // the thread waiting for the connection, and whether the deadline or the connection came first, guarded by
+        // this
+        private Thread borrowing = null;
+
+        private boolean expired = false;
+
+        private boolean acquired = false;
+
+        Acquisition(boolean readOnly, long timeoutMillis, ConnectionCallback<T> callback) {
+            this.readOnly = readOnly;
+            this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            this.callback = callback;
+        }
+
+        @Override
+        public void run() {
+            try {
+                future.run();
+            } finally {
+                cancelExpiry();
+                waiters.release();
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T call() throws Exception {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                throw new SQLException("Deadline passed before a connection was requested");
+            }
+            Connection connection = borrowBeforeDeadline(remaining);
+            if (callback == null) {
+                unclaimed.set(connection);
+                if (future.isCancelled()) {
+                    freeUnclaimed();
+                }
+                return (T) connection;
+            }
+            try {
+                return callback.execute(connection);
+            } finally {
+                pool.free(connection);
+            }
+        }
+
+        private Connection borrowBeforeDeadline(long remaining) throws SQLException {
+            synchronized (this) {
+                if (expired) {
+                    throw timedOut();
+                }
+                borrowing = Thread.currentThread();
+            }
+            Connection connection = null;
+            boolean late;
+            try {
+                connection = pool.borrow(readOnly, remaining);
+            } finally {
+                synchronized (this) {
+                    borrowing = null;
+                    late = expired;
+                    if (late) {
+                        Thread.interrupted(); //the interrupt was meant for the borrow
+                    } else {
+                        acquired = true;
+                    }
+                }
+                if (late && connection != null) { //nobody will claim it, the future has already failed
+                    pool.free(connection);
+                }
+            }
+            if (late) {
+                throw timedOut();
+            }
+            return connection;
+        }
+
+        /*
+         * Called by the timer at the deadline. Does nothing if the connection was already obtained
+         */
+        void expire() {
+            synchronized (this) {
+                if (acquired || future.isDone()) {
+                    return;
+                }
+                expired = true;
+                future.fail(timedOut()); //before the interrupt, so the borrow's own failure is not the result
+                if (borrowing != null) {
+                    borrowing.interrupt();
+                }
+            }
+        }
+
+        void cancelExpiry() {
+            ScheduledFuture<?> expiry = this.expiry;
+            if (expiry != null) {
+                expiry.cancel(false);
+            }
+        }
+
+        private SQLException timedOut() {
+            return new SQLException("Timed out waiting for a " + (readOnly ? "read-only" : "read-write")
+                                    + " connection");
+        }
+
+        private void freeUnclaimed() {
+            Connection connection = unclaimed.getAndSet(null);
+            if (connection != null) {
+                pool.free(connection);
+            }
+        }
+
+        private class Task extends FutureTask<T> {
+
+            Task() {
+                super(Acquisition.this);
+            }
+
+            void fail(Throwable failure) {
+                setException(failure);
+            }
+
+            @Override
+            protected void done() {
+                if (isCancelled()) {
+                    freeUnclaimed();
+                }
+            }
+        }
+    }
+}
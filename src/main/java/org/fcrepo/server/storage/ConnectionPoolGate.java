@@ -0,0 +1,124 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.storage;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admission control in front of the pooled data source.
+ * <p>
+ * The gate hands out at most {@code capacity} permits. The last
+ * {@code reserved} of these can only be taken by priority (read-only)
+ * borrowers, so bulk writers can never occupy every connection in the pool.
+ * Waiters are served through a fair lock, so nobody in the same lane is
+ * overtaken indefinitely.
+ * </p>
+ */
+class ConnectionPoolGate {
+
+    private final ReentrantLock lock = new ReentrantLock(true);
+
+    private final Condition released = lock.newCondition();
+
+    private int capacity;
+
+    private final int reserved;
+
+    private int active = 0;
+
+    /**
+     * @param capacity the total number of connections that may be out at once
+     * @param reserved the number of those connections that are kept for priority borrowers
+     */
+    ConnectionPoolGate(int capacity, int reserved) {
+        this.capacity = capacity;
+        this.reserved = Math.min(reserved, capacity);
+    }
+
+    /**
+     * Take a permit, waiting if none is available for this kind of borrower.
+     * @param priority true if the borrower may use the reserved permits
+     * @param timeoutMillis how long to wait, or a non-positive value to wait indefinitely
+     * @return true if a permit was taken, false if the wait timed out
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    boolean acquire(boolean priority, long timeoutMillis) throws InterruptedException {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        lock.lockInterruptibly();
+        try {
+            while (active >= limit(priority)) {
+                if (timeoutMillis <= 0) {
+                    released.await();
+                } else {
+                    if (nanos <= 0) {
+                        return false;
+                    }
+                    nanos = released.awaitNanos(nanos);
+                }
+            }
+            active++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return a permit taken by {@link #acquire(boolean, long)}
+     */
+    void release() {
+        lock.lock();
+        try {
+            active--;
+            // Wake everybody, as a freed permit may only be usable by priority waiters
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getActive() {
+        lock.lock();
+        try {
+            return active;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getCapacity() {
+        lock.lock();
+        try {
+            return capacity;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Change the number of permits. Borrowers already holding permits beyond a lowered capacity keep them, new
+     * borrowers wait until the number of active permits is below the new capacity
+     * @param capacity the new total number of connections that may be out at once, at least reserved + 1
+     */
+    void setCapacity(int capacity) {
+        lock.lock();
+        try {
+            this.capacity = Math.max(capacity, reserved + 1);
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getReserved() {
+        return reserved;
+    }
+
+    private int limit(boolean priority) {
+        return priority ? capacity : capacity - reserved;
+    }
+}
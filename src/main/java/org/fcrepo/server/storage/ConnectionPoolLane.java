@@ -0,0 +1,105 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.storage;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Borrow statistics for one lane of a {@link ConnectionPool}.
+ * <p>
+ * Read-only borrowers and read-write borrowers are accounted in separate
+ * lanes, so that the time interactive lookups spend waiting for a connection
+ * can be told apart from the time bulk writers spend waiting.
+ * </p>
+ */
+public class ConnectionPoolLane {
+
+    private final String name;
+
+    private final AtomicLong borrows = new AtomicLong();
+
+    private final AtomicLong timeouts = new AtomicLong();
+
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    ConnectionPoolLane(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Record a successful borrow
+     * @param waitNanos the time spent waiting for the connection
+     */
+    void recordBorrow(long waitNanos) {
+        borrows.incrementAndGet();
+        totalWaitNanos.addAndGet(waitNanos);
+        long max = maxWaitNanos.get();
+        while (waitNanos > max && !maxWaitNanos.compareAndSet(max, waitNanos)) {
+            max = maxWaitNanos.get();
+        }
+    }
+
+    /**
+     * Record a borrow that gave up waiting for a connection
+     */
+    void recordTimeout() {
+        timeouts.incrementAndGet();
+    }
+
+    /**
+     * @return the name of the lane, "readOnly" or "readWrite"
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the number of connections borrowed through this lane
+     */
+    public long getBorrowCount() {
+        return borrows.get();
+    }
+
+    /**
+     * @return the number of borrows that failed because no connection became available in time
+     */
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    /**
+     * @return the accumulated time in milliseconds borrowers in this lane have waited for a connection
+     */
+    public long getTotalWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get());
+    }
+
+    /**
+     * @return the mean time in milliseconds a borrow in this lane waited for a connection
+     */
+    public double getMeanWaitMillis() {
+        long count = borrows.get();
+        if (count == 0) {
+            return 0;
+        }
+        return totalWaitNanos.get() / (count * 1000000.0);
+    }
+
+    /**
+     * @return the longest time in milliseconds a single borrow in this lane waited for a connection
+     */
+    public long getMaxWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+    }
+
+    @Override
+    public String toString() {
+        return name + "[borrows=" + getBorrowCount() + ", timeouts=" + getTimeoutCount() + ", meanWaitMillis="
+               + String.format("%.3f", getMeanWaitMillis()) + ", maxWaitMillis=" + getMaxWaitMillis() + "]";
+    }
+}
@@ -0,0 +1,295 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.storage;
+
+import dk.statsbiblioteket.metadatarepository.metrics.LatencyHistogram;
+import org.apache.commons.dbcp.BasicDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Grows and shrinks a {@link ConnectionPool} within configured bounds.
+ * <p>
+ * Every interval the controller looks at what the pool saw since the last
+ * look: the 95th percentile of the time borrowers waited for a connection,
+ * how many connections were out at the peak, the 95th percentile of query
+ * time, and the rate of SQLExceptions per borrow. Query time is how long
+ * statements took to execute, or how long connections were held if no
+ * statements were executed. SQLExceptions are counted from calls on the
+ * connections, their statements and their result sets.
+ * </p>
+ * <ul>
+ * <li>If the error rate is above the limit, the database is struggling, and
+ * more connections would only make it worse, so the pool shrinks.</li>
+ * <li>If borrowers waited longer than the grow threshold and the query time did
+ * not climb at the same time, the pool grows.</li>
+ * <li>If borrowers hardly waited and less than half the connections were in
+ * use at the peak, the pool shrinks.</li>
+ * </ul>
+ * <p>
+ * A decision is only acted upon when the same decision has been reached for a
+ * number of intervals in a row, so the size does not flap with short bursts.
+ * Every change is logged.
+ * </p>
+ */
+public class ConnectionPoolSizing {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(ConnectionPoolSizing.class);
+
+    private final BasicDataSource dataSource;
+
+    private final ConnectionPoolGate gate;
+
+    private final int minActive;
+
+    private final int maxActive;
+
+    private final int configuredMaxIdle;
+
+    private final int configuredMinIdle;
+
+    private final long growWaitNanos;
+
+    private final long shrinkWaitNanos;
+
+    private final double maxErrorRate;
+
+    private final int windows;
+
+    private final LatencyHistogram waits = new LatencyHistogram();
+
+    private final LatencyHistogram holds = new LatencyHistogram();
+
+    private final LatencyHistogram executions = new LatencyHistogram();
+
+    private final AtomicLong errors = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    private final AtomicInteger peak = new AtomicInteger();
+
+    private final AtomicLong grows = new AtomicLong();
+
+    private final AtomicLong shrinks = new AtomicLong();
+
+    private ScheduledExecutorService scheduler;
+
+    private volatile int size;
+
+    private int pendingDirection = 0;
+
+    private int pendingWindows = 0;
+
+    private double lastQueryP95Millis = -1;
+
+    /**
+     * @param dataSource the data source to resize
+     * @param gate the gate of the pool, or null if the pool has none
+     * @param minActive the lower bound for maxActive
+     * @param maxActive the upper bound for maxActive
+     * @param growWaitMillis grow when the 95th percentile borrow wait is above this
+     * @param shrinkWaitMillis shrink when the 95th percentile borrow wait is below this and the pool is underused
+     * @param maxErrorRate shrink when more than this fraction of borrows see an SQLException
+     * @param windows the number of intervals in a row that must agree before the size changes
+     */
+    ConnectionPoolSizing(BasicDataSource dataSource, ConnectionPoolGate gate, int minActive, int maxActive,
+                         long growWaitMillis, long shrinkWaitMillis, double maxErrorRate, int windows) {
+        this.dataSource = dataSource;
+        this.gate = gate;
+        this.minActive = minActive;
+        this.maxActive = maxActive;
+        this.configuredMaxIdle = dataSource.getMaxIdle();
+        this.configuredMinIdle = dataSource.getMinIdle();
+        this.growWaitNanos = TimeUnit.MILLISECONDS.toNanos(growWaitMillis);
+        this.shrinkWaitNanos = TimeUnit.MILLISECONDS.toNanos(shrinkWaitMillis);
+        this.maxErrorRate = maxErrorRate;
+        this.windows = Math.max(1, windows);
+        int initial = dataSource.getMaxActive();
+        if (initial <= 0 || initial > maxActive) {
+            initial = maxActive;
+        }
+        apply(Math.max(initial, minActive));
+    }
+
+    /**
+     * Start evaluating the pool at a fixed interval
+     * @param intervalMillis the interval
+     */
+    synchronized void start(long intervalMillis) {
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ConnectionPool-sizing");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    evaluate();
+                } catch (RuntimeException e) {
+                    logger.warn("Failed to evaluate connection pool size", e);
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    void borrowed(long waitNanos) {
+        waits.record(waitNanos);
+        int now = outstanding.incrementAndGet();
+        int max = peak.get();
+        while (now > max && !peak.compareAndSet(max, now)) {
+            max = peak.get();
+        }
+    }
+
+    /*
+     * A borrow that gave up, at the gate or in the data source, after waiting this long
+     */
+    void borrowFailed(long waitNanos) {
+        waits.record(waitNanos);
+        failures.incrementAndGet();
+    }
+
+    void returned(long heldNanos) {
+        outstanding.decrementAndGet();
+        holds.record(heldNanos);
+    }
+
+    void executed(long nanos) {
+        executions.record(nanos);
+    }
+
+    void error() {
+        errors.incrementAndGet();
+    }
+
+    /*
+     * Look at the window that just ended, and change the size if enough windows in a row agree
+     */
+    synchronized void evaluate() {
+        long borrows = waits.getCount();
+        long waitP95 = waits.getPercentileNanos(95);
+        double holdP95Millis = holds.getPercentileMillis(95);
+        double queryP95Millis = executions.getCount() > 0 ? executions.getPercentileMillis(95) : holdP95Millis;
+        long failed = failures.getAndSet(0);
+        long errorCount = errors.getAndSet(0);
+        double errorRate = borrows == 0 ? 0 : errorCount / (double) borrows;
+        int peakUse = Math.max(peak.getAndSet(outstanding.get()), 0);
+        waits.reset();
+        holds.reset();
+        executions.reset();
+
+        boolean queryClimbing = lastQueryP95Millis > 0 && queryP95Millis > 2 * lastQueryP95Millis;
+        int direction;
+        String reason;
+        if (errorRate > maxErrorRate) {
+            direction = -1;
+            reason = String.format("error rate %.3f is above %.3f", errorRate, maxErrorRate);
+        } else if ((waitP95 > growWaitNanos || failed > 0) && !queryClimbing) {
+            direction = 1;
+            reason = String.format("p95 borrow wait %.3fms, %d borrows failed", waitP95 / 1000000.0, failed);
+        } else if (waitP95 < shrinkWaitNanos && failed == 0 && peakUse * 2 < size) {
+            direction = -1;
+            reason = String.format("p95 borrow wait %.3fms and at most %d of %d connections in use",
+                    waitP95 / 1000000.0, peakUse, size);
+        } else {
+            direction = 0;
+            reason = null;
+        }
+        if (queryP95Millis > 0) {
+            lastQueryP95Millis = queryP95Millis;
+        }
+
+        if (direction == 0 || direction != pendingDirection) {
+            pendingDirection = direction;
+            pendingWindows = direction == 0 ? 0 : 1;
+        } else {
+            pendingWindows++;
+        }
+        if (direction == 0 || pendingWindows < windows) {
+            return;
+        }
+        int target;
+        if (direction > 0) {
+            target = Math.min(maxActive, size + Math.max(1, size / 4));
+        } else {
+            target = Math.max(minActive, size - Math.max(1, size / 8));
+        }
+        pendingDirection = 0;
+        pendingWindows = 0;
+        if (target == size) {
+            return;
+        }
+        logger.info("Resizing connection pool from {} to {} connections: {} (p95 hold {}ms, p95 query {}ms, "
+                    + "{} borrows)",
+                new Object[]{size, target, reason, String.format("%.3f", holdP95Millis),
+                             String.format("%.3f", queryP95Millis), borrows});
+        if (target > size) {
+            grows.incrementAndGet();
+        } else {
+            shrinks.incrementAndGet();
+        }
+        apply(target);
+    }
+
+    private void apply(int target) {
+        size = target;
+        dataSource.setMaxActive(target);
+        if (configuredMaxIdle >= 0) {
+            dataSource.setMaxIdle(Math.min(configuredMaxIdle, target));
+        }
+        dataSource.setMinIdle(Math.min(configuredMinIdle, target));
+        if (gate != null) {
+            gate.setCapacity(target);
+        }
+    }
+
+    /**
+     * @return the current maximum number of active connections
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return the number of times the pool has grown
+     */
+    public long getGrowCount() {
+        return grows.get();
+    }
+
+    /**
+     * @return the number of times the pool has shrunk
+     */
+    public long getShrinkCount() {
+        return shrinks.get();
+    }
+
+    @Override
+    public String toString() {
+        return "sizing[size=" + size + ", bounds=" + minActive + ".." + maxActive + ", grows=" + getGrowCount()
+               + ", shrinks=" + getShrinkCount() + "]";
+    }
+}
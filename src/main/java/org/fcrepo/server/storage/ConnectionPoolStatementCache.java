@@ -0,0 +1,526 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.storage;
+
+import org.apache.commons.dbcp.DelegatingConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of prepared statements for each physical connection in a
+ * {@link ConnectionPool}.
+ * <p>
+ * Statements are prepared on the physical connection, so they outlive the
+ * borrow, and are kept in least recently used order, keyed by SQL text,
+ * result set type and concurrency. Closing a cached statement clears its
+ * parameters, restores the query timeout, max rows, max field size, fetch size
+ * and fetch direction it had when it was prepared, and hands it back to the
+ * cache. A statement whose cursor name, escape processing, poolable or close
+ * on completion setting was changed is closed instead, as are statements that
+ * are still open when their connection goes back to the pool. When a
+ * statement is pushed out of a full cache it is closed, as soon as nobody is
+ * using it. Caches of
+ * connections that the pool has closed, because they were evicted or found
+ * broken, are discarded the next time a new connection shows up.
+ * </p>
+ */
+public class ConnectionPoolStatementCache {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(ConnectionPoolStatementCache.class);
+
+    /*
+     * Bound on the number of distinct SQL texts statistics are kept for, so that generated SQL cannot grow the
+     * statistics without limit
+     */
+    private static final int MAX_STATISTICS = 1000;
+
+    private static final String OTHER_STATEMENTS = "(other)";
+
+    private final int size;
+
+    private final Map<Connection, StatementCache> caches = new ConcurrentHashMap<Connection, StatementCache>();
+
+    private final Map<String, StatementStatistics> statistics =
+            new ConcurrentHashMap<String, StatementStatistics>();
+
+    ConnectionPoolStatementCache(int size) {
+        this.size = size;
+    }
+
+    /**
+     * Get a prepared statement for the borrowed connection, from the cache if possible
+     * @param pooled the connection borrowed from the data source
+     * @param owner the connection handed to the caller, which the statement should report as its connection
+     * @param sql the SQL text
+     * @param type the result set type
+     * @param concurrency the result set concurrency
+     * @return the statement
+     * @throws SQLException if the statement could not be prepared
+     */
+    PreparedStatement prepare(Connection pooled, Connection owner, String sql, int type, int concurrency)
+            throws SQLException {
+        Connection physical = physical(pooled);
+        StatementCache cache = caches.get(physical);
+        if (cache == null) {
+            purgeClosed();
+            cache = new StatementCache();
+            caches.put(physical, cache);
+        }
+        StatementKey key = new StatementKey(sql, type, concurrency);
+        StatementStatistics stats = statistics(sql);
+        CachedStatement cached;
+        synchronized (cache) {
+            cached = cache.get(key);
+            if (cached != null && cached.isEvicted()) { //closed on hand back, make room for a new one
+                cache.remove(key);
+                cached = null;
+            }
+            if (cached != null && cached.tryAcquire()) {
+                stats.hits.incrementAndGet();
+                return cached.handOut(owner);
+            }
+        }
+        stats.misses.incrementAndGet();
+        PreparedStatement statement = physical.prepareStatement(sql, type, concurrency);
+        if (cached != null) {
+            // The cached statement is in use further up the stack, so this one is not kept
+            return statement;
+        }
+        try {
+            cached = new CachedStatement(key, statement, stats);
+        } catch (SQLException e) {
+            statement.close();
+            throw e;
+        }
+        cached.tryAcquire();
+        synchronized (cache) {
+            cache.put(key, cached);
+        }
+        return cached.handOut(owner);
+    }
+
+    /**
+     * Evict the statements a borrower did not close before returning its connection, so they are not left in use
+     * @param pooled the connection borrowed from the data source
+     * @param owner the connection handed to the borrower
+     */
+    void release(Connection pooled, Connection owner) {
+        StatementCache cache = caches.get(physical(pooled));
+        if (cache == null) {
+            return;
+        }
+        synchronized (cache) {
+            Iterator<CachedStatement> statements = cache.values().iterator();
+            while (statements.hasNext()) {
+                CachedStatement cached = statements.next();
+                if (cached.abandon(owner)) {
+                    logger.debug("Statement '{}' was not closed before its connection was returned, evicting it",
+                            cached.key.sql);
+                    cached.stats.evictions.incrementAndGet();
+                    statements.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Close all cached statements, e.g. when the pool is closed
+     */
+    void close() {
+        for (StatementCache cache : caches.values()) {
+            cache.discard();
+        }
+        caches.clear();
+    }
+
+    /*
+     * Forget the caches of physical connections that have been closed
+     */
+    private void purgeClosed() {
+        Iterator<Map.Entry<Connection, StatementCache>> entries = caches.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Connection, StatementCache> entry = entries.next();
+            boolean closed;
+            try {
+                closed = entry.getKey().isClosed();
+            } catch (SQLException e) {
+                closed = true;
+            }
+            if (closed) {
+                entries.remove();
+                entry.getValue().discard();
+            }
+        }
+    }
+
+    private StatementStatistics statistics(String sql) {
+        StatementStatistics stats = statistics.get(sql);
+        if (stats == null) {
+            String name = statistics.size() < MAX_STATISTICS ? sql : OTHER_STATEMENTS;
+            stats = statistics.get(name);
+            if (stats == null) {
+                stats = new StatementStatistics(name);
+                statistics.put(name, stats);
+            }
+        }
+        return stats;
+    }
+
+    private Connection physical(Connection connection) {
+        if (connection instanceof DelegatingConnection) {
+            Connection innermost = ((DelegatingConnection) connection).getInnermostDelegate();
+            if (innermost != null) {
+                return innermost;
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * @return the maximum number of statements cached per connection
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return the number of physical connections that currently have a statement cache
+     */
+    public int getConnectionCount() {
+        return caches.size();
+    }
+
+    /**
+     * @return hit, miss and eviction counts for each SQL text
+     */
+    public List<StatementStatistics> getStatementStatistics() {
+        return Collections.unmodifiableList(new ArrayList<StatementStatistics>(statistics.values()));
+    }
+
+    /**
+     * @return the total number of prepares served from the cache
+     */
+    public long getHitCount() {
+        long total = 0;
+        for (StatementStatistics stats : statistics.values()) {
+            total += stats.getHitCount();
+        }
+        return total;
+    }
+
+    /**
+     * @return the total number of prepares that had to go to the database
+     */
+    public long getMissCount() {
+        long total = 0;
+        for (StatementStatistics stats : statistics.values()) {
+            total += stats.getMissCount();
+        }
+        return total;
+    }
+
+    /**
+     * @return the total number of statements pushed out of full caches
+     */
+    public long getEvictionCount() {
+        long total = 0;
+        for (StatementStatistics stats : statistics.values()) {
+            total += stats.getEvictionCount();
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return "statementCache[size=" + size + ", hits=" + getHitCount() + ", misses=" + getMissCount()
+               + ", evictions=" + getEvictionCount() + "]";
+    }
+
+    /**
+     * Cache counters for one SQL text
+     */
+    public static class StatementStatistics {
+
+        private final String sql;
+
+        private final AtomicLong hits = new AtomicLong();
+
+        private final AtomicLong misses = new AtomicLong();
+
+        private final AtomicLong evictions = new AtomicLong();
+
+        StatementStatistics(String sql) {
+            this.sql = sql;
+        }
+
+        public String getSql() {
+            return sql;
+        }
+
+        public long getHitCount() {
+            return hits.get();
+        }
+
+        public long getMissCount() {
+            return misses.get();
+        }
+
+        public long getEvictionCount() {
+            return evictions.get();
+        }
+
+        @Override
+        public String toString() {
+            return sql + " [hits=" + getHitCount() + ", misses=" + getMissCount() + ", evictions="
+                   + getEvictionCount() + "]";
+        }
+    }
+
+    /*
+     * The statements of one physical connection, in least recently used order
+     */
+    private class StatementCache extends LinkedHashMap<StatementKey, CachedStatement> {
+
+        StatementCache() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<StatementKey, CachedStatement> eldest) {
+            if (size() <= size) {
+                return false;
+            }
+            CachedStatement cached = eldest.getValue();
+            cached.stats.evictions.incrementAndGet();
+            cached.evict();
+            return true;
+        }
+
+        synchronized void discard() {
+            for (CachedStatement cached : values()) {
+                cached.evict();
+            }
+            clear();
+        }
+    }
+
+    private static class StatementKey {
+
+        private final String sql;
+
+        private final int type;
+
+        private final int concurrency;
+
+        StatementKey(String sql, int type, int concurrency) {
+            this.sql = sql;
+            this.type = type;
+            this.concurrency = concurrency;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof StatementKey)) {
+                return false;
+            }
+            StatementKey that = (StatementKey) o;
+            return type == that.type && concurrency == that.concurrency && sql.equals(that.sql);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * sql.hashCode() + type) + concurrency;
+        }
+    }
+
+    /*
+     * A cached statement, and the proxy handler that puts it back in the cache instead of closing it
+     */
+    private static class CachedStatement implements InvocationHandler {
+
+        private final StatementKey key;
+
+        private final PreparedStatement statement;
+
+        private final StatementStatistics stats;
+
+        /*
+         * The settings the statement was prepared with, restored when it is handed back
+         */
+        private final int queryTimeout;
+
+        private final int maxRows;
+
+        private final int maxFieldSize;
+
+        private final int fetchSize;
+
+        private final int fetchDirection;
+
+        private boolean inUse = false;
+
+        private boolean evicted = false;
+
+        /*
+         * Set when the borrower changed a setting that is restored, or one that cannot be, on hand back
+         */
+        private volatile boolean changed = false;
+
+        private volatile boolean unrestorable = false;
+
+        private volatile Connection owner;
+
+        private volatile PreparedStatement handedOut;
+
+        CachedStatement(StatementKey key, PreparedStatement statement, StatementStatistics stats)
+                throws SQLException {
+            this.key = key;
+            this.statement = statement;
+            this.stats = stats;
+            this.queryTimeout = statement.getQueryTimeout();
+            this.maxRows = statement.getMaxRows();
+            this.maxFieldSize = statement.getMaxFieldSize();
+            this.fetchSize = statement.getFetchSize();
+            this.fetchDirection = statement.getFetchDirection();
+        }
+
+        synchronized boolean isEvicted() {
+            return evicted;
+        }
+
+        synchronized boolean tryAcquire() {
+            if (inUse || evicted) {
+                return false;
+            }
+            inUse = true;
+            return true;
+        }
+
+        PreparedStatement handOut(Connection owner) {
+            this.owner = owner;
+            handedOut = (PreparedStatement) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class}, this);
+            return handedOut;
+        }
+
+        /*
+         * Take the statement away from a borrower that returned its connection without closing it
+         * @return true if the statement was handed out to the owner, and has been closed
+         */
+        synchronized boolean abandon(Connection owner) {
+            if (!inUse || handedOut == null || this.owner != owner) {
+                return false;
+            }
+            handedOut = null;
+            this.owner = null;
+            inUse = false;
+            evicted = true;
+            closeQuietly();
+            return true;
+        }
+
+        /*
+         * The statement is closed now if it is idle, otherwise when it is handed back
+         */
+        synchronized void evict() {
+            evicted = true;
+            if (!inUse) {
+                closeQuietly();
+            }
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("equals") && args != null && args.length == 1) {
+                return proxy == args[0];
+            }
+            if (name.equals("hashCode") && args == null) {
+                return System.identityHashCode(proxy);
+            }
+            boolean current = proxy == handedOut;
+            if (name.equals("isClosed") && args == null) {
+                return !current;
+            }
+            if (name.equals("close") && args == null) {
+                if (current) {
+                    handBack();
+                }
+                return null;
+            }
+            if (!current) {
+                throw new SQLException("Statement is closed: " + key.sql);
+            }
+            if (name.equals("getConnection") && args == null) {
+                return owner;
+            }
+            if (name.equals("setQueryTimeout") || name.equals("setMaxRows") || name.equals("setMaxFieldSize")
+                || name.equals("setFetchSize") || name.equals("setFetchDirection")) {
+                changed = true;
+            } else if (name.equals("setCursorName") || name.equals("setEscapeProcessing")
+                       || name.equals("setPoolable") || name.equals("closeOnCompletion")) {
+                unrestorable = true;
+            }
+            try {
+                return method.invoke(statement, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        private synchronized void handBack() {
+            try {
+                statement.clearParameters();
+                statement.clearWarnings();
+                if (changed) {
+                    statement.setQueryTimeout(queryTimeout);
+                    statement.setMaxRows(maxRows);
+                    statement.setMaxFieldSize(maxFieldSize);
+                    statement.setFetchSize(fetchSize);
+                    statement.setFetchDirection(fetchDirection);
+                    changed = false;
+                }
+            } catch (SQLException e) {
+                logger.debug("Failed to reset cached statement, closing it", e);
+                evicted = true;
+            }
+            if (unrestorable) {
+                logger.debug("Statement '{}' had settings changed that cannot be restored, closing it", key.sql);
+                evicted = true;
+            }
+            handedOut = null;
+            owner = null;
+            inUse = false;
+            if (evicted) {
+                closeQuietly();
+            }
+        }
+
+        private void closeQuietly() {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                logger.debug("Failed to close cached statement '{}'", key.sql, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.storage;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.commons.dbcp.DelegatingConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Idle-time based validation of pooled connections.
+ * <p>
+ * Instead of running the validation query on every borrow, a connection is
+ * only validated if it has been idle in the pool for longer than a threshold.
+ * Validation uses {@link Connection#isValid(int)} and falls back to the
+ * validation query if the driver does not implement it. When a connection
+ * fails validation, the idle connections in the pool are swept as well, as
+ * they have most likely been cut off by the same network or database event.
+ * The sweep runs in the background.
+ * </p>
+ */
+public class ConnectionPoolValidation {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(ConnectionPoolValidation.class);
+
+    private final BasicDataSource dataSource;
+
+    private final long idleThresholdMillis;
+
+    private final int timeoutSeconds;
+
+    private volatile boolean supportsIsValid = true;
+
+    /*
+     * When each physical connection was last returned to the pool. Weak keys, so that connections
+     * evicted by the pool are forgotten
+     */
+    private final Map<Connection, Long> lastReturned =
+            Collections.synchronizedMap(new WeakHashMap<Connection, Long>());
+
+    private final AtomicBoolean sweeping = new AtomicBoolean(false);
+
+    private final AtomicLong skipped = new AtomicLong();
+
+    private final AtomicLong validations = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private final AtomicLong sweeps = new AtomicLong();
+
+    private final AtomicLong validationNanos = new AtomicLong();
+
+    ConnectionPoolValidation(BasicDataSource dataSource, long idleThresholdMillis, int timeoutSeconds) {
+        this.dataSource = dataSource;
+        this.idleThresholdMillis = idleThresholdMillis;
+        this.timeoutSeconds = timeoutSeconds;
+    }
+
+    /**
+     * Check a freshly borrowed connection, if it has been idle long enough to warrant it
+     * @param connection the connection borrowed from the data source
+     * @return true if the connection can be used, false if it was found broken and has been discarded
+     */
+    boolean checkOnBorrow(Connection connection) {
+        Connection physical = physical(connection);
+        Long returned = lastReturned.get(physical);
+        if (returned != null && System.currentTimeMillis() - returned <= idleThresholdMillis) {
+            skipped.incrementAndGet();
+            return true;
+        }
+        if (validate(physical)) {
+            return true;
+        }
+        logger.warn("Connection {} failed validation after being idle, discarding it and sweeping idle connections",
+                physical);
+        discard(connection, physical);
+        sweepIdle();
+        return false;
+    }
+
+    /**
+     * Remember when a connection went back to the pool. Must be called before the connection is closed
+     * @param connection the connection being returned
+     */
+    void returned(Connection connection) {
+        Connection physical = physical(connection);
+        if (physical != null) {
+            lastReturned.put(physical, System.currentTimeMillis());
+        }
+    }
+
+    /*
+     * Sweep the idle connections on a thread of its own, so the borrower that found the broken connection does not
+     * wait for it
+     */
+    private void sweepIdle() {
+        if (!sweeping.compareAndSet(false, true)) {
+            return;
+        }
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sweep();
+                } finally {
+                    sweeping.set(false);
+                }
+            }
+        }, "ConnectionPool-sweep");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /*
+     * Borrow the currently idle connections and discard the ones that no longer work. This is best effort, a
+     * connection that becomes idle during the sweep might not be examined. If another borrower takes an idle
+     * connection first, the sweep may wait for one like any other borrower
+     */
+    private void sweep() {
+        sweeps.incrementAndGet();
+        List<Connection> borrowed = new ArrayList<Connection>();
+        try {
+            int idle = dataSource.getNumIdle();
+            for (int i = 0; i < idle && dataSource.getNumIdle() > 0; i++) {
+                Connection connection = dataSource.getConnection();
+                Connection physical = physical(connection);
+                if (validate(physical)) {
+                    borrowed.add(connection);
+                } else {
+                    discard(connection, physical);
+                }
+            }
+        } catch (SQLException e) {
+            logger.warn("Failed to sweep idle connections", e);
+        } finally {
+            for (Connection connection : borrowed) {
+                returned(connection);
+                close(connection);
+            }
+        }
+    }
+
+    private boolean validate(Connection physical) {
+        long start = System.nanoTime();
+        validations.incrementAndGet();
+        try {
+            boolean valid = isValid(physical);
+            if (!valid) {
+                failures.incrementAndGet();
+            }
+            return valid;
+        } finally {
+            validationNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private boolean isValid(Connection physical) {
+        if (supportsIsValid) {
+            try {
+                return physical.isValid(timeoutSeconds);
+            } catch (SQLFeatureNotSupportedException e) {
+                logger.info("Driver does not support Connection.isValid, using the validation query instead");
+                supportsIsValid = false;
+            } catch (AbstractMethodError e) {
+                logger.info("Driver predates Connection.isValid, using the validation query instead");
+                supportsIsValid = false;
+            } catch (SQLException e) {
+                logger.debug("Connection.isValid failed", e);
+                return false;
+            }
+        }
+        String validationQuery = dataSource.getValidationQuery();
+        if (validationQuery == null) {
+            try {
+                return !physical.isClosed();
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+        try (Statement statement = physical.createStatement()) {
+            statement.setQueryTimeout(timeoutSeconds);
+            try (ResultSet resultSet = statement.executeQuery(validationQuery)) {
+                return resultSet.next();
+            }
+        } catch (SQLException e) {
+            logger.debug("Validation query failed", e);
+            return false;
+        }
+    }
+
+    /*
+     * Close the physical connection, so that the pool invalidates it rather than keeping it when the pooled
+     * connection is closed
+     */
+    private void discard(Connection connection, Connection physical) {
+        lastReturned.remove(physical);
+        if (physical != connection) {
+            close(physical);
+        }
+        close(connection);
+    }
+
+    private void close(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            logger.debug("Failed to close connection {}", connection, e);
+        }
+    }
+
+    private Connection physical(Connection connection) {
+        if (connection instanceof DelegatingConnection) {
+            Connection innermost = ((DelegatingConnection) connection).getInnermostDelegate();
+            if (innermost != null) {
+                return innermost;
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * @return the number of borrows where validation was skipped, because the connection had been used recently
+     */
+    public long getSkippedCount() {
+        return skipped.get();
+    }
+
+    /**
+     * @return the number of connections that have been validated
+     */
+    public long getValidationCount() {
+        return validations.get();
+    }
+
+    /**
+     * @return the number of connections that failed validation
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * @return the number of sweeps of the idle connections triggered by failed validations
+     */
+    public long getSweepCount() {
+        return sweeps.get();
+    }
+
+    /**
+     * @return the accumulated time in milliseconds spent validating connections
+     */
+    public long getTotalValidationMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(validationNanos.get());
+    }
+
+    @Override
+    public String toString() {
+        return "validation[skipped=" + getSkippedCount() + ", validated=" + getValidationCount() + ", failed="
+               + getFailureCount() + ", sweeps=" + getSweepCount() + ", totalMillis="
+               + getTotalValidationMillis() + "]";
+    }
+}
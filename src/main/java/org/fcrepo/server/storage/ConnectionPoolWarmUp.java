@@ -0,0 +1,211 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.storage;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.commons.dbcp.DelegatingConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opens a number of pooled connections in parallel, so the first requests
+ * after a restart do not pay for connection setup one after the other.
+ * <p>
+ * Each connection is validated and, optionally, the given SQL is prepared on
+ * it, so the pool's statement cache, or drivers and databases that cache
+ * prepared statements, have the hot statements ready. All connections are held until every one has been opened,
+ * as otherwise the same idle connection would be borrowed again and again,
+ * and are then returned to the pool. The warm-up never waits longer than the
+ * timeout; connections that are opened after it has given up are returned to
+ * the pool as soon as they arrive. Connections that fail validation are
+ * discarded instead of being primed and returned.
+ * </p>
+ */
+class ConnectionPoolWarmUp {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(ConnectionPoolWarmUp.class);
+
+    private static final int MAX_THREADS = 16;
+
+    private final BasicDataSource dataSource;
+
+    private final int count;
+
+    private final ConnectionPoolValidation validation;
+
+    private final ConnectionPoolStatementCache statementCache;
+
+    private final String[] primeSql;
+
+    private volatile int validationTimeoutSeconds = 1;
+
+    private final List<Connection> opened = new ArrayList<Connection>();
+
+    private final AtomicInteger failures = new AtomicInteger();
+
+    private boolean finished = false;
+
+    /**
+     * @param dataSource the data source to warm up
+     * @param count the number of connections to open
+     * @param validation the idle time validation to tell about the warmed connections, or null
+     * @param statementCache the statement cache to prepare the SQL into, or null
+     * @param primeSql SQL to prepare on every connection
+     */
+    ConnectionPoolWarmUp(BasicDataSource dataSource, int count, ConnectionPoolValidation validation,
+                         ConnectionPoolStatementCache statementCache, String... primeSql) {
+        this.dataSource = dataSource;
+        this.count = count;
+        this.validation = validation;
+        this.statementCache = statementCache;
+        this.primeSql = primeSql;
+    }
+
+    /**
+     * Open, validate and prime the connections, and return them to the pool
+     * @param timeoutMillis the maximum time to wait for the connections
+     * @return the number of connections that were warmed up in time
+     */
+    int run(long timeoutMillis) {
+        long start = System.nanoTime();
+        validationTimeoutSeconds = (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(timeoutMillis));
+        final CountDownLatch done = new CountDownLatch(count);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(count, MAX_THREADS), new ThreadFactory() {
+            private final AtomicInteger number = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ConnectionPool-warmup-" + number.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            for (int i = 0; i < count; i++) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            warm();
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                });
+            }
+            if (!done.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                logger.warn("Connection pool warm-up did not finish within {} ms, continuing startup", timeoutMillis);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdown();
+        }
+        List<Connection> warmed;
+        synchronized (this) {
+            finished = true;
+            warmed = new ArrayList<Connection>(opened);
+            opened.clear();
+        }
+        for (Connection connection : warmed) {
+            if (validation != null) {
+                validation.returned(connection);
+            }
+            close(connection);
+        }
+        logger.info("Warmed up {} of {} connections in {} ms ({} failed)",
+                new Object[]{warmed.size(), count, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                             failures.get()});
+        return warmed.size();
+    }
+
+    private void warm() {
+        Connection connection;
+        try {
+            connection = dataSource.getConnection();
+        } catch (SQLException e) {
+            failures.incrementAndGet();
+            logger.warn("Failed to open connection during warm-up", e);
+            return;
+        }
+        try {
+            if (!connection.isValid(validationTimeoutSeconds)) {
+                failures.incrementAndGet();
+                logger.warn("Connection opened during warm-up is not valid, discarding it");
+                discard(connection);
+                return;
+            }
+        } catch (SQLException | AbstractMethodError e) {
+            logger.debug("Unable to validate connection during warm-up", e);
+        }
+        for (String sql : primeSql) {
+            try (PreparedStatement statement = prepare(connection, sql)) {
+                logger.debug("Prepared '{}' during warm-up", sql);
+            } catch (SQLException e) {
+                logger.debug("Failed to prepare '{}' during warm-up", sql, e);
+            }
+        }
+        synchronized (this) {
+            if (!finished) {
+                opened.add(connection);
+                return;
+            }
+        }
+        // Too late, the warm-up has already given up waiting
+        close(connection);
+    }
+
+    private PreparedStatement prepare(Connection connection, String sql) throws SQLException {
+        if (statementCache != null) {
+            return statementCache.prepare(connection, connection, sql, ResultSet.TYPE_FORWARD_ONLY,
+                    ResultSet.CONCUR_READ_ONLY);
+        }
+        return connection.prepareStatement(sql);
+    }
+
+    private void close(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            logger.debug("Failed to return connection to the pool after warm-up", e);
+        }
+    }
+
+    /*
+     * Close the physical connection first, so that the pool invalidates it rather than keeping it. The pool allows
+     * access to the physical connection whenever warm-up is configured
+     */
+    private void discard(Connection connection) {
+        Connection physical = null;
+        if (connection instanceof DelegatingConnection) {
+            physical = ((DelegatingConnection) connection).getInnermostDelegate();
+        }
+        if (physical == null || physical == connection) {
+            logger.warn("Unable to reach the physical connection behind {}, it may be returned to the pool",
+                    connection);
+        } else {
+            try {
+                physical.close();
+            } catch (SQLException e) {
+                logger.debug("Failed to close invalid connection during warm-up", e);
+            }
+        }
+        close(connection);
+    }
+}
@@ -0,0 +1,186 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.storage;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Proxy handler for connections handed out by {@link ConnectionPool} when the
+ * pool does its own admission control, validation or sizing.
+ * <p>
+ * The connection is released exactly once, when it is closed, regardless of
+ * whether the caller uses {@link ConnectionPool#free(Connection)} or closes
+ * the connection itself. The pool is told when the connection goes back, how
+ * long it was held, and when calls on it fail. Statements are prepared
+ * through the pool, so they can come from its statement cache.
+ * </p>
+ * <p>
+ * The statements and result sets of the connection are wrapped as well, so
+ * the pool also hears of failing queries and of how long each statement took
+ * to execute.
+ * </p>
+ */
+class PooledConnectionHandler implements InvocationHandler {
+
+    private final Connection delegate;
+
+    private final ConnectionPool pool;
+
+    private final long borrowedAt = System.nanoTime();
+
+    private final AtomicBoolean released = new AtomicBoolean(false);
+
+    private PooledConnectionHandler(Connection delegate, ConnectionPool pool) {
+        this.delegate = delegate;
+        this.pool = pool;
+    }
+
+    /**
+     * Wrap a connection borrowed from the data source
+     * @param delegate the borrowed connection
+     * @param pool the pool the connection was borrowed from
+     * @return a connection that releases itself when closed
+     */
+    static Connection wrap(Connection delegate, ConnectionPool pool) {
+        return (Connection) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(),
+                                                   new Class<?>[]{Connection.class},
+                                                   new PooledConnectionHandler(delegate, pool));
+    }
+
+    /**
+     * Release a connection that was closed behind our back, e.g. by the driver.
+     * Does nothing if the connection was not handed out by {@link #wrap(Connection, ConnectionPool)}.
+     * @param connection the connection
+     */
+    static void release(Connection connection) {
+        if (Proxy.isProxyClass(connection.getClass())) {
+            InvocationHandler handler = Proxy.getInvocationHandler(connection);
+            if (handler instanceof PooledConnectionHandler) {
+                ((PooledConnectionHandler) handler).release();
+            }
+        }
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        if (name.equals("equals") && args != null && args.length == 1) {
+            return proxy == args[0];
+        }
+        if (name.equals("hashCode") && args == null) {
+            return System.identityHashCode(proxy);
+        }
+        if (name.equals("close") && args == null) {
+            if (!released.get()) {
+                pool.returning(delegate, (Connection) proxy);
+            }
+            try {
+                delegate.close();
+            } finally {
+                release();
+            }
+            return null;
+        }
+        if (name.equals("prepareStatement") && args != null && !released.get()) {
+            PreparedStatement statement = null;
+            if (args.length == 1 && args[0] instanceof String) {
+                statement = pool.prepareStatement(delegate, (Connection) proxy, (String) args[0],
+                        ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            } else if (args.length == 3 && method.getParameterTypes()[1] == int.class) {
+                statement = pool.prepareStatement(delegate, (Connection) proxy, (String) args[0],
+                        (Integer) args[1], (Integer) args[2]);
+            }
+            if (statement != null) {
+                return wrapResult(method, statement, proxy, pool);
+            }
+        }
+        try {
+            return wrapResult(method, method.invoke(delegate, args), proxy, pool);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof SQLException) {
+                pool.failed();
+            }
+            throw e.getCause();
+        }
+    }
+
+    /*
+     * Wrap the result of a call if it is a statement or a result set
+     */
+    private static Object wrapResult(Method method, Object result, Object parent, ConnectionPool pool) {
+        Class<?> type = method.getReturnType();
+        if (result == null || (type != Statement.class && type != PreparedStatement.class
+                               && type != CallableStatement.class && type != ResultSet.class)) {
+            return result;
+        }
+        return Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(), new Class<?>[]{type},
+                                      new ResultHandler(result, parent, pool));
+    }
+
+    private void release() {
+        if (released.compareAndSet(false, true)) {
+            pool.released(System.nanoTime() - borrowedAt);
+        }
+    }
+
+    /*
+     * Proxy handler for a statement or result set of a wrapped connection
+     */
+    private static class ResultHandler implements InvocationHandler {
+
+        private final Object delegate;
+
+        /*
+         * The connection or statement proxy the object came from
+         */
+        private final Object parent;
+
+        private final ConnectionPool pool;
+
+        ResultHandler(Object delegate, Object parent, ConnectionPool pool) {
+            this.delegate = delegate;
+            this.parent = parent;
+            this.pool = pool;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("equals") && args != null && args.length == 1) {
+                return proxy == args[0];
+            }
+            if (name.equals("hashCode") && args == null) {
+                return System.identityHashCode(proxy);
+            }
+            if ((name.equals("getConnection") || name.equals("getStatement")) && args == null) {
+                return parent;
+            }
+            boolean execute = delegate instanceof Statement && name.startsWith("execute");
+            long start = execute ? System.nanoTime() : 0;
+            try {
+                return wrapResult(method, method.invoke(delegate, args), proxy, pool);
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof SQLException) {
+                    pool.failed();
+                }
+                throw e.getCause();
+            } finally {
+                if (execute) {
+                    pool.executed(System.nanoTime() - start);
+                }
+            }
+        }
+    }
+}
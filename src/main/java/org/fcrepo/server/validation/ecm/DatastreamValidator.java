@@ -0,0 +1,383 @@
+package org.fcrepo.server.validation.ecm;
+
+import org.fcrepo.server.Context;
+import org.fcrepo.server.errors.GeneralException;
+import org.fcrepo.server.errors.ObjectIntegrityException;
+import org.fcrepo.server.errors.ObjectNotInLowlevelStorageException;
+import org.fcrepo.server.errors.ServerException;
+import org.fcrepo.server.storage.DOReader;
+import org.fcrepo.server.storage.ExternalContentManager;
+import org.fcrepo.server.storage.RepositoryReader;
+import org.fcrepo.server.storage.types.Datastream;
+import org.fcrepo.server.storage.types.Validation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.stream.StreamSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Replacement for the Fedora datastream validator of the enhanced content models, which checks the datastreams of an
+ * object against the DS-COMPOSITE-MODEL of each of its content models.
+ * <p>
+ * Required datastreams must exist, datastreams must match one of the forms of their type model, and datastreams
+ * with a SCHEMA extension must be valid XML according to the schema datastream of the content model. The schemas
+ * are compiled once through the {@link SchemaCache}, instead of for every object validated.
+ * </p>
+ * <p>
+ * Problems are kept as {@link ValidationError}s in {@link ValidationProblems} lists, so their messages are only
+ * built if the validation result is read.
+ * </p>
+ * <p>
+ * The checks of each type model are independent, and run on the {@link ParallelValidator} when it is parallel. The
+ * problems are merged in the order of the content models and type models, whichever check finishes first.
+ * </p>
+ */
+public class DatastreamValidator {
+
+    private static final Logger logger = LoggerFactory.getLogger(DatastreamValidator.class);
+
+    static final String DS_COMPOSITE_MODEL = "DS-COMPOSITE-MODEL";
+
+    static final String DS_COMPOSITE_MODEL_NS = "info:fedora/fedora-system:def/dsCompositeModel#";
+
+    private static final String INFO_FEDORA = "info:fedora/";
+
+    /*
+     * DocumentBuilder is not thread safe
+     */
+    private static final ThreadLocal<DocumentBuilder> BUILDERS = new ThreadLocal<DocumentBuilder>() {
+        @Override
+        protected DocumentBuilder initialValue() {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            try {
+                return factory.newDocumentBuilder();
+            } catch (ParserConfigurationException e) {
+                throw new IllegalStateException("No namespace aware XML parser available", e);
+            }
+        }
+    };
+
+    private final RepositoryReader doMgr;
+
+    private final SchemaCache schemaCache;
+
+    private final ParallelValidator parallelValidator;
+
+    public DatastreamValidator(RepositoryReader doMgr) {
+        this(doMgr, SchemaCache.getInstance(), ParallelValidator.getInstance());
+    }
+
+    DatastreamValidator(RepositoryReader doMgr, SchemaCache schemaCache, ParallelValidator parallelValidator) {
+        this.doMgr = doMgr;
+        this.schemaCache = schemaCache;
+        this.parallelValidator = parallelValidator;
+    }
+
+    /**
+     * Validate the datastreams of an object against its content models
+     * @param context the context of the call
+     * @param currentObjectReader the object
+     * @param asOfDateTime validate the object as it was at this time, or null for now
+     * @param validation the result, which problems are added to
+     * @param m_exExternalContentManager not used, external content is read through the datastream
+     * @throws ServerException if the object or a content model could not be read
+     */
+    public void validate(Context context, DOReader currentObjectReader, Date asOfDateTime, Validation validation,
+                         ExternalContentManager m_exExternalContentManager) throws ServerException {
+        List<TypeModelCheck> checks = new ArrayList<TypeModelCheck>();
+        for (String contentModelURI : currentObjectReader.getContentModels()) {
+            String contentModel = contentModelURI.startsWith(INFO_FEDORA)
+                                  ? contentModelURI.substring(INFO_FEDORA.length())
+                                  : contentModelURI;
+            DOReader contentModelReader;
+            try {
+                contentModelReader = doMgr.getReader(false, context, contentModel);
+            } catch (ObjectNotInLowlevelStorageException e) { //the relations validation reports missing models
+                logger.debug("Content model {} not found, skipping its datastream checks", contentModel);
+                continue;
+            }
+            if (asOfDateTime != null && contentModelReader.getCreateDate().after(asOfDateTime)) {
+                continue; //the content model did not exist at the time
+            }
+            Datastream dsCompositeModel = contentModelReader.GetDatastream(DS_COMPOSITE_MODEL, asOfDateTime);
+            if (dsCompositeModel == null) {
+                continue;
+            }
+            for (TypeModel typeModel : getTypeModels(contentModel, dsCompositeModel)) {
+                checks.add(new TypeModelCheck(context, currentObjectReader, contentModel, contentModelReader,
+                        typeModel, asOfDateTime));
+            }
+        }
+        List<List<ValidationError>> results;
+        try {
+            results = parallelValidator.runAll(checks);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ServerException) {
+                throw (ServerException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new GeneralException("Datastream validation of " + currentObjectReader.GetObjectPID() + " failed",
+                    cause);
+        }
+        // merged in the order of the checks, so the result does not depend on which check finished first
+        for (int i = 0; i < checks.size(); i++) {
+            String dsid = checks.get(i).typeModel.dsid;
+            for (ValidationError error : results.get(i)) {
+                if (error.getKind() != ValidationError.Kind.SCHEMA_VALIDATION_WARNING) {
+                    validation.setValid(false);
+                }
+                report(validation, dsid, error);
+            }
+        }
+    }
+
+    private List<TypeModel> getTypeModels(String contentModel, Datastream dsCompositeModel) throws ServerException {
+        Document document;
+        try (InputStream in = dsCompositeModel.getContentStream()) {
+            document = BUILDERS.get().parse(in);
+        } catch (SAXException | IOException e) {
+            throw new ObjectIntegrityException("Unable to parse " + DS_COMPOSITE_MODEL + " of content model '"
+                                               + contentModel + "': " + e.getMessage(), e);
+        }
+        NodeList nodes = document.getElementsByTagNameNS(DS_COMPOSITE_MODEL_NS, "dsTypeModel");
+        List<TypeModel> typeModels = new ArrayList<TypeModel>(nodes.getLength());
+        for (int i = 0; i < nodes.getLength(); i++) {
+            typeModels.add(new TypeModel((Element) nodes.item(i)));
+        }
+        return typeModels;
+    }
+
+    /**
+     * The parts of a dsTypeModel that are checked, copied out of the DOM, which is not safe to read from several
+     * threads
+     */
+    private static class TypeModel {
+
+        private final String dsid;
+
+        private final boolean optional;
+
+        /*
+         * MIME type and format URI of each form, empty for any
+         */
+        private final List<String[]> forms = new ArrayList<String[]>();
+
+        /*
+         * The IDs of the schema datastreams in the content model
+         */
+        private final List<String> schemaIDs = new ArrayList<String>();
+
+        TypeModel(Element typeModel) {
+            dsid = typeModel.getAttribute("ID");
+            optional = "true".equals(typeModel.getAttribute("optional"));
+            NodeList formNodes = typeModel.getElementsByTagNameNS(DS_COMPOSITE_MODEL_NS, "form");
+            for (int i = 0; i < formNodes.getLength(); i++) {
+                Element form = (Element) formNodes.item(i);
+                forms.add(new String[]{form.getAttribute("MIME"), form.getAttribute("FORMAT_URI")});
+            }
+            NodeList extensions = typeModel.getElementsByTagNameNS(DS_COMPOSITE_MODEL_NS, "extension");
+            for (int i = 0; i < extensions.getLength(); i++) {
+                Element extension = (Element) extensions.item(i);
+                if (!"SCHEMA".equals(extension.getAttribute("name"))) {
+                    continue;
+                }
+                NodeList references = extension.getElementsByTagNameNS(DS_COMPOSITE_MODEL_NS, "reference");
+                for (int j = 0; j < references.getLength(); j++) {
+                    Element reference = (Element) references.item(j);
+                    if ("datastream".equals(reference.getAttribute("type"))) {
+                        schemaIDs.add(reference.getAttribute("value"));
+                    }
+                }
+            }
+        }
+
+        /*
+         * A type model without forms allows any format
+         */
+        boolean matchesAForm(Datastream datastream) {
+            if (forms.isEmpty()) {
+                return true;
+            }
+            for (String[] form : forms) {
+                if (matches(form[0], datastream.DSMIME) && matches(form[1], datastream.DSFormatURI)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static boolean matches(String required, String actual) {
+            return required == null || required.isEmpty() || required.equals(actual);
+        }
+    }
+
+    /**
+     * The checks of one datastream against one type model, which can run concurrently with the others
+     */
+    private class TypeModelCheck implements Callable<List<ValidationError>> {
+
+        private final Context context;
+
+        private final DOReader object;
+
+        private final String contentModel;
+
+        private final DOReader contentModelReader;
+
+        private final TypeModel typeModel;
+
+        private final Date asOfDateTime;
+
+        TypeModelCheck(Context context, DOReader object, String contentModel, DOReader contentModelReader,
+                       TypeModel typeModel, Date asOfDateTime) {
+            this.context = context;
+            this.object = object;
+            this.contentModel = contentModel;
+            this.contentModelReader = contentModelReader;
+            this.typeModel = typeModel;
+            this.asOfDateTime = asOfDateTime;
+        }
+
+        @Override
+        public List<ValidationError> call() throws ServerException {
+            List<ValidationError> problems = new ArrayList<ValidationError>();
+            String dsid = typeModel.dsid;
+            Datastream datastream = object.GetDatastream(dsid, asOfDateTime);
+            if (datastream == null) {
+                if (!typeModel.optional) {
+                    problems.add(ValidationError.missingRequiredDatastream(dsid, contentModel));
+                }
+                return problems;
+            }
+            if (!typeModel.matchesAForm(datastream)) {
+                problems.add(ValidationError.invalidFormatURIorMimeType(dsid, contentModel));
+            }
+            for (String schemaID : typeModel.schemaIDs) {
+                validateAgainstSchema(schemaID, datastream, problems);
+            }
+            return problems;
+        }
+
+        private void validateAgainstSchema(String schemaID, Datastream datastream, List<ValidationError> problems)
+                throws ServerException {
+            String dsid = typeModel.dsid;
+            final Datastream schemaDatastream = contentModelReader.GetDatastream(schemaID, asOfDateTime);
+            if (schemaDatastream == null) {
+                problems.add(ValidationError.schemaNotFound(contentModel));
+                return;
+            }
+            SchemaCache.CompiledSchema schema;
+            try {
+                schema = schemaCache.getCompiledSchema(contentModel, schemaID, getVersion(schemaDatastream),
+                        new SchemaCache.SchemaSource() {
+                            @Override
+                            public InputStream open() throws Exception {
+                                return schemaDatastream.getContentStream();
+                            }
+                        });
+            } catch (SAXException e) {
+                logger.debug("Failed to parse schema '{}' from content model '{}'",
+                        new Object[]{schemaID, contentModel, e});
+                problems.add(ValidationError.schemaCannotParse(contentModel, schemaID, e));
+                return;
+            }
+            SchemaErrors errors = new SchemaErrors(dsid, contentModel, problems);
+            try (InputStream in = datastream.getContentStream(context)) {
+                schema.validate(new StreamSource(in), errors);
+            } catch (SAXException e) {
+                if (!errors.reported) { //the handler has already reported what made the validation stop
+                    problems.add(ValidationError.invalidContentInDatastream(dsid, contentModel, e));
+                }
+            } catch (IOException e) {
+                problems.add(ValidationError.unableToReadDatastream(dsid, e));
+            }
+        }
+    }
+
+    /*
+     * The version of a schema datastream, so a new version is compiled again
+     */
+    private static String getVersion(Datastream datastream) {
+        return datastream.DSVersionID + "@" + (datastream.DSCreateDT == null ? "" : datastream.DSCreateDT.getTime());
+    }
+
+    /*
+     * Add a problem to the list of the datastream, rendering it only if the list is not one of ours
+     */
+    private static void report(Validation validation, String dsid, ValidationError problem) {
+        Map<String, List<String>> datastreamProblems = validation.getDatastreamProblems();
+        List<String> problems = datastreamProblems.get(dsid);
+        if (problems == null) {
+            problems = new ValidationProblems();
+            datastreamProblems.put(dsid, problems);
+        }
+        if (problems instanceof ValidationProblems) {
+            ((ValidationProblems) problems).addError(problem);
+        } else {
+            problems.add(problem.getMessage());
+        }
+    }
+
+    /*
+     * Reports schema warnings, and stops at the first error, as one is enough to make the datastream invalid
+     */
+    private static class SchemaErrors implements ErrorHandler {
+
+        private final String dsid;
+
+        private final String contentModel;
+
+        private final List<ValidationError> problems;
+
+        private boolean reported = false;
+
+        SchemaErrors(String dsid, String contentModel, List<ValidationError> problems) {
+            this.dsid = dsid;
+            this.contentModel = contentModel;
+            this.problems = problems;
+        }
+
+        @Override
+        public void warning(SAXParseException exception) {
+            problems.add(ValidationError.schemaValidationWarning(dsid, contentModel, exception));
+        }
+
+        @Override
+        public void error(SAXParseException exception) throws SAXException {
+            reported = true;
+            problems.add(ValidationError.schemaValidationError(dsid, contentModel, exception));
+            throw exception;
+        }
+
+        @Override
+        public void fatalError(SAXParseException exception) throws SAXException {
+            reported = true;
+            problems.add(ValidationError.schemaValidationFatalError(dsid, contentModel, exception));
+            throw exception;
+        }
+    }
+}
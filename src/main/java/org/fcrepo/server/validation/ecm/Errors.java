@@ -5,6 +5,7 @@ import org.slf4j.LoggerFactory;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
 
+import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.TimeZone;
@@ -15,121 +16,129 @@ import java.util.TimeZone;
  * Date: Aug 11, 2010
  * Time: 10:05:28 AM
  * To change this template use File | Settings | File Templates.
+ * <p>
+ * The messages are rendered by {@link ValidationError}, so they are counted in the {@link ValidationMetrics}.
+ * These methods build the text at once, for the Fedora validators that want strings; the
+ * {@link DatastreamValidator} of this package uses {@link ValidationError} directly and only renders messages
+ * that are read.
+ * </p>
  */
 public class Errors {
     private static final Logger logger = LoggerFactory.getLogger(org.fcrepo.server.validation.ecm.Errors.class);
 
+    private static final String DATE_PATTERN = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'";
+
+    /**
+     * @deprecated SimpleDateFormat is not thread safe, use {@link #formatDate(Date)}
+     */
+    @Deprecated
     static final SimpleDateFormat DATE_FORMAT =
-        new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        new SimpleDateFormat(DATE_PATTERN);
     static {
         DATE_FORMAT.setTimeZone(TimeZone.getTimeZone("GMT"));
     }
 
+    private static final ThreadLocal<DateFormat> DATE_FORMATS = new ThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() {
+            SimpleDateFormat format = new SimpleDateFormat(DATE_PATTERN);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return format;
+        }
+    };
 
-    public static String unableToParseSchema(String schemaID, String datastreamID, String contentModel, Exception e) {
-        return "Content Model error: Unable to parse the validation "
-               + "schema '" + schemaID + "'for datastream '" + datastreamID + "' from content model '" +
-               contentModel + "'." +
-               "The following error was encountered '" + e.getMessage() + "'";
+    /**
+     * Format a date the way validation messages do, safe for concurrent use
+     * @param date the date
+     * @return the date in UTC, with milliseconds
+     */
+    public static String formatDate(Date date) {
+        return DATE_FORMATS.get().format(date);
+    }
 
+    public static String unableToParseSchema(String schemaID, String datastreamID, String contentModel, Exception e) {
+        return ValidationError.unableToParseSchema(schemaID, datastreamID, contentModel, e).getMessage();
     }
 
     public static String invalidContentInDatastream(String datastreamID, String contentModel,
                                                     Exception e) {
-        return "Data error: Invalid content in datastream '" + datastreamID + "', in regards to " +
-               "schema the content model '" + contentModel + "'"
-               + "'. " + e.getMessage();
-
+        return ValidationError.invalidContentInDatastream(datastreamID, contentModel, e).getMessage();
     }
 
     public static String unableToReadDatastream(String datastreamID, Exception e) {
-        return "Data error: Unable to read datastream '" +
-               datastreamID + "'. " + e.getMessage();
-
+        return ValidationError.unableToReadDatastream(datastreamID, e).getMessage();
     }
 
     public static String schemaValidationWarning(String datastreamID, String contentModel,
                                                  SAXParseException exception) {
-        return "Encountered schema validation warning while parsing datastream '" + datastreamID +
-               "' with the schema from content model '" + contentModel +
-               "'. The warning was '" + exception.getLocalizedMessage() + "'";
+        return ValidationError.schemaValidationWarning(datastreamID, contentModel, exception).getMessage();
     }
 
     public static String schemaValidationError(String datastreamID, String contentModel,
                                                SAXParseException exception) {
-        return "Encountered schema validation error while parsing datastream '" + datastreamID +
-               "' with the schema from content model '" + contentModel +
-               "'. The error was '" + exception.getLocalizedMessage() + "'";
+        return ValidationError.schemaValidationError(datastreamID, contentModel, exception).getMessage();
     }
 
 
     public static String schemaValidationFatalError(String datastreamID, String contentModel,
                                                     SAXParseException exception) {
-        return "Encountered schema validation fatal error while parsing datastream '" + datastreamID +
-               "' with the schema from content model '" + contentModel +
-               "'. The fatal error was '" + exception.getLocalizedMessage() + "'";
+        return ValidationError.schemaValidationFatalError(datastreamID, contentModel, exception).getMessage();
     }
 
     public static String invalidFormatURIorMimeType(String dsid, String contentmodel) {
-        return "Datastream '" + dsid + "' is does not have the FORMAT_URI and MIME_TYPE attributes required by '" +
-               contentmodel + "'";
-
+        return ValidationError.invalidFormatURIorMimeType(dsid, contentmodel).getMessage();
     }
 
     public static String missingRequiredDatastream(String dsid, String contentmodel) {
-        return "Datastream '" + dsid + "' is required by the content model '" + contentmodel + "'";
+        return ValidationError.missingRequiredDatastream(dsid, contentmodel).getMessage();
     }
 
     public static String allValuesFromViolation(String subject, String relation, String requiredTarget) {
-        return "The relation '" + relation + "' in '"+subject+"'  is restricted to values from " +
-               "class '" + requiredTarget + "'";
+        return ValidationError.allValuesFromViolation(subject, relation, requiredTarget).getMessage();
     }
 
     public static String missingObjectViolation(String subject, String relation, String requiredTarget, String target) {
-           return "The relation '" + relation + "' in '"+subject+"'  is restricted to values from " +
-                  "class '" + requiredTarget + "', but refers to object '"+target+"' which does not exist";
-       }
+        return ValidationError.missingObjectViolation(subject, relation, requiredTarget, target).getMessage();
+    }
 
 
     public static String someValuesFromViolationNoSuchRelation(String subject, String ontologyrelation,
                                                                String requiredTarget) {
-        return "The relation '" + ontologyrelation + "' in '"+subject+"'  should have at least one" +
-               "value from the from the" +
-               "class '" + requiredTarget + "' and exist at least once";
+        return ValidationError.someValuesFromViolationNoSuchRelation(subject, ontologyrelation, requiredTarget)
+                .getMessage();
     }
 
     public static String someValuesFromViolationWrongClassOfTarget(String subject, String relation,
                                                                    String requiredTarget) {
-        return "The relation '" + relation + "' in '"+subject+"' is restricted to values from " +
-               "class '" + requiredTarget + "'";
-
+        return ValidationError.someValuesFromViolationWrongClassOfTarget(subject, relation, requiredTarget)
+                .getMessage();
     }
 
     public static String minCardinalityViolation(String subject, String ontologyrelation,int min) {
-        return "The relation '" + ontologyrelation + "' in '"+subject+"' should at least exist '" + min + "' times.";
+        return ValidationError.minCardinalityViolation(subject, ontologyrelation, min).getMessage();
     }
 
     public static String maxCardinalityViolation(String subject, String ontologyrelation,int max) {
-        return "The relation '" + ontologyrelation + "' in '"+subject+"' should exist at most '" + max + "' times.";
+        return ValidationError.maxCardinalityViolation(subject, ontologyrelation, max).getMessage();
     }
 
     public static String exactCardinalityViolation(String subject, String ontologyrelation,int exact) {
-        return "The relation '" + ontologyrelation + "' in '"+subject+"'  should exist exactly '" + exact + "' times.";
+        return ValidationError.exactCardinalityViolation(subject, ontologyrelation, exact).getMessage();
     }
 
     public static String schemaNotFound(String contentmodel) {
-        return "The Content Model '" + contentmodel + "' could not be found";
+        return ValidationError.schemaNotFound(contentmodel).getMessage();
     }
 
     public static String schemaCannotParse(String contentmodel, String datastreamID, SAXException e) {
-        logger.info("Failed to parse schema '" + datastreamID + "' from content model '" + contentmodel + "'", e);
-        return "Cannot parse Schema " + datastreamID + " from ContentModel '" + contentmodel + "'. Caught Exception " + e
-                .getMessage();
+        // the message is returned to the caller, the stack trace is only of interest when debugging
+        logger.info("Failed to parse schema '{}' from content model '{}': {}",
+                new Object[]{datastreamID, contentmodel, e.getMessage()});
+        logger.debug("Schema parse failure", e);
+        return ValidationError.schemaCannotParse(contentmodel, datastreamID, e).getMessage();
     }
 
     public static String doesNotExistAsOfDateTime(String subject, Date createDate, Date asOfDateTime) {
-        return "The object " + subject +
-        " did not yet exist as of " + DATE_FORMAT.format(asOfDateTime) +
-        " (created " + DATE_FORMAT.format(createDate) + ")";
+        return ValidationError.doesNotExistAsOfDateTime(subject, createDate, asOfDateTime).getMessage();
     }
 }
@@ -0,0 +1,211 @@
+package org.fcrepo.server.validation.ecm;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the independent checks of one object validation, the schema validation of each datastream, concurrently
+ * on a bounded pool. The relation checks of Fedora's own validator still run one after another.
+ * <p>
+ * The calling thread works through the checks as well, and at most {@code maxConcurrencyPerCall} threads,
+ * including the caller, work on the checks of one call, so one object with many datastreams cannot take the whole
+ * pool. The results come back in the order the checks were given, whatever order they finish in, so the merged
+ * validation result is deterministic. With fewer than two threads the checks simply run one after another in the
+ * calling thread. The pool is started by the first call that has checks to share, and its idle threads stop after
+ * a minute.
+ * </p>
+ * <p>
+ * The shared instance is sequential unless the system property {@value #THREADS_PROPERTY} is set to the pool size,
+ * with {@value #CONCURRENCY_PROPERTY} as the per-call limit, which defaults to half the pool.
+ * </p>
+ */
+public class ParallelValidator {
+
+    private static final Logger logger = LoggerFactory.getLogger(ParallelValidator.class);
+
+    public static final String THREADS_PROPERTY = "fedora.ecm.validationThreads";
+
+    public static final String CONCURRENCY_PROPERTY = "fedora.ecm.validationConcurrencyPerCall";
+
+    private static final ParallelValidator INSTANCE = fromSystemProperties();
+
+    private final int threads;
+
+    private final int maxConcurrencyPerCall;
+
+    private volatile ExecutorService executor;
+
+    private boolean shutdown = false;
+
+    /**
+     * @param threads the size of the pool, below 2 for sequential validation
+     * @param maxConcurrencyPerCall the maximum number of threads working on the checks of one call
+     */
+    public ParallelValidator(int threads, int maxConcurrencyPerCall) {
+        this.threads = threads;
+        this.maxConcurrencyPerCall = Math.max(1, Math.min(maxConcurrencyPerCall, threads));
+    }
+
+    /*
+     * The pool, started on first use, or null if the validator is sequential or shut down
+     */
+    private ExecutorService getExecutor() {
+        ExecutorService pool = executor;
+        if (pool != null || !isParallel()) {
+            return pool;
+        }
+        synchronized (this) {
+            if (executor == null && !shutdown) {
+                ThreadPoolExecutor created = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "ParallelValidator-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+                created.allowCoreThreadTimeOut(true);
+                executor = created;
+            }
+            return executor;
+        }
+    }
+
+    /**
+     * @return the validator shared by the content model validation in this server
+     */
+    public static ParallelValidator getInstance() {
+        return INSTANCE;
+    }
+
+    private static ParallelValidator fromSystemProperties() {
+        try {
+            int threads = Integer.getInteger(THREADS_PROPERTY, 0);
+            int concurrency = Integer.getInteger(CONCURRENCY_PROPERTY, Math.max(2, threads / 2));
+            if (threads > 1) {
+                logger.info("Validating content model checks on {} threads, at most {} per object", threads,
+                        concurrency);
+            }
+            return new ParallelValidator(threads, concurrency);
+        } catch (SecurityException e) {
+            return new ParallelValidator(0, 0);
+        }
+    }
+
+    /**
+     * @return true if checks are run concurrently
+     */
+    public boolean isParallel() {
+        return threads >= 2 && maxConcurrencyPerCall >= 2;
+    }
+
+    /**
+     * Run the checks and wait for all of them
+     * @param checks the checks of one validation
+     * @param <T> the result of a check
+     * @return the results, in the order of the checks
+     * @throws ExecutionException with the failure of the first check, in the order of the checks, that failed
+     */
+    public <T> List<T> runAll(List<? extends Callable<T>> checks) throws ExecutionException {
+        int count = checks.size();
+        if (count == 0) {
+            return Collections.emptyList();
+        }
+        Run<T> run = new Run<T>(checks);
+        ExecutorService executor = count > 1 ? getExecutor() : null;
+        if (executor != null) {
+            int helpers = Math.min(count, maxConcurrencyPerCall) - 1;
+            for (int i = 0; i < helpers; i++) {
+                try {
+                    executor.execute(run);
+                } catch (RejectedExecutionException e) {
+                    break;
+                }
+            }
+        }
+        run.run();
+        try {
+            run.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ExecutionException("Interrupted while waiting for validation", e);
+        }
+        List<T> results = new ArrayList<T>(count);
+        for (int i = 0; i < count; i++) {
+            if (run.failures[i] != null) {
+                throw new ExecutionException(run.failures[i]);
+            }
+            results.add(run.results.get(i));
+        }
+        return results;
+    }
+
+    /**
+     * Stop the pool. Checks already started are finished
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /*
+     * The checks of one call. The caller and the helpers take the next unclaimed check until none are left
+     */
+    private static class Run<T> implements Runnable {
+
+        private final List<? extends Callable<T>> checks;
+
+        private final List<T> results;
+
+        private final Throwable[] failures;
+
+        private final AtomicInteger next = new AtomicInteger();
+
+        private final CountDownLatch done;
+
+        Run(List<? extends Callable<T>> checks) {
+            this.checks = checks;
+            this.results = new ArrayList<T>(Collections.<T>nCopies(checks.size(), null));
+            this.failures = new Throwable[checks.size()];
+            this.done = new CountDownLatch(checks.size());
+        }
+
+        @Override
+        public void run() {
+            int i;
+            while ((i = next.getAndIncrement()) < checks.size()) {
+                try {
+                    T result = checks.get(i).call();
+                    synchronized (results) {
+                        results.set(i, result);
+                    }
+                } catch (Throwable t) {
+                    synchronized (results) {
+                        failures[i] = t;
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }
+        }
+    }
+}
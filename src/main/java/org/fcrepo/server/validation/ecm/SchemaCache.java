@@ -0,0 +1,372 @@
+package org.fcrepo.server.validation.ecm;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+import javax.xml.XMLConstants;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of compiled XML schemas for datastream validation.
+ * <p>
+ * Schemas are keyed by content model PID, schema datastream ID and a version of the schema datastream, e.g. its
+ * version ID or checksum, so a changed schema is compiled again. A {@link Schema} is thread safe and shared by all
+ * validations, while {@link Validator}s are not, so each cached schema keeps a few idle validators for reuse. They
+ * go with the schema when it is pushed out of the cache. Concurrent requests for a schema that is
+ * not cached compile it once. A schema that fails to load or compile is remembered for a short while, so a broken
+ * content model is not parsed again for every object validated against it. Loading, compiling and validating are
+ * timed in the {@link ValidationMetrics}.
+ * </p>
+ */
+public class SchemaCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(SchemaCache.class);
+
+    public static final int DEFAULT_MAX_SIZE = 256;
+
+    public static final long DEFAULT_FAILURE_TTL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    /*
+     * More validators than threads validating against one schema at a time are of no use
+     */
+    private static final int MAX_IDLE_VALIDATORS = Runtime.getRuntime().availableProcessors();
+
+    private static final SchemaCache INSTANCE = new SchemaCache(DEFAULT_MAX_SIZE, DEFAULT_FAILURE_TTL_MILLIS);
+
+    /*
+     * Schema errors are reported through the exception, not printed on stderr as the default handler does
+     */
+    private static final ErrorHandler QUIET = new ErrorHandler() {
+        @Override
+        public void warning(SAXParseException exception) {
+            logger.debug("Schema warning", exception);
+        }
+
+        @Override
+        public void error(SAXParseException exception) throws SAXException {
+            throw exception;
+        }
+
+        @Override
+        public void fatalError(SAXParseException exception) throws SAXException {
+            throw exception;
+        }
+    };
+
+    /*
+     * SchemaFactory is not thread safe
+     */
+    private static final ThreadLocal<SchemaFactory> SCHEMA_FACTORIES = new ThreadLocal<SchemaFactory>() {
+        @Override
+        protected SchemaFactory initialValue() {
+            SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+            factory.setErrorHandler(QUIET);
+            return factory;
+        }
+    };
+
+    private final int maxSize;
+
+    private final long failureTtlNanos;
+
+    private final Map<Key, Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * Where the content of a schema datastream is read from, when the schema is not cached
+     */
+    public interface SchemaSource {
+
+        /**
+         * @return the schema, which the cache closes after reading
+         * @throws Exception if the schema datastream could not be read
+         */
+        InputStream open() throws Exception;
+    }
+
+    /**
+     * @param maxSize the maximum number of schemas kept
+     * @param failureTtlMillis how long a schema that failed to load or compile is remembered as broken
+     */
+    public SchemaCache(final int maxSize, long failureTtlMillis) {
+        this.maxSize = maxSize;
+        this.failureTtlNanos = TimeUnit.MILLISECONDS.toNanos(failureTtlMillis);
+        this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > SchemaCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * @return the cache shared by the validators in this server
+     */
+    public static SchemaCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get a compiled schema, compiling it if it is not cached
+     * @param contentModel the PID of the content model
+     * @param datastreamID the ID of the schema datastream
+     * @param version the version ID, checksum or modification date of the schema datastream
+     * @param source where to read the schema from if it is not cached
+     * @return the compiled schema
+     * @throws SAXException if the schema could not be read or compiled, now or within the failure time to live
+     */
+    public Schema getSchema(String contentModel, String datastreamID, String version, SchemaSource source)
+            throws SAXException {
+        return getCompiledSchema(contentModel, datastreamID, version, source).getSchema();
+    }
+
+    /**
+     * Get a compiled schema with its validators, compiling it if it is not cached
+     * @param contentModel the PID of the content model
+     * @param datastreamID the ID of the schema datastream
+     * @param version the version ID, checksum or modification date of the schema datastream
+     * @param source where to read the schema from if it is not cached
+     * @return the compiled schema, to validate with
+     * @throws SAXException if the schema could not be read or compiled, now or within the failure time to live
+     */
+    public CompiledSchema getCompiledSchema(String contentModel, String datastreamID, String version,
+                                            SchemaSource source) throws SAXException {
+        Key key = new Key(contentModel, datastreamID, version);
+        Entry entry;
+        boolean owner = false;
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry == null || entry.isExpired()) {
+                entry = new Entry(key, source);
+                entries.put(key, entry);
+                owner = true;
+            }
+        }
+        if (owner) {
+            misses.incrementAndGet();
+            entry.compile.run();
+        } else {
+            hits.incrementAndGet();
+        }
+        try {
+            return entry.compile.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SAXException("Interrupted while waiting for schema " + key, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SAXException) {
+                throw (SAXException) cause;
+            }
+            throw new SAXException("Unable to read schema " + key, cause instanceof Exception
+                                                                  ? (Exception) cause
+                                                                  : new Exception(cause));
+        }
+    }
+
+    /**
+     * Forget all cached schemas
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    @Override
+    public String toString() {
+        return "SchemaCache[size=" + size() + ", hits=" + getHitCount() + ", misses=" + getMissCount()
+               + ", failures=" + getFailureCount() + "]";
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * A schema from the cache, with the validators for it that are not in use
+     */
+    public static final class CompiledSchema {
+
+        private final String contentModel;
+
+        private final Schema schema;
+
+        private final Queue<Validator> idle = new ConcurrentLinkedQueue<Validator>();
+
+        private final AtomicInteger idleCount = new AtomicInteger();
+
+        CompiledSchema(String contentModel, Schema schema) {
+            this.contentModel = contentModel;
+            this.schema = schema;
+        }
+
+        public Schema getSchema() {
+            return schema;
+        }
+
+        /**
+         * Validate a datastream with an idle validator for the schema, timing it in the {@link ValidationMetrics}
+         * @param datastream the content to validate
+         * @param errorHandler receives the problems found, or null to throw on the first error
+         * @throws SAXException if the content is invalid, unless the error handler decides otherwise
+         * @throws IOException if the content could not be read
+         */
+        public void validate(Source datastream, ErrorHandler errorHandler) throws SAXException, IOException {
+            Validator validator = idle.poll();
+            if (validator == null) {
+                validator = schema.newValidator();
+            } else {
+                idleCount.decrementAndGet();
+            }
+            long start = System.nanoTime();
+            try {
+                validator.setErrorHandler(errorHandler);
+                validator.validate(datastream);
+            } finally {
+                ValidationMetrics.getInstance().validated(contentModel, System.nanoTime() - start);
+                validator.reset();
+                if (idleCount.incrementAndGet() <= MAX_IDLE_VALIDATORS) {
+                    idle.offer(validator);
+                } else {
+                    idleCount.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    private class Entry {
+
+        private final FutureTask<CompiledSchema> compile;
+
+        private volatile long failed = 0;
+
+        Entry(final Key key, final SchemaSource source) {
+            this.compile = new FutureTask<CompiledSchema>(new Callable<CompiledSchema>() {
+                @Override
+                public CompiledSchema call() throws Exception {
+                    try {
+                        return new CompiledSchema(key.contentModel, load(source));
+                    } catch (Exception | Error e) {
+                        // stamped before the task completes, so every failure expires, whoever waits for it
+                        failed = System.nanoTime();
+                        failures.incrementAndGet();
+                        logger.debug("Failed to load schema {}, remembering the failure for {} ms", key,
+                                TimeUnit.NANOSECONDS.toMillis(failureTtlNanos));
+                        throw e;
+                    }
+                }
+            });
+        }
+
+        private Schema load(SchemaSource source) throws Exception {
+            ValidationMetrics metrics = ValidationMetrics.getInstance();
+            long start = System.nanoTime();
+            byte[] content;
+            InputStream in = source.open();
+            try {
+                content = readFully(in);
+            } finally {
+                in.close();
+            }
+            long loaded = System.nanoTime();
+            metrics.schemaLoaded(loaded - start);
+            Schema schema = SCHEMA_FACTORIES.get().newSchema(new StreamSource(new ByteArrayInputStream(content)));
+            metrics.schemaCompiled(System.nanoTime() - loaded);
+            return schema;
+        }
+
+        /*
+         * Only failures expire, a compiled schema stays until it is pushed out
+         */
+        boolean isExpired() {
+            long failedAt = failed;
+            return failedAt != 0 && System.nanoTime() - failedAt > failureTtlNanos;
+        }
+    }
+
+    private static class Key {
+
+        private final String contentModel;
+
+        private final String datastreamID;
+
+        private final String version;
+
+        Key(String contentModel, String datastreamID, String version) {
+            this.contentModel = contentModel;
+            this.datastreamID = datastreamID;
+            this.version = version == null ? "" : version;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) o;
+            return contentModel.equals(that.contentModel) && datastreamID.equals(that.datastreamID)
+                   && version.equals(that.version);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * contentModel.hashCode() + datastreamID.hashCode()) + version.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return contentModel + "/" + datastreamID + (version.isEmpty() ? "" : "@" + version);
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package org.fcrepo.server.validation.ecm;
+
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+import java.util.Date;
+
+/**
+ * One problem found by content model validation, as a typed record.
+ * <p>
+ * The message text is only built when {@link #getMessage()} or {@link #toString()} is first called, so errors that
+ * are counted or filtered but never shown cost no string building. The text is the same as the corresponding
+ * method in {@link Errors} returns. Every error is counted in the {@link ValidationMetrics}.
+ * </p>
+ */
+public final class ValidationError {
+
+    /**
+     * The kinds of validation problems, one for each message in {@link Errors}
+     */
+    public enum Kind {
+        UNABLE_TO_PARSE_SCHEMA,
+        INVALID_CONTENT_IN_DATASTREAM,
+        UNABLE_TO_READ_DATASTREAM,
+        SCHEMA_VALIDATION_WARNING,
+        SCHEMA_VALIDATION_ERROR,
+        SCHEMA_VALIDATION_FATAL_ERROR,
+        INVALID_FORMAT_URI_OR_MIME_TYPE,
+        MISSING_REQUIRED_DATASTREAM,
+        ALL_VALUES_FROM_VIOLATION,
+        MISSING_OBJECT_VIOLATION,
+        SOME_VALUES_FROM_VIOLATION_NO_SUCH_RELATION,
+        SOME_VALUES_FROM_VIOLATION_WRONG_CLASS_OF_TARGET,
+        MIN_CARDINALITY_VIOLATION,
+        MAX_CARDINALITY_VIOLATION,
+        EXACT_CARDINALITY_VIOLATION,
+        SCHEMA_NOT_FOUND,
+        SCHEMA_CANNOT_PARSE,
+        DOES_NOT_EXIST_AS_OF_DATE_TIME
+    }
+
+    private final Kind kind;
+
+    private final String subject;
+
+    private final String datastreamID;
+
+    private final String contentModel;
+
+    private final Throwable cause;
+
+    /*
+     * Kind specific values: the relation and targets of ontology violations, cardinalities and dates
+     */
+    private final Object[] details;
+
+    private volatile String message;
+
+    private ValidationError(Kind kind, String subject, String datastreamID, String contentModel, Throwable cause,
+                            Object... details) {
+        this.kind = kind;
+        this.subject = subject;
+        this.datastreamID = datastreamID;
+        this.contentModel = contentModel;
+        this.cause = cause;
+        this.details = details;
+        ValidationMetrics.getInstance().errorRaised(kind, contentModel);
+    }
+
+    public static ValidationError unableToParseSchema(String schemaID, String datastreamID, String contentModel,
+                                                      Exception e) {
+        return new ValidationError(Kind.UNABLE_TO_PARSE_SCHEMA, null, datastreamID, contentModel, e, schemaID);
+    }
+
+    public static ValidationError invalidContentInDatastream(String datastreamID, String contentModel, Exception e) {
+        return new ValidationError(Kind.INVALID_CONTENT_IN_DATASTREAM, null, datastreamID, contentModel, e);
+    }
+
+    public static ValidationError unableToReadDatastream(String datastreamID, Exception e) {
+        return new ValidationError(Kind.UNABLE_TO_READ_DATASTREAM, null, datastreamID, null, e);
+    }
+
+    public static ValidationError schemaValidationWarning(String datastreamID, String contentModel,
+                                                          SAXParseException exception) {
+        return new ValidationError(Kind.SCHEMA_VALIDATION_WARNING, null, datastreamID, contentModel, exception);
+    }
+
+    public static ValidationError schemaValidationError(String datastreamID, String contentModel,
+                                                        SAXParseException exception) {
+        return new ValidationError(Kind.SCHEMA_VALIDATION_ERROR, null, datastreamID, contentModel, exception);
+    }
+
+    public static ValidationError schemaValidationFatalError(String datastreamID, String contentModel,
+                                                             SAXParseException exception) {
+        return new ValidationError(Kind.SCHEMA_VALIDATION_FATAL_ERROR, null, datastreamID, contentModel, exception);
+    }
+
+    public static ValidationError invalidFormatURIorMimeType(String dsid, String contentmodel) {
+        return new ValidationError(Kind.INVALID_FORMAT_URI_OR_MIME_TYPE, null, dsid, contentmodel, null);
+    }
+
+    public static ValidationError missingRequiredDatastream(String dsid, String contentmodel) {
+        return new ValidationError(Kind.MISSING_REQUIRED_DATASTREAM, null, dsid, contentmodel, null);
+    }
+
+    public static ValidationError allValuesFromViolation(String subject, String relation, String requiredTarget) {
+        return new ValidationError(Kind.ALL_VALUES_FROM_VIOLATION, subject, null, null, null, relation,
+                requiredTarget);
+    }
+
+    public static ValidationError missingObjectViolation(String subject, String relation, String requiredTarget,
+                                                         String target) {
+        return new ValidationError(Kind.MISSING_OBJECT_VIOLATION, subject, null, null, null, relation,
+                requiredTarget, target);
+    }
+
+    public static ValidationError someValuesFromViolationNoSuchRelation(String subject, String ontologyrelation,
+                                                                        String requiredTarget) {
+        return new ValidationError(Kind.SOME_VALUES_FROM_VIOLATION_NO_SUCH_RELATION, subject, null, null, null,
+                ontologyrelation, requiredTarget);
+    }
+
+    public static ValidationError someValuesFromViolationWrongClassOfTarget(String subject, String relation,
+                                                                            String requiredTarget) {
+        return new ValidationError(Kind.SOME_VALUES_FROM_VIOLATION_WRONG_CLASS_OF_TARGET, subject, null, null, null,
+                relation, requiredTarget);
+    }
+
+    public static ValidationError minCardinalityViolation(String subject, String ontologyrelation, int min) {
+        return new ValidationError(Kind.MIN_CARDINALITY_VIOLATION, subject, null, null, null, ontologyrelation, min);
+    }
+
+    public static ValidationError maxCardinalityViolation(String subject, String ontologyrelation, int max) {
+        return new ValidationError(Kind.MAX_CARDINALITY_VIOLATION, subject, null, null, null, ontologyrelation, max);
+    }
+
+    public static ValidationError exactCardinalityViolation(String subject, String ontologyrelation, int exact) {
+        return new ValidationError(Kind.EXACT_CARDINALITY_VIOLATION, subject, null, null, null, ontologyrelation,
+                exact);
+    }
+
+    public static ValidationError schemaNotFound(String contentmodel) {
+        return new ValidationError(Kind.SCHEMA_NOT_FOUND, null, null, contentmodel, null);
+    }
+
+    public static ValidationError schemaCannotParse(String contentmodel, String datastreamID, SAXException e) {
+        return new ValidationError(Kind.SCHEMA_CANNOT_PARSE, null, datastreamID, contentmodel, e);
+    }
+
+    public static ValidationError doesNotExistAsOfDateTime(String subject, Date createDate, Date asOfDateTime) {
+        return new ValidationError(Kind.DOES_NOT_EXIST_AS_OF_DATE_TIME, subject, null, null, null, createDate,
+                asOfDateTime);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return the object the error is about, or null if the error is about a datastream or content model
+     */
+    public String getSubject() {
+        return subject;
+    }
+
+    /**
+     * @return the datastream the error is about, or null
+     */
+    public String getDatastreamID() {
+        return datastreamID;
+    }
+
+    /**
+     * @return the content model the error was found against, or null
+     */
+    public String getContentModel() {
+        return contentModel;
+    }
+
+    /**
+     * @return the exception behind the error, or null
+     */
+    public Throwable getCause() {
+        return cause;
+    }
+
+    /**
+     * @return the message, built on first use
+     */
+    public String getMessage() {
+        String rendered = message;
+        if (rendered == null) {
+            rendered = render();
+            message = rendered;
+        }
+        return rendered;
+    }
+
+    @Override
+    public String toString() {
+        return getMessage();
+    }
+
+    private String render() {
+        switch (kind) {
+            case UNABLE_TO_PARSE_SCHEMA:
+                return "Content Model error: Unable to parse the validation "
+                       + "schema '" + details[0] + "'for datastream '" + datastreamID + "' from content model '" +
+                       contentModel + "'." +
+                       "The following error was encountered '" + cause.getMessage() + "'";
+            case INVALID_CONTENT_IN_DATASTREAM:
+                return "Data error: Invalid content in datastream '" + datastreamID + "', in regards to " +
+                       "schema the content model '" + contentModel + "'"
+                       + "'. " + cause.getMessage();
+            case UNABLE_TO_READ_DATASTREAM:
+                return "Data error: Unable to read datastream '" +
+                       datastreamID + "'. " + cause.getMessage();
+            case SCHEMA_VALIDATION_WARNING:
+                return "Encountered schema validation warning while parsing datastream '" + datastreamID +
+                       "' with the schema from content model '" + contentModel +
+                       "'. The warning was '" + cause.getLocalizedMessage() + "'";
+            case SCHEMA_VALIDATION_ERROR:
+                return "Encountered schema validation error while parsing datastream '" + datastreamID +
+                       "' with the schema from content model '" + contentModel +
+                       "'. The error was '" + cause.getLocalizedMessage() + "'";
+            case SCHEMA_VALIDATION_FATAL_ERROR:
+                return "Encountered schema validation fatal error while parsing datastream '" + datastreamID +
+                       "' with the schema from content model '" + contentModel +
+                       "'. The fatal error was '" + cause.getLocalizedMessage() + "'";
+            case INVALID_FORMAT_URI_OR_MIME_TYPE:
+                return "Datastream '" + datastreamID +
+                       "' is does not have the FORMAT_URI and MIME_TYPE attributes required by '" +
+                       contentModel + "'";
+            case MISSING_REQUIRED_DATASTREAM:
+                return "Datastream '" + datastreamID + "' is required by the content model '" + contentModel + "'";
+            case ALL_VALUES_FROM_VIOLATION:
+            case SOME_VALUES_FROM_VIOLATION_WRONG_CLASS_OF_TARGET:
+                return "The relation '" + details[0] + "' in '" + subject +
+                       (kind == Kind.ALL_VALUES_FROM_VIOLATION ? "'  is" : "' is") + " restricted to values from " +
+                       "class '" + details[1] + "'";
+            case MISSING_OBJECT_VIOLATION:
+                return "The relation '" + details[0] + "' in '" + subject + "'  is restricted to values from " +
+                       "class '" + details[1] + "', but refers to object '" + details[2] + "' which does not exist";
+            case SOME_VALUES_FROM_VIOLATION_NO_SUCH_RELATION:
+                return "The relation '" + details[0] + "' in '" + subject + "'  should have at least one" +
+                       "value from the from the" +
+                       "class '" + details[1] + "' and exist at least once";
+            case MIN_CARDINALITY_VIOLATION:
+                return "The relation '" + details[0] + "' in '" + subject + "' should at least exist '" +
+                       details[1] + "' times.";
+            case MAX_CARDINALITY_VIOLATION:
+                return "The relation '" + details[0] + "' in '" + subject + "' should exist at most '" +
+                       details[1] + "' times.";
+            case EXACT_CARDINALITY_VIOLATION:
+                return "The relation '" + details[0] + "' in '" + subject + "'  should exist exactly '" +
+                       details[1] + "' times.";
+            case SCHEMA_NOT_FOUND:
+                return "The Content Model '" + contentModel + "' could not be found";
+            case SCHEMA_CANNOT_PARSE:
+                return "Cannot parse Schema " + datastreamID + " from ContentModel '" + contentModel +
+                       "'. Caught Exception " + cause.getMessage();
+            case DOES_NOT_EXIST_AS_OF_DATE_TIME:
+                return "The object " + subject +
+                       " did not yet exist as of " + Errors.formatDate((Date) details[1]) +
+                       " (created " + Errors.formatDate((Date) details[0]) + ")";
+            default:
+                throw new IllegalStateException("Unknown kind " + kind);
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package org.fcrepo.server.validation.ecm;
+
+import dk.statsbiblioteket.metadatarepository.metrics.LatencyHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and timings of content model validation, registered in the platform MBean server as
+ * {@value #OBJECT_NAME}. An instance registered by an earlier deployment of the webapp is replaced.
+ * <p>
+ * Every {@link ValidationError}, and so every message from {@link Errors}, is counted by kind and content model.
+ * The {@link SchemaCache} times the loading and compiling of schemas, and datastream validations through it are
+ * timed per content model. Counts are kept for at most {@value #MAX_CONTENT_MODELS} content models; the rest are
+ * counted together as {@value #OTHER_CONTENT_MODELS}.
+ * </p>
+ */
+public class ValidationMetrics implements ValidationMetricsMBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(ValidationMetrics.class);
+
+    public static final String OBJECT_NAME = "org.fcrepo.server.validation.ecm:type=ValidationMetrics";
+
+    private static final int MAX_CONTENT_MODELS = 1000;
+
+    private static final String OTHER_CONTENT_MODELS = "(other)";
+
+    private static final String NO_CONTENT_MODEL = "-";
+
+    private static final ValidationMetrics INSTANCE = register(new ValidationMetrics());
+
+    private final Map<ValidationError.Kind, ConcurrentHashMap<String, AtomicLong>> errors =
+            new EnumMap<ValidationError.Kind, ConcurrentHashMap<String, AtomicLong>>(ValidationError.Kind.class);
+
+    private final LatencyHistogram schemaLoad = new LatencyHistogram();
+
+    private final LatencyHistogram schemaCompile = new LatencyHistogram();
+
+    private final LatencyHistogram validate = new LatencyHistogram();
+
+    private final ConcurrentHashMap<String, LatencyHistogram> validateByContentModel =
+            new ConcurrentHashMap<String, LatencyHistogram>();
+
+    ValidationMetrics() {
+        for (ValidationError.Kind kind : ValidationError.Kind.values()) {
+            errors.put(kind, new ConcurrentHashMap<String, AtomicLong>());
+        }
+    }
+
+    /**
+     * @return the metrics of this server
+     */
+    public static ValidationMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    private static ValidationMetrics register(ValidationMetrics metrics) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                // left behind by an earlier deployment of the webapp, whose counters nobody updates anymore
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(metrics, name);
+        } catch (JMException | SecurityException e) {
+            logger.warn("Unable to register content model validation metrics in JMX", e);
+        }
+        return metrics;
+    }
+
+    void errorRaised(ValidationError.Kind kind, String contentModel) {
+        ConcurrentHashMap<String, AtomicLong> counts = errors.get(kind);
+        String key = bounded(counts, contentModel == null ? NO_CONTENT_MODEL : contentModel);
+        AtomicLong count = counts.get(key);
+        if (count == null) {
+            count = new AtomicLong();
+            AtomicLong existing = counts.putIfAbsent(key, count);
+            if (existing != null) {
+                count = existing;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    void schemaLoaded(long nanos) {
+        schemaLoad.record(nanos);
+    }
+
+    void schemaCompiled(long nanos) {
+        schemaCompile.record(nanos);
+    }
+
+    /**
+     * Record the time of one datastream validation
+     * @param contentModel the content model the datastream was validated against
+     * @param nanos the time it took
+     */
+    public void validated(String contentModel, long nanos) {
+        validate.record(nanos);
+        String key = bounded(validateByContentModel, contentModel == null ? NO_CONTENT_MODEL : contentModel);
+        LatencyHistogram histogram = validateByContentModel.get(key);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            LatencyHistogram existing = validateByContentModel.putIfAbsent(key, histogram);
+            if (existing != null) {
+                histogram = existing;
+            }
+        }
+        histogram.record(nanos);
+    }
+
+    /*
+     * The key to count under, so a flood of content models cannot grow the maps without limit
+     */
+    private static String bounded(Map<String, ?> map, String contentModel) {
+        if (map.containsKey(contentModel) || map.size() < MAX_CONTENT_MODELS) {
+            return contentModel;
+        }
+        return OTHER_CONTENT_MODELS;
+    }
+
+    /**
+     * @param kind a kind of error
+     * @return the number of errors of that kind, for all content models
+     */
+    public long getErrorCount(ValidationError.Kind kind) {
+        long total = 0;
+        for (AtomicLong count : errors.get(kind).values()) {
+            total += count.get();
+        }
+        return total;
+    }
+
+    @Override
+    public long getErrorCount() {
+        long total = 0;
+        for (ValidationError.Kind kind : ValidationError.Kind.values()) {
+            total += getErrorCount(kind);
+        }
+        return total;
+    }
+
+    @Override
+    public String[] getErrorCounts() {
+        List<Object[]> rows = new ArrayList<Object[]>();
+        for (Map.Entry<ValidationError.Kind, ConcurrentHashMap<String, AtomicLong>> kind : errors.entrySet()) {
+            for (Map.Entry<String, AtomicLong> count : kind.getValue().entrySet()) {
+                rows.add(new Object[]{kind.getKey() + " " + count.getKey() + " " + count.getValue().get(),
+                                      count.getValue().get()});
+            }
+        }
+        return sortedDescending(rows);
+    }
+
+    @Override
+    public long getSchemaLoadCount() {
+        return schemaLoad.getCount();
+    }
+
+    @Override
+    public double getSchemaLoadMeanMillis() {
+        return schemaLoad.getMeanMillis();
+    }
+
+    @Override
+    public double getSchemaLoad99thPercentileMillis() {
+        return schemaLoad.getPercentileMillis(99);
+    }
+
+    @Override
+    public long getSchemaCompileCount() {
+        return schemaCompile.getCount();
+    }
+
+    @Override
+    public double getSchemaCompileMeanMillis() {
+        return schemaCompile.getMeanMillis();
+    }
+
+    @Override
+    public double getSchemaCompile99thPercentileMillis() {
+        return schemaCompile.getPercentileMillis(99);
+    }
+
+    @Override
+    public long getValidateCount() {
+        return validate.getCount();
+    }
+
+    @Override
+    public double getValidateMeanMillis() {
+        return validate.getMeanMillis();
+    }
+
+    @Override
+    public double getValidate99thPercentileMillis() {
+        return validate.getPercentileMillis(99);
+    }
+
+    @Override
+    public String[] getValidateTimesByContentModel() {
+        List<Object[]> rows = new ArrayList<Object[]>();
+        for (Map.Entry<String, LatencyHistogram> entry : validateByContentModel.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            rows.add(new Object[]{entry.getKey() + " count=" + histogram.getCount() + " totalMillis="
+                                  + histogram.getTotalMillis() + " meanMillis="
+                                  + String.format("%.3f", histogram.getMeanMillis()) + " p99Millis="
+                                  + String.format("%.3f", histogram.getPercentileMillis(99)),
+                                  histogram.getTotalMillis()});
+        }
+        return sortedDescending(rows);
+    }
+
+    private static String[] sortedDescending(List<Object[]> rows) {
+        Collections.sort(rows, new Comparator<Object[]>() {
+            @Override
+            public int compare(Object[] a, Object[] b) {
+                return Long.compare((Long) b[1], (Long) a[1]);
+            }
+        });
+        String[] lines = new String[rows.size()];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = (String) rows.get(i)[0];
+        }
+        return lines;
+    }
+
+    @Override
+    public long getSchemaCacheHitCount() {
+        return SchemaCache.getInstance().getHitCount();
+    }
+
+    @Override
+    public long getSchemaCacheMissCount() {
+        return SchemaCache.getInstance().getMissCount();
+    }
+
+    @Override
+    public long getSchemaCacheFailureCount() {
+        return SchemaCache.getInstance().getFailureCount();
+    }
+
+    @Override
+    public void reset() {
+        for (ConcurrentHashMap<String, AtomicLong> counts : errors.values()) {
+            counts.clear();
+        }
+        schemaLoad.reset();
+        schemaCompile.reset();
+        validate.reset();
+        validateByContentModel.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "ValidationMetrics[errors=" + getErrorCount() + ", schemaLoad=" + schemaLoad + ", schemaCompile="
+               + schemaCompile + ", validate=" + validate + "]";
+    }
+}
@@ -0,0 +1,52 @@
+package org.fcrepo.server.validation.ecm;
+
+/**
+ * JMX view of {@link ValidationMetrics}
+ */
+public interface ValidationMetricsMBean {
+
+    /**
+     * @return the total number of validation errors of all kinds
+     */
+    long getErrorCount();
+
+    /**
+     * @return one line per error kind and content model, "KIND contentModel count", most frequent first
+     */
+    String[] getErrorCounts();
+
+    long getSchemaLoadCount();
+
+    double getSchemaLoadMeanMillis();
+
+    double getSchemaLoad99thPercentileMillis();
+
+    long getSchemaCompileCount();
+
+    double getSchemaCompileMeanMillis();
+
+    double getSchemaCompile99thPercentileMillis();
+
+    long getValidateCount();
+
+    double getValidateMeanMillis();
+
+    double getValidate99thPercentileMillis();
+
+    /**
+     * @return one line per content model with the count, total, mean and 99th percentile of its validation times,
+     * most expensive in total first
+     */
+    String[] getValidateTimesByContentModel();
+
+    long getSchemaCacheHitCount();
+
+    long getSchemaCacheMissCount();
+
+    long getSchemaCacheFailureCount();
+
+    /**
+     * Start counting from zero
+     */
+    void reset();
+}
@@ -0,0 +1,71 @@
+package org.fcrepo.server.validation.ecm;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The problem list of one datastream in a {@link org.fcrepo.server.storage.types.Validation}, holding
+ * {@link ValidationError}s and rendering each message the first time it is read. A validation that is only checked
+ * for being valid builds no messages.
+ */
+class ValidationProblems extends AbstractList<String> {
+
+    /*
+     * ValidationErrors, and Strings added by code that only knows the list as a list of messages
+     */
+    private final List<Object> problems = new ArrayList<Object>();
+
+    /**
+     * @param error the problem, rendered when read
+     */
+    void addError(ValidationError error) {
+        problems.add(error);
+        modCount++;
+    }
+
+    /**
+     * @return the errors in the list, without rendering them. Plain messages are left out
+     */
+    List<ValidationError> getErrors() {
+        List<ValidationError> errors = new ArrayList<ValidationError>();
+        for (Object problem : problems) {
+            if (problem instanceof ValidationError) {
+                errors.add((ValidationError) problem);
+            }
+        }
+        return errors;
+    }
+
+    @Override
+    public String get(int index) {
+        Object problem = problems.get(index);
+        return problem instanceof ValidationError ? ((ValidationError) problem).getMessage() : (String) problem;
+    }
+
+    @Override
+    public int size() {
+        return problems.size();
+    }
+
+    @Override
+    public String set(int index, String message) {
+        String old = get(index);
+        problems.set(index, message);
+        return old;
+    }
+
+    @Override
+    public void add(int index, String message) {
+        problems.add(index, message);
+        modCount++;
+    }
+
+    @Override
+    public String remove(int index) {
+        String old = get(index);
+        problems.remove(index);
+        modCount++;
+        return old;
+    }
+}
@@ -0,0 +1,122 @@
+package dk.statsbiblioteket.metadatarepository.fieldsearch;
+
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class IdentifierGuardTest {
+
+    private static final SQLException TIMEOUT = new SQLTimeoutException("timed out");
+
+    @Test
+    public void recognisesTimeoutsBySqlState() {
+        assertTrue(IdentifierGuard.isTimeout(TIMEOUT));
+        assertTrue(IdentifierGuard.isTimeout(new SQLException("canceled", "57014")));
+        assertTrue(IdentifierGuard.isTimeout(new SQLException("derby", "XCL52")));
+        assertTrue(IdentifierGuard.isTimeout(new SQLException("mysql", "70100")));
+        assertTrue(IdentifierGuard.isTimeout(new RuntimeException(new SQLException("wrapped", "57014"))));
+        assertFalse(IdentifierGuard.isTimeout(new SQLException("connection refused", "08001")));
+        assertFalse(IdentifierGuard.isTimeout(new SQLException("no state")));
+        assertFalse(IdentifierGuard.isTimeout(new RuntimeException("not sql")));
+    }
+
+    @Test
+    public void opensAfterConsecutiveTimeouts() {
+        IdentifierGuard guard = new IdentifierGuard(0, 0, 0, 0, 2, 60000, false);
+        guard.exit(guard.tryEnter(), TIMEOUT);
+        assertEquals(IdentifierGuard.State.CLOSED, guard.getState());
+        guard.exit(guard.tryEnter(), TIMEOUT);
+        assertEquals(IdentifierGuard.State.OPEN, guard.getState());
+        assertNull(guard.tryEnter());
+        assertNull(guard.tryEnterWrite());
+        assertEquals(2, guard.getBreakerRejectedCount());
+        assertEquals(1, guard.getBreakerOpenedCount());
+    }
+
+    @Test
+    public void successResetsTheTimeoutCount() {
+        IdentifierGuard guard = new IdentifierGuard(0, 0, 0, 0, 2, 60000, false);
+        guard.exit(guard.tryEnter(), TIMEOUT);
+        guard.exit(guard.tryEnter(), null);
+        guard.exit(guard.tryEnter(), TIMEOUT);
+        assertEquals(IdentifierGuard.State.CLOSED, guard.getState());
+        guard.exit(guard.tryEnter(), new SQLException("not a timeout"));
+        assertEquals(IdentifierGuard.State.CLOSED, guard.getState());
+    }
+
+    @Test
+    public void trialSuccessClosesTheBreaker() {
+        IdentifierGuard guard = opened();
+        IdentifierGuard.Permit trial = guard.tryEnter();
+        assertNotNull(trial);
+        assertTrue(trial.isTrial());
+        assertEquals(IdentifierGuard.State.HALF_OPEN, guard.getState());
+        assertNull("only one trial at a time", guard.tryEnter());
+        guard.exit(trial, null);
+        assertEquals(IdentifierGuard.State.CLOSED, guard.getState());
+    }
+
+    @Test
+    public void trialFailureOpensTheBreakerAgain() {
+        IdentifierGuard guard = opened();
+        guard.exit(guard.tryEnter(), new SQLException("still down"));
+        assertEquals(IdentifierGuard.State.OPEN, guard.getState());
+        assertEquals(2, guard.getBreakerOpenedCount());
+    }
+
+    @Test
+    public void onlyTheTrialClosesAHalfOpenBreaker() {
+        IdentifierGuard guard = new IdentifierGuard(0, 0, 0, 0, 1, 0, false);
+        IdentifierGuard.Permit early = guard.tryEnter();
+        guard.exit(guard.tryEnter(), TIMEOUT);
+        IdentifierGuard.Permit trial = guard.tryEnter();
+        assertTrue(trial.isTrial());
+        guard.exit(early, null);
+        assertEquals(IdentifierGuard.State.HALF_OPEN, guard.getState());
+        guard.exit(trial, null);
+        assertEquals(IdentifierGuard.State.CLOSED, guard.getState());
+    }
+
+    @Test
+    public void bulkheadRejectsLookupsWhenFull() {
+        IdentifierGuard guard = new IdentifierGuard(0, 0, 1, 0, 0, 0, false);
+        IdentifierGuard.Permit first = guard.tryEnter();
+        assertNotNull(first);
+        assertNull(guard.tryEnter());
+        assertEquals(1, guard.getBulkheadRejectedCount());
+        assertEquals(1, guard.getInFlight());
+        guard.exit(first, null);
+        assertEquals(0, guard.getInFlight());
+        assertNotNull(guard.tryEnter());
+    }
+
+    @Test
+    public void writesDoNotTakeTheLookupBulkhead() throws InterruptedException {
+        IdentifierGuard guard = new IdentifierGuard(0, 0, 1, 0, 0, 0, false);
+        IdentifierGuard.Permit write = guard.tryEnterWrite();
+        guard.enterWrite(write);
+        IdentifierGuard.Permit lookup = guard.tryEnter();
+        assertNotNull(lookup);
+        assertEquals(2, guard.getInFlight());
+        guard.exit(write, null);
+        guard.exit(lookup, null);
+        assertEquals(0, guard.getInFlight());
+    }
+
+    /*
+     * A guard whose breaker has just opened, and lets a trial through at once
+     */
+    private static IdentifierGuard opened() {
+        IdentifierGuard guard = new IdentifierGuard(0, 0, 0, 0, 1, 0, false);
+        guard.exit(guard.tryEnter(), TIMEOUT);
+        assertEquals(IdentifierGuard.State.OPEN, guard.getState());
+        return guard;
+    }
+}
@@ -0,0 +1,63 @@
+package org.fcrepo.server.security.jaas.auth.module;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class AuthenticationCacheTest {
+
+    @Test
+    public void remembersSuccessfulLogins() throws Exception {
+        XmlUsers users = users("secret");
+        AuthenticationCache cache = new AuthenticationCache(10, 60000);
+        XmlUsers.User alice = users.get("alice");
+        assertNull(cache.get(users, "alice", "secret"));
+        cache.put(users, "alice", "secret", alice);
+        assertSame(alice, cache.get(users, "alice", "secret"));
+        assertNull(cache.get(users, "alice", "wrong"));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void reloadDropsCachedLogins() throws Exception {
+        XmlUsers before = users("secret");
+        XmlUsers after = users("changed");
+        AuthenticationCache cache = new AuthenticationCache(10, 60000);
+        cache.get(before, "alice", "secret");
+        cache.put(before, "alice", "secret", before.get("alice"));
+        assertNull(cache.get(after, "alice", "secret"));
+    }
+
+    @Test
+    public void loginsCheckedAgainstReplacedUsersAreNotCached() throws Exception {
+        XmlUsers before = users("secret");
+        XmlUsers after = users("changed");
+        AuthenticationCache cache = new AuthenticationCache(10, 60000);
+        cache.get(before, "alice", "secret");
+        cache.get(after, "alice", "changed");
+        // a slow login that started before the reload finishes after it
+        cache.put(before, "alice", "secret", before.get("alice"));
+        assertNull(cache.get(after, "alice", "secret"));
+        assertNull(cache.get(before, "alice", "secret"));
+    }
+
+    @Test
+    public void loginsExpire() throws Exception {
+        XmlUsers users = users("secret");
+        AuthenticationCache cache = new AuthenticationCache(10, 0);
+        cache.get(users, "alice", "secret");
+        cache.put(users, "alice", "secret", users.get("alice"));
+        Thread.sleep(1);
+        assertNull(cache.get(users, "alice", "secret"));
+    }
+
+    private static XmlUsers users(String password) throws Exception {
+        String xml = "<users><user name=\"alice\" password=\"" + password + "\"/></users>";
+        return XmlUsers.load(xml.getBytes(Charset.forName("UTF-8")));
+    }
+}
@@ -0,0 +1,74 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.storage;
+
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionPoolGateTest {
+
+    @Test
+    public void keepsTheReservedPermitsForPriorityBorrowers() throws Exception {
+        ConnectionPoolGate gate = new ConnectionPoolGate(3, 1);
+        assertTrue(gate.acquire(false, 10));
+        assertTrue(gate.acquire(false, 10));
+        assertFalse("a writer took a reserved permit", gate.acquire(false, 10));
+        assertTrue(gate.acquire(true, 10));
+        assertFalse(gate.acquire(true, 10));
+        assertEquals(3, gate.getActive());
+    }
+
+    @Test
+    public void releaseWakesAWaiter() throws Exception {
+        final ConnectionPoolGate gate = new ConnectionPoolGate(1, 0);
+        assertTrue(gate.acquire(false, 10));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> waiter = executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return gate.acquire(false, 5000);
+                }
+            });
+            Thread.sleep(50);
+            assertFalse(waiter.isDone());
+            gate.release();
+            assertTrue(waiter.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void loweredCapacityLetsHoldersKeepTheirPermits() throws Exception {
+        ConnectionPoolGate gate = new ConnectionPoolGate(4, 1);
+        assertTrue(gate.acquire(true, 10));
+        assertTrue(gate.acquire(true, 10));
+        assertTrue(gate.acquire(true, 10));
+        gate.setCapacity(2);
+        assertEquals(2, gate.getCapacity());
+        assertEquals(3, gate.getActive());
+        assertFalse(gate.acquire(true, 10));
+        gate.release();
+        gate.release();
+        assertTrue(gate.acquire(true, 10));
+    }
+
+    @Test
+    public void capacityStaysAboveTheReservation() {
+        ConnectionPoolGate gate = new ConnectionPoolGate(4, 2);
+        gate.setCapacity(1);
+        assertEquals(3, gate.getCapacity());
+    }
+}
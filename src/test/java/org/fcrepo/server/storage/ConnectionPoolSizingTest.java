@@ -0,0 +1,109 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.storage;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class ConnectionPoolSizingTest {
+
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private BasicDataSource dataSource;
+
+    @Before
+    public void createDataSource() {
+        dataSource = new BasicDataSource();
+        dataSource.setMaxActive(8);
+        dataSource.setMaxIdle(8);
+        dataSource.setMinIdle(0);
+    }
+
+    @Test
+    public void growsWhenBorrowersWaitForSeveralWindows() {
+        ConnectionPoolGate gate = new ConnectionPoolGate(8, 2);
+        ConnectionPoolSizing sizing = sizing(gate, 4, 16, 2);
+        busyWindow(sizing, SLOW);
+        sizing.evaluate();
+        assertEquals("one window is not enough", 8, sizing.getSize());
+        busyWindow(sizing, SLOW);
+        sizing.evaluate();
+        assertEquals(10, sizing.getSize());
+        assertEquals(10, dataSource.getMaxActive());
+        assertEquals(10, gate.getCapacity());
+        assertEquals(1, sizing.getGrowCount());
+    }
+
+    @Test
+    public void growsWhenBorrowsFail() {
+        ConnectionPoolSizing sizing = sizing(null, 4, 16, 1);
+        sizing.borrowFailed(0);
+        sizing.evaluate();
+        assertEquals(10, sizing.getSize());
+    }
+
+    @Test
+    public void shrinksWhenUnderused() {
+        ConnectionPoolSizing sizing = sizing(null, 4, 16, 1);
+        busyWindow(sizing, 0);
+        sizing.evaluate();
+        assertEquals(7, sizing.getSize());
+        assertEquals(7, dataSource.getMaxIdle());
+        assertEquals(1, sizing.getShrinkCount());
+    }
+
+    @Test
+    public void shrinksWhenErrorsAreFrequent() {
+        ConnectionPoolSizing sizing = sizing(null, 4, 16, 1);
+        for (int i = 0; i < 10; i++) {
+            sizing.borrowed(SLOW);
+            sizing.error();
+            sizing.returned(SLOW);
+        }
+        sizing.evaluate();
+        assertEquals(7, sizing.getSize());
+    }
+
+    @Test
+    public void doesNotGrowWhileQueriesGetSlower() {
+        ConnectionPoolSizing sizing = sizing(null, 8, 16, 1);
+        sizing.executed(TimeUnit.MILLISECONDS.toNanos(1));
+        sizing.evaluate();
+        busyWindow(sizing, SLOW);
+        sizing.executed(TimeUnit.MILLISECONDS.toNanos(10));
+        sizing.evaluate();
+        assertEquals(8, sizing.getSize());
+    }
+
+    @Test
+    public void staysWithinTheBounds() {
+        ConnectionPoolSizing sizing = sizing(null, 4, 9, 1);
+        busyWindow(sizing, SLOW);
+        sizing.evaluate();
+        assertEquals(9, sizing.getSize());
+        busyWindow(sizing, SLOW);
+        sizing.evaluate();
+        assertEquals(9, sizing.getSize());
+    }
+
+    private ConnectionPoolSizing sizing(ConnectionPoolGate gate, int minActive, int maxActive, int windows) {
+        return new ConnectionPoolSizing(dataSource, gate, minActive, maxActive, 10, 1, 0.5, windows);
+    }
+
+    /*
+     * Ten borrows of one connection at a time, each waiting this long
+     */
+    private static void busyWindow(ConnectionPoolSizing sizing, long waitNanos) {
+        for (int i = 0; i < 10; i++) {
+            sizing.borrowed(waitNanos);
+            sizing.returned(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+}
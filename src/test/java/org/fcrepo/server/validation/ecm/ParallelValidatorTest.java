@@ -0,0 +1,112 @@
+package org.fcrepo.server.validation.ecm;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ParallelValidatorTest {
+
+    private final ParallelValidator validator = new ParallelValidator(4, 4);
+
+    @After
+    public void shutdown() {
+        validator.shutdown();
+    }
+
+    @Test
+    public void returnsResultsInTheOrderOfTheChecks() throws Exception {
+        List<Callable<Integer>> checks = new ArrayList<Callable<Integer>>();
+        for (int i = 0; i < 8; i++) {
+            checks.add(check(i, (8 - i) * 5, null));
+        }
+        List<Integer> results = validator.runAll(checks);
+        for (int i = 0; i < 8; i++) {
+            assertEquals(i, (int) results.get(i));
+        }
+    }
+
+    @Test
+    public void reportsTheFirstFailureInTheOrderOfTheChecks() {
+        List<Callable<Integer>> checks = new ArrayList<Callable<Integer>>();
+        checks.add(check(0, 0, null));
+        checks.add(check(1, 50, new IllegalStateException("first")));
+        checks.add(check(2, 0, new IllegalStateException("second")));
+        try {
+            validator.runAll(checks);
+            fail("the failures were not reported");
+        } catch (ExecutionException e) {
+            assertEquals("first", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void limitsTheThreadsOfOneCall() throws Exception {
+        ParallelValidator limited = new ParallelValidator(4, 2);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger mostRunning = new AtomicInteger();
+        List<Callable<Integer>> checks = new ArrayList<Callable<Integer>>();
+        for (int i = 0; i < 8; i++) {
+            checks.add(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    int now = running.incrementAndGet();
+                    int most;
+                    do {
+                        most = mostRunning.get();
+                    } while (now > most && !mostRunning.compareAndSet(most, now));
+                    Thread.sleep(10);
+                    running.decrementAndGet();
+                    return now;
+                }
+            });
+        }
+        try {
+            limited.runAll(checks);
+        } finally {
+            limited.shutdown();
+        }
+        assertTrue(mostRunning.get() <= 2);
+    }
+
+    @Test
+    public void runsSequentiallyInTheCallingThreadWithoutThreads() throws Exception {
+        ParallelValidator sequential = new ParallelValidator(0, 0);
+        assertFalse(sequential.isParallel());
+        final Thread caller = Thread.currentThread();
+        List<Callable<Boolean>> checks = new ArrayList<Callable<Boolean>>();
+        for (int i = 0; i < 3; i++) {
+            checks.add(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return Thread.currentThread() == caller;
+                }
+            });
+        }
+        for (Boolean inCaller : sequential.runAll(checks)) {
+            assertTrue(inCaller);
+        }
+    }
+
+    private static Callable<Integer> check(final int result, final long sleepMillis, final RuntimeException failure) {
+        return new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                Thread.sleep(sleepMillis);
+                if (failure != null) {
+                    throw failure;
+                }
+                return result;
+            }
+        };
+    }
+}
@@ -0,0 +1,115 @@
+package org.fcrepo.server.validation.ecm;
+
+import org.junit.Test;
+import org.xml.sax.SAXException;
+
+import javax.xml.validation.Schema;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class SchemaCacheTest {
+
+    private static final String SCHEMA = "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\">"
+                                         + "<xs:element name=\"a\" type=\"xs:string\"/></xs:schema>";
+
+    @Test
+    public void compilesEachSchemaOnceForConcurrentCallers() throws Exception {
+        final SchemaCache cache = new SchemaCache(10, 60000);
+        final CountingSource source = new CountingSource(SCHEMA);
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Schema>> schemas = new ArrayList<Future<Schema>>();
+            for (int i = 0; i < 8; i++) {
+                schemas.add(executor.submit(new Callable<Schema>() {
+                    @Override
+                    public Schema call() throws Exception {
+                        start.await();
+                        return cache.getSchema("demo:CM", "SCHEMA", "1", source);
+                    }
+                }));
+            }
+            start.countDown();
+            Schema first = schemas.get(0).get();
+            for (Future<Schema> schema : schemas) {
+                assertSame(first, schema.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1, source.opened.get());
+    }
+
+    @Test
+    public void compilesANewVersionAgain() throws Exception {
+        SchemaCache cache = new SchemaCache(10, 60000);
+        CountingSource source = new CountingSource(SCHEMA);
+        Schema first = cache.getSchema("demo:CM", "SCHEMA", "1", source);
+        assertSame(first, cache.getSchema("demo:CM", "SCHEMA", "1", source));
+        cache.getSchema("demo:CM", "SCHEMA", "2", source);
+        assertEquals(2, source.opened.get());
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void remembersFailuresUntilTheyExpire() throws Exception {
+        SchemaCache cache = new SchemaCache(10, 100);
+        CountingSource source = new CountingSource("<not a schema");
+        assertFails(cache, source);
+        assertFails(cache, source);
+        assertEquals(1, source.opened.get());
+        Thread.sleep(150);
+        assertFails(cache, source);
+        assertEquals(2, source.opened.get());
+    }
+
+    @Test
+    public void keepsAtMostMaxSizeSchemas() throws Exception {
+        SchemaCache cache = new SchemaCache(2, 60000);
+        CountingSource source = new CountingSource(SCHEMA);
+        for (int i = 0; i < 5; i++) {
+            cache.getSchema("demo:CM" + i, "SCHEMA", "1", source);
+        }
+        assertEquals(2, cache.size());
+    }
+
+    private static void assertFails(SchemaCache cache, CountingSource source) {
+        try {
+            cache.getSchema("demo:Broken", "SCHEMA", "1", source);
+            fail("a broken schema was compiled");
+        } catch (SAXException e) {
+            //expected
+        }
+    }
+
+    private static class CountingSource implements SchemaCache.SchemaSource {
+
+        private final byte[] content;
+
+        private final AtomicInteger opened = new AtomicInteger();
+
+        CountingSource(String content) {
+            this.content = content.getBytes(Charset.forName("UTF-8"));
+        }
+
+        @Override
+        public InputStream open() throws Exception {
+            opened.incrementAndGet();
+            Thread.sleep(20); //give the other callers time to ask for the same schema
+            return new ByteArrayInputStream(content);
+        }
+    }
+}